@@ -1,10 +1,10 @@
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This class is used to manage the Admin, it extends runnable.
  * A server is opened and this admin is assigned to it, after
- * completing 15 actions, it closes all rooms then the server follows
+ * completing 15 actions, it drains the server which closes all rooms then the server
  */
 public class Admin implements Runnable {
 
@@ -24,6 +24,10 @@ public class Admin implements Runnable {
 	 * number of action for admin to complete
 	 */
 	private int actionCount = 15;
+	/**
+	 * longest time the admin waits for users to leave when draining the server
+	 */
+	private long drainTimeout = 10000;
 
 	/**
 	 * sets name of this admin
@@ -46,7 +50,8 @@ public class Admin implements Runnable {
 	/**
 	 * This method is the implementation required to use the runnable interface,
 	 * this method simply opens the server assigned to this admin performs 15
-	 * actions on a randomly selected chat room then closes each room and server.
+	 * actions on a randomly selected chat room then drains the server, letting users
+	 * leave before each room and the server is closed.
 	 */
 	@Override
 	public void run() {
@@ -59,7 +64,7 @@ public class Admin implements Runnable {
 			for (int i = 0; i < actionCount; i++) {
 				// pick a random chat room to open or close, that is not main room
 				List<ChatRoom> rooms = server.getChatRooms();
-				int randomIndex = new Random().nextInt(rooms.size() - 1) + 1;
+				int randomIndex = ThreadLocalRandom.current().nextInt(rooms.size() - 1) + 1;
 				ChatRoom room = rooms.get(randomIndex);
 
 				if (room.isOpen()) {
@@ -69,24 +74,91 @@ public class Admin implements Runnable {
 				}
 
 				//sleep for a random time between 1s and 2s
-				Thread.sleep(new Random().nextInt(sleepScale + 1) + sleepScale);
-			}
-
-			// close all chat rooms
-			for (ChatRoom room : server.getChatRooms()) {
-				if (room.isOpen()) {
-					room.close();
-				}
+				Thread.sleep(ThreadLocalRandom.current().nextInt(sleepScale + 1) + sleepScale);
 			}
 
-			//close chat server
-			server.getMainRoom().close();
-			server.close();
+			//stop admissions, wait for users to leave then close all rooms and the server
+			server.drain(drainTimeout);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * kicks a user out of a room of the server, they cannot enter it again for a time
+	 *
+	 * @param user user being kicked
+	 * @param chatRoomID id of the room
+	 * @param durationMillis how long the kick lasts, 0 or less until it is lifted
+	 * @return whether the user was in the room
+	 */
+	public boolean kick(User user, int chatRoomID, long durationMillis) {
+		ChatRoom room = findRoom(chatRoomID);
+		return room != null && room.kick(user, durationMillis);
+	}
+
+	/**
+	 * mutes a user in a room of the server for a time
+	 *
+	 * @param userID id of the user
+	 * @param chatRoomID id of the room
+	 * @param durationMillis how long the mute lasts, 0 or less until it is lifted
+	 */
+	public void mute(int userID, int chatRoomID, long durationMillis) {
+		ChatRoom room = findRoom(chatRoomID);
+		if (room != null) {
+			room.mute(userID, durationMillis);
+		}
+	}
+
+	/**
+	 * lifts the mute on a user in a room of the server
+	 *
+	 * @param userID id of the user
+	 * @param chatRoomID id of the room
+	 * @return whether the user was muted
+	 */
+	public boolean unmute(int userID, int chatRoomID) {
+		ChatRoom room = findRoom(chatRoomID);
+		return room != null && room.unmute(userID);
+	}
+
+	/**
+	 * bans a user from the server for a time, removing them if they are in it
+	 *
+	 * @param userID id of the user
+	 * @param durationMillis how long the ban lasts, 0 or less until it is lifted
+	 */
+	public void ban(int userID, long durationMillis) {
+		server.ban(userID, durationMillis);
+	}
+
+	/**
+	 * lifts the ban on a user
+	 *
+	 * @param userID id of the user
+	 * @return whether the user was banned
+	 */
+	public boolean unban(int userID) {
+		return server.unban(userID);
+	}
+
+	/**
+	 * finds a room of the server by id
+	 *
+	 * @param chatRoomID id of the room
+	 * @return the room, null if the server has none with the id
+	 */
+	private ChatRoom findRoom(int chatRoomID) {
+		List<ChatRoom> rooms = server.getChatRooms();
+		for (int i = 0; i < rooms.size(); i++) {
+			if (rooms.get(i).getRoomID() == chatRoomID) {
+				return rooms.get(i);
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * sets name of admin
 	 *
@@ -141,6 +213,24 @@ public class Admin implements Runnable {
 		return actionCount;
 	}
 
+	/**
+	 * sets the longest time to wait for users to leave when draining
+	 *
+	 * @param drainTimeout drain timeout in milliseconds
+	 */
+	public void setDrainTimeout(long drainTimeout) {
+		this.drainTimeout = drainTimeout;
+	}
+
+	/**
+	 * gets the longest time to wait for users to leave when draining
+	 *
+	 * @return drain timeout in milliseconds
+	 */
+	public long getDrainTimeout() {
+		return drainTimeout;
+	}
+
 	/**
 	 * sets the default wait time when sleeping
 	 *
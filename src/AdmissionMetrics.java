@@ -0,0 +1,186 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts admissions, rejections and preemptions and the time admission took for
+ * each priority class, separately for the server and its rooms. Recording only touches
+ * striped counters so it adds no locking to the admission path.
+ */
+public class AdmissionMetrics {
+
+	/**
+	 * where an admission happened
+	 */
+	public enum Scope {
+		SERVER,
+		ROOM
+	}
+
+	/**
+	 * number of priority classes
+	 */
+	private static final int CLASSES = Priority.values().length;
+
+	/**
+	 * users admitted, by scope and class
+	 */
+	private final LongAdder[] admitted;
+	/**
+	 * users rejected, by scope and class
+	 */
+	private final LongAdder[] rejected;
+	/**
+	 * users who lost their place to a higher class, by scope and class
+	 */
+	private final LongAdder[] preempted;
+	/**
+	 * total time admission decisions took, by scope and class
+	 */
+	private final LongAdder[] latencyNanos;
+	/**
+	 * longest time an admission decision took, by scope and class
+	 */
+	private final AtomicLongArray maxLatencyNanos;
+
+	/**
+	 * creates empty metrics
+	 */
+	public AdmissionMetrics() {
+		int slots = Scope.values().length * CLASSES;
+		this.admitted = new LongAdder[slots];
+		this.rejected = new LongAdder[slots];
+		this.preempted = new LongAdder[slots];
+		this.latencyNanos = new LongAdder[slots];
+		this.maxLatencyNanos = new AtomicLongArray(slots);
+
+		for (int i = 0; i < slots; i++) {
+			admitted[i] = new LongAdder();
+			rejected[i] = new LongAdder();
+			preempted[i] = new LongAdder();
+			latencyNanos[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * gets the slot of a scope and class in the counters
+	 *
+	 * @param scope where the admission happened
+	 * @param priority class of the user
+	 * @return index of the counters
+	 */
+	private static int slot(Scope scope, Priority priority) {
+		return scope.ordinal() * CLASSES + priority.ordinal();
+	}
+
+	/**
+	 * records an admission decision
+	 *
+	 * @param scope where the admission happened
+	 * @param priority class of the user
+	 * @param wasAdmitted whether the user was admitted
+	 * @param started when the attempt started, from System.nanoTime
+	 */
+	public void record(Scope scope, Priority priority, boolean wasAdmitted, long started) {
+		int slot = slot(scope, priority);
+		long latency = System.nanoTime() - started;
+
+		(wasAdmitted ? admitted : rejected)[slot].increment();
+		latencyNanos[slot].add(latency);
+
+		long max = maxLatencyNanos.get(slot);
+		while (latency > max && !maxLatencyNanos.compareAndSet(slot, max, latency)) {
+			max = maxLatencyNanos.get(slot);
+		}
+	}
+
+	/**
+	 * records a user losing their place to a user of a higher class
+	 *
+	 * @param scope where the user lost their place
+	 * @param priority class of the user who lost their place
+	 */
+	public void recordPreemption(Scope scope, Priority priority) {
+		preempted[slot(scope, priority)].increment();
+	}
+
+	/**
+	 * gets the number of users admitted
+	 *
+	 * @param scope where the admissions happened
+	 * @param priority class of the users
+	 * @return number admitted
+	 */
+	public long getAdmitted(Scope scope, Priority priority) {
+		return admitted[slot(scope, priority)].sum();
+	}
+
+	/**
+	 * gets the number of users rejected
+	 *
+	 * @param scope where the rejections happened
+	 * @param priority class of the users
+	 * @return number rejected
+	 */
+	public long getRejected(Scope scope, Priority priority) {
+		return rejected[slot(scope, priority)].sum();
+	}
+
+	/**
+	 * gets the number of users who lost their place to a higher class
+	 *
+	 * @param scope where the users lost their place
+	 * @param priority class of the users
+	 * @return number preempted
+	 */
+	public long getPreempted(Scope scope, Priority priority) {
+		return preempted[slot(scope, priority)].sum();
+	}
+
+	/**
+	 * gets the average time an admission decision took
+	 *
+	 * @param scope where the admissions happened
+	 * @param priority class of the users
+	 * @return average latency in nanoseconds
+	 */
+	public double getAverageLatencyNanos(Scope scope, Priority priority) {
+		int slot = slot(scope, priority);
+		long decisions = admitted[slot].sum() + rejected[slot].sum();
+		return decisions == 0 ? 0 : (double) latencyNanos[slot].sum() / decisions;
+	}
+
+	/**
+	 * gets the longest time an admission decision took
+	 *
+	 * @param scope where the admissions happened
+	 * @param priority class of the users
+	 * @return longest latency in nanoseconds
+	 */
+	public long getMaxLatencyNanos(Scope scope, Priority priority) {
+		return maxLatencyNanos.get(slot(scope, priority));
+	}
+
+	/**
+	 * builds a report of every scope and class that saw an admission attempt
+	 *
+	 * @return the report
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder(String.format("%-7s %-12s %10s %10s %10s %14s %14s%n",
+				"scope", "class", "admitted", "rejected", "preempted", "avg us", "max us"));
+
+		for (Scope scope : Scope.values()) {
+			for (Priority priority : Priority.values()) {
+				if (getAdmitted(scope, priority) + getRejected(scope, priority) == 0) {
+					continue;
+				}
+				report.append(String.format("%-7s %-12s %10d %10d %10d %14.1f %14.1f%n", scope, priority,
+						getAdmitted(scope, priority), getRejected(scope, priority),
+						getPreempted(scope, priority), getAverageLatencyNanos(scope, priority) / 1e3,
+						getMaxLatencyNanos(scope, priority) / 1e3));
+			}
+		}
+		return report.toString();
+	}
+
+}
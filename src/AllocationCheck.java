@@ -0,0 +1,116 @@
+/**
+ * This class checks the admission paths and the user loop allocate nothing once warmed up.
+ * Each operation is run until compiled, then run again while the bytes allocated by the thread
+ * are counted, and anything above zero bytes per operation fails the check. Logging is switched
+ * off as printing has to build its message, and users do not greet each other as a direct
+ * message is a new object by design.
+ */
+public class AllocationCheck {
+
+	/**
+	 * times each operation is run before counting
+	 */
+	private static final int WARM_UP = 1_000_000;
+
+	/**
+	 * runs every check
+	 *
+	 * @param args CLI arguments, optionally the number of operations counted
+	 */
+	public static void main(String[] args) {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		if (PerformanceSuite.allocatedBytes() < 0) {
+			System.out.println("This JVM cannot count allocated bytes, nothing checked.");
+			return;
+		}
+
+		ChatLog.setEnabled(false);
+		ChatServer server = new ChatServer(4, 4, 2, new Admin("Allocation"));
+		for (ChatRoom room : server.getChatRooms()) {
+			room.open();
+		}
+		//quotas make every admission count the members of each class
+		server.setReservedCapacity(Priority.PREMIUM, 1);
+		server.getMainRoom().setReservedCapacity(Priority.PREMIUM, 1);
+		User user = new User(1, server);
+		User other = new User(2, server);
+
+		boolean passed = true;
+		passed &= check("join, enter rooms and leave", operations, () -> {
+			server.join(user);
+			server.joinMainChatRoom(user);
+			server.getMainRoom().leaveRoom(user);
+			server.joinRandomChatRoom(user);
+			server.leaveChatRoom(user);
+		});
+		passed &= check("join with main room and leave", operations, () -> {
+			server.joinWithMainRoom(user);
+			server.leave(user);
+		});
+
+		ChatServer full = new ChatServer(1, 2, 1, new Admin("Full"));
+		full.join(other);
+		User turnedAway = new User(3, full);
+		passed &= check("rejected join", operations, () -> full.join(turnedAway));
+
+		int oldSleepScale = User.getSleepScale();
+		int oldGreetingOdds = User.getGreetingOdds();
+		User.setSleepScale(0);
+		User.setGreetingOdds(0);
+		//the loop ends once the user no longer wants to chat, so a user wanting to chat a lot runs it many times.
+		//several users warm up so the whole of run is compiled, not just the loop
+		for (int i = 0; i < 10; i++) {
+			User warmUp = new User(10 + i, server);
+			warmUp.setWantToChat(WARM_UP * 4 / 10);
+			warmUp.run();
+		}
+		User looping = new User(5, server);
+		looping.setWantToChat(operations * 4);
+		long before = PerformanceSuite.allocatedBytes();
+		looping.run();
+		passed &= report("user loop", operations, PerformanceSuite.allocatedBytes() - before);
+		User.setSleepScale(oldSleepScale);
+		User.setGreetingOdds(oldGreetingOdds);
+
+		ChatLog.setEnabled(true);
+		if (!passed) {
+			System.out.println("FAILED: an operation allocated in steady state");
+			System.exit(1);
+		}
+		System.out.println("No allocation in steady state.");
+	}
+
+	/**
+	 * runs an operation until warmed up, then counts the bytes allocated over a number of runs
+	 *
+	 * @param name name of the operation
+	 * @param operations number of runs counted
+	 * @param operation operation being checked
+	 * @return whether nothing was allocated
+	 */
+	private static boolean check(String name, int operations, Runnable operation) {
+		for (int i = 0; i < WARM_UP; i++) {
+			operation.run();
+		}
+
+		long before = PerformanceSuite.allocatedBytes();
+		for (int i = 0; i < operations; i++) {
+			operation.run();
+		}
+		return report(name, operations, PerformanceSuite.allocatedBytes() - before);
+	}
+
+	/**
+	 * prints the bytes an operation allocated
+	 *
+	 * @param name name of the operation
+	 * @param operations number of runs counted
+	 * @param bytes bytes allocated over the runs
+	 * @return whether nothing was allocated
+	 */
+	private static boolean report(String name, int operations, long bytes) {
+		System.out.printf("%-32s %10.2f bytes/op %12d bytes%n", name, (double) bytes / operations, bytes);
+		return bytes == 0;
+	}
+
+}
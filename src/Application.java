@@ -21,12 +21,16 @@ public class Application {
         ArrayList<Thread> threads = new ArrayList<Thread>();
         main.start();
 
-        // Create 20 users with random UserIDs (1-100) and start their threads
+        // Keep one place for premium users, who may also push best effort users out when full
+        server.setReservedCapacity(Priority.PREMIUM, 1);
+
+        // Create 20 users with random UserIDs (1-100) and start their threads, every fifth is premium
         for (int i = 0; i < 20; i++) {
             int id = (int) (Math.random() * (100 - 1 + 1) + 1);
-            User user = new User(id, server);
+            User user = new User(id, server, i % 5 == 0 ? Priority.PREMIUM : Priority.BEST_EFFORT);
 
             Thread userThread = new Thread(user);
+            threads.add(userThread);
             userThread.start();
         }
 
@@ -35,6 +39,13 @@ public class Application {
             thread.join();
         }
         main.join();
+
+        System.out.println(server.getAdmissionMetrics().report());
+
+        // Show where threads waited on the server and room locks, when run with -Dchat.profile=true
+        if (ContentionProfiler.ENABLED) {
+            System.out.println(ContentionProfiler.report(10));
+        }
     }
 
 }
\ No newline at end of file
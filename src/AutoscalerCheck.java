@@ -0,0 +1,137 @@
+import java.util.List;
+
+/**
+ * This class checks the room autoscaler. Samples are taken by hand with no cooldown so each one
+ * acts at once. Busy rooms must open a closed room and then add a new one, quiet rooms must close
+ * the emptiest room with its users moved to another, and a room whose users have nowhere to go
+ * must stay open with its users still in it.
+ */
+public class AutoscalerCheck {
+
+	/**
+	 * runs every check
+	 *
+	 * @param args CLI arguments, not used
+	 */
+	public static void main(String[] args) {
+		ChatLog.setEnabled(false);
+		checkScaleUp();
+		checkScaleDown();
+		checkScaleDownWithoutRoom();
+		System.out.println("Autoscaler opens, adds and closes rooms without losing users.");
+	}
+
+	/**
+	 * checks busy rooms first open the closed room, then add a room once all are open
+	 */
+	private static void checkScaleUp() {
+		ChatServer server = new ChatServer(100, 3, 1, new Admin("Autoscaler"));
+		List<ChatRoom> rooms = server.getChatRooms();
+		rooms.get(1).open();
+		RoomAutoscaler autoscaler = autoscaler(server);
+		autoscaler.setHighOccupancy(0.3);
+
+		fill(server, rooms.get(1), 1, 40);
+		autoscaler.sample();
+		expect(rooms.get(2).isOpen() && autoscaler.getScaledUp() == 1, "a busy room opens the closed room");
+
+		fill(server, rooms.get(2), 41, 20);
+		autoscaler.sample();
+		expect(server.getChatRooms().size() == 4 && server.getChatRooms().get(3).isOpen()
+				&& autoscaler.getScaledUp() == 2, "busy rooms add a room once all are open");
+
+		autoscaler.sample();
+		expect(autoscaler.getScaledUp() == 2, "rooms no longer busy are left alone");
+	}
+
+	/**
+	 * checks quiet rooms close the emptiest room and its users end up in the other room
+	 */
+	private static void checkScaleDown() {
+		ChatServer server = new ChatServer(100, 3, 1, new Admin("Autoscaler"));
+		List<ChatRoom> rooms = server.getChatRooms();
+		rooms.get(1).open();
+		rooms.get(2).open();
+		RoomAutoscaler autoscaler = autoscaler(server);
+
+		fill(server, rooms.get(1), 1, 10);
+		User[] moved = fill(server, rooms.get(2), 11, 5);
+		autoscaler.sample();
+		expect(!rooms.get(2).isOpen() && autoscaler.getScaledDown() == 1,
+				"quiet rooms close the emptiest room");
+		expect(rooms.get(1).getUsers().size() == 15, "the users of the closed room are moved");
+		for (User user : moved) {
+			expect(user.isJoinedRandomRoom() && rooms.get(1).hasMember(user.getUserID()),
+					"user " + user.getUserID() + " is in the room they were moved to");
+		}
+
+		autoscaler.sample();
+		expect(rooms.get(1).isOpen() && autoscaler.getScaledDown() == 1, "the last open room is kept");
+	}
+
+	/**
+	 * checks a room whose users cannot be moved as the other room is full stays open with them in it
+	 */
+	private static void checkScaleDownWithoutRoom() {
+		ChatServer server = new ChatServer(4, 3, 1, new Admin("Autoscaler"));
+		List<ChatRoom> rooms = server.getChatRooms();
+		rooms.get(1).open();
+		rooms.get(2).open();
+		RoomAutoscaler autoscaler = autoscaler(server);
+		autoscaler.setLowOccupancy(0.9);
+
+		fill(server, rooms.get(1), 1, 3);
+		User[] stuck = fill(server, rooms.get(2), 4, 1);
+		autoscaler.sample();
+		expect(rooms.get(2).isOpen() && autoscaler.getScaledDown() == 0, "a room with users left stays open");
+		expect(stuck[0].isJoinedRandomRoom() && rooms.get(2).hasMember(stuck[0].getUserID())
+				&& rooms.get(1).getUsers().size() == 3, "a user with nowhere to go stays in their room");
+	}
+
+	/**
+	 * makes an autoscaler that acts on every sample
+	 *
+	 * @param server server whose rooms are scaled
+	 * @return the autoscaler
+	 */
+	private static RoomAutoscaler autoscaler(ChatServer server) {
+		RoomAutoscaler autoscaler = new RoomAutoscaler(server);
+		autoscaler.setStableSamples(1);
+		autoscaler.setCooldownMillis(0);
+		return autoscaler;
+	}
+
+	/**
+	 * joins users into the server and enters them into a room
+	 *
+	 * @param server server joined
+	 * @param room room entered
+	 * @param firstID id of the first user
+	 * @param count number of users
+	 * @return the users
+	 */
+	private static User[] fill(ChatServer server, ChatRoom room, int firstID, int count) {
+		User[] users = new User[count];
+		for (int i = 0; i < count; i++) {
+			users[i] = new User(firstID + i, server);
+			expect(server.join(users[i]) && room.enterRoom(users[i]),
+					"user " + (firstID + i) + " enters a room");
+			users[i].setJoinedRandomRoom(true);
+		}
+		return users;
+	}
+
+	/**
+	 * stops the checks with a failure if a condition does not hold
+	 *
+	 * @param condition condition checked
+	 * @param message what was expected
+	 */
+	private static void expect(boolean condition, String message) {
+		if (!condition) {
+			System.out.println("FAILED: " + message);
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class pools direct byte buffers of a fixed size so frames can be encoded and decoded
+ * without allocating a buffer per connection or per read. Buffers are created when the pool is
+ * empty and dropped when it is full, so the pool never blocks.
+ */
+public class BufferPool {
+
+	/**
+	 * size of every buffer in bytes
+	 */
+	private final int bufferSize;
+	/**
+	 * buffers ready to be acquired
+	 */
+	private final BlockingQueue<ByteBuffer> free;
+	/**
+	 * number of buffers created because the pool was empty
+	 */
+	private final AtomicLong created;
+
+	/**
+	 * creates a pool and fills it with buffers
+	 *
+	 * @param bufferSize size of every buffer in bytes
+	 * @param poolSize most buffers kept in the pool
+	 */
+	public BufferPool(int bufferSize, int poolSize) {
+		this.bufferSize = bufferSize;
+		this.free = new ArrayBlockingQueue<>(poolSize);
+		this.created = new AtomicLong();
+
+		for (int i = 0; i < poolSize; i++) {
+			free.offer(ByteBuffer.allocateDirect(bufferSize));
+		}
+	}
+
+	/**
+	 * takes a cleared buffer from the pool, creating one if the pool is empty
+	 *
+	 * @return a cleared buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			created.incrementAndGet();
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		return buffer;
+	}
+
+	/**
+	 * gives a buffer back to the pool, it must not be used afterwards
+	 *
+	 * @param buffer buffer being given back
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() == bufferSize) {
+			buffer.clear();
+			free.offer(buffer);
+		}
+	}
+
+	/**
+	 * gets the size of the buffers in this pool
+	 *
+	 * @return size of every buffer in bytes
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * gets the number of buffers ready to be acquired
+	 *
+	 * @return number of free buffers
+	 */
+	public int getFreeCount() {
+		return free.size();
+	}
+
+	/**
+	 * gets the number of buffers created because the pool was empty
+	 *
+	 * @return number of extra buffers created
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+}
@@ -0,0 +1,146 @@
+/**
+ * This class represents something that happened to a chat server or one of its rooms,
+ * events are published to the event bus of the server and delivered to its subscribers.
+ */
+public class ChatEvent {
+
+	/**
+	 * the kinds of event that can be published
+	 */
+	public enum Type {
+		SERVER_OPENED,
+		SERVER_DRAINING,
+		SERVER_CLOSED,
+		ROOM_OPENED,
+		ROOM_CLOSED,
+		USER_JOINED,
+		USER_LEFT,
+		USER_ENTERED_ROOM,
+		USER_LEFT_ROOM,
+		USER_BANNED,
+		USER_UNBANNED
+	}
+
+	/**
+	 * value used for the user or room id when the event is not about a user or room
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * position of this event in the order events were published
+	 */
+	private final long sequence;
+	/**
+	 * what happened
+	 */
+	private final Type type;
+	/**
+	 * id of the user the event is about
+	 */
+	private final int userID;
+	/**
+	 * id of the room the event is about
+	 */
+	private final int roomID;
+	/**
+	 * more about what happened, the class of a user who joined or when a ban ends, 0 otherwise
+	 */
+	private final long detail;
+	/**
+	 * when the event was published, in milliseconds since the epoch
+	 */
+	private final long timestamp;
+
+	/**
+	 * creates an event, all attributes are set
+	 *
+	 * @param sequence position of this event in the order events were published
+	 * @param type what happened
+	 * @param userID id of the user the event is about
+	 * @param roomID id of the room the event is about
+	 * @param timestamp when the event was published
+	 */
+	public ChatEvent(long sequence, Type type, int userID, int roomID, long timestamp) {
+		this(sequence, type, userID, roomID, 0, timestamp);
+	}
+
+	/**
+	 * creates an event with more about what happened, all attributes are set
+	 *
+	 * @param sequence position of this event in the order events were published
+	 * @param type what happened
+	 * @param userID id of the user the event is about
+	 * @param roomID id of the room the event is about
+	 * @param detail the priority class ordinal of a user who joined, or when a ban ends
+	 * @param timestamp when the event was published
+	 */
+	public ChatEvent(long sequence, Type type, int userID, int roomID, long detail, long timestamp) {
+		this.sequence = sequence;
+		this.type = type;
+		this.userID = userID;
+		this.roomID = roomID;
+		this.detail = detail;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * gets the position of this event in the order events were published
+	 *
+	 * @return sequence number of event
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * gets what happened
+	 *
+	 * @return type of event
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * gets the id of the user the event is about
+	 *
+	 * @return id of user, or none
+	 */
+	public int getUserID() {
+		return userID;
+	}
+
+	/**
+	 * gets the id of the room the event is about
+	 *
+	 * @return id of room, or none
+	 */
+	public int getRoomID() {
+		return roomID;
+	}
+
+	/**
+	 * gets more about what happened, for a user joining the ordinal of their priority class and
+	 * for a ban when it ends in milliseconds since the epoch, Long.MAX_VALUE if it lasts until lifted
+	 *
+	 * @return the detail, 0 for other events
+	 */
+	public long getDetail() {
+		return detail;
+	}
+
+	/**
+	 * gets when the event was published
+	 *
+	 * @return publish time in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + sequence + " " + type + " (user " + userID + ", room " + roomID + ")";
+	}
+
+}
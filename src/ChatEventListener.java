@@ -0,0 +1,17 @@
+import java.util.List;
+
+/**
+ * This interface is implemented by anything wanting to react to events published
+ * on an event bus, such as metrics, persistence or notifications.
+ */
+public interface ChatEventListener {
+
+	/**
+	 * called on the event bus executor with the next batch of events for this listener,
+	 * events are given in the order they were published
+	 *
+	 * @param events the batch of events, only valid for the duration of the call
+	 */
+	void onEvents(List<ChatEvent> events);
+
+}
@@ -0,0 +1,97 @@
+/**
+ * This class is where the server, rooms and users write what they are doing. Output goes to
+ * standard out by default and can be switched off, which simulations with many users need as
+ * printing every admission serialises all threads on the console.
+ */
+public final class ChatLog {
+
+	/**
+	 * whether messages are printed
+	 */
+	private static volatile boolean enabled = true;
+
+	/**
+	 * the log only has static methods
+	 */
+	private ChatLog() {
+	}
+
+	/**
+	 * prints a message if the log is switched on
+	 *
+	 * @param message message being printed
+	 */
+	public static void println(String message) {
+		if (enabled) {
+			System.out.println(message);
+		}
+	}
+
+	/**
+	 * prints a message built from text and a number, the message is only built
+	 * if the log is switched on so nothing is allocated when it is off
+	 *
+	 * @param first text before the number
+	 * @param value number in the message
+	 * @param second text after the number
+	 */
+	public static void println(String first, int value, String second) {
+		if (enabled) {
+			System.out.println(first + value + second);
+		}
+	}
+
+	/**
+	 * prints a message built from text and two numbers, the message is only built
+	 * if the log is switched on so nothing is allocated when it is off
+	 *
+	 * @param first text before the first number
+	 * @param value first number in the message
+	 * @param second text between the numbers
+	 * @param other second number in the message
+	 * @param third text after the second number
+	 */
+	public static void println(String first, int value, String second, int other, String third) {
+		if (enabled) {
+			System.out.println(first + value + second + other + third);
+		}
+	}
+
+	/**
+	 * prints a message built from text and three numbers, the message is only built
+	 * if the log is switched on so nothing is allocated when it is off
+	 *
+	 * @param first text before the first number
+	 * @param value first number in the message
+	 * @param second text between the first and second numbers
+	 * @param other second number in the message
+	 * @param third text between the second and third numbers
+	 * @param last third number in the message
+	 * @param fourth text after the third number
+	 */
+	public static void println(String first, int value, String second, int other, String third, int last,
+			String fourth) {
+		if (enabled) {
+			System.out.println(first + value + second + other + third + last + fourth);
+		}
+	}
+
+	/**
+	 * switches the log on or off
+	 *
+	 * @param enabled whether messages are printed
+	 */
+	public static void setEnabled(boolean enabled) {
+		ChatLog.enabled = enabled;
+	}
+
+	/**
+	 * gets whether the log is switched on
+	 *
+	 * @return whether messages are printed
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+}
@@ -0,0 +1,95 @@
+/**
+ * This class is a message posted to a chat room, it is kept in the room's history
+ * and can be found by searching the words in it.
+ */
+public class ChatMessage {
+
+	/**
+	 * position of this message in the order messages were posted to the room
+	 */
+	private final long sequence;
+	/**
+	 * id of the room the message was posted to
+	 */
+	private final int roomID;
+	/**
+	 * id of the user who posted the message
+	 */
+	private final int userID;
+	/**
+	 * text of the message
+	 */
+	private final String text;
+	/**
+	 * when the message was posted, in milliseconds since the epoch
+	 */
+	private final long timestamp;
+
+	/**
+	 * creates a message, all attributes are set
+	 *
+	 * @param sequence position of this message in the order messages were posted to the room
+	 * @param roomID id of the room the message was posted to
+	 * @param userID id of the user who posted the message
+	 * @param text text of the message
+	 * @param timestamp when the message was posted
+	 */
+	public ChatMessage(long sequence, int roomID, int userID, String text, long timestamp) {
+		this.sequence = sequence;
+		this.roomID = roomID;
+		this.userID = userID;
+		this.text = text;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * gets the position of this message in the order messages were posted to the room
+	 *
+	 * @return sequence number of message
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * gets the id of the room the message was posted to
+	 *
+	 * @return id of room
+	 */
+	public int getRoomID() {
+		return roomID;
+	}
+
+	/**
+	 * gets the id of the user who posted the message
+	 *
+	 * @return id of user
+	 */
+	public int getUserID() {
+		return userID;
+	}
+
+	/**
+	 * gets the text of the message
+	 *
+	 * @return text of message
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * gets when the message was posted
+	 *
+	 * @return milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return "ChatMessage[" + roomID + "#" + sequence + " " + userID + ": " + text + "]";
+	}
+
+}
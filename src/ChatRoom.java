@@ -1,5 +1,10 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is responsible for managing chat room, you can open, close
@@ -23,7 +28,60 @@ public class ChatRoom {
 	/**
 	 * whether this room is open or closed
 	 */
-	private boolean isOpen;
+	private volatile boolean isOpen;
+	/**
+	 * number of users in this room, readable without locking the room
+	 */
+	private final AtomicInteger occupancy;
+	/**
+	 * event bus this room publishes to, may be null
+	 */
+	private volatile EventBus eventBus;
+	/**
+	 * number of times a user was turned away from this room
+	 */
+	private final AtomicLong rejected;
+	/**
+	 * places reserved for users who have not entered yet
+	 */
+	private final ReservationTable reservations;
+	/**
+	 * users of a lower class chosen to make room for a reservation, by id of the user who reserved,
+	 * they are only moved out once the reservation is committed
+	 */
+	private final Map<Integer, User> pendingVictims;
+	/**
+	 * how long a reservation keeps a place free in milliseconds
+	 */
+	private long reservationTimeoutMillis = 1000;
+	/**
+	 * places set aside for each priority class
+	 */
+	private final int[] reservedCapacity;
+	/**
+	 * scratch counts of the members of each priority class, guarded by the room monitor
+	 */
+	private final int[] memberCounts;
+	/**
+	 * whether any places are set aside
+	 */
+	private boolean hasReservedCapacity;
+	/**
+	 * metrics admissions are recorded in, may be null
+	 */
+	private volatile AdmissionMetrics metrics;
+	/**
+	 * users kicked from the room, who cannot enter again until the kick runs out
+	 */
+	private final ModerationIndex kicks;
+	/**
+	 * users muted in the room, who may stay but not post
+	 */
+	private final ModerationIndex mutes;
+	/**
+	 * messages posted to the room and the index used to search them
+	 */
+	private final RoomHistory history;
 
 	/**
 	 * Used to initialise a chat room object, unique id and capacity of room is passed.
@@ -35,52 +93,537 @@ public class ChatRoom {
 		this.roomID = chatRoomID;
 		this.capacity = capacity;
 		this.users = new ArrayList<>();
+		this.occupancy = new AtomicInteger();
+		this.rejected = new AtomicLong();
+		this.reservations = new ReservationTable();
+		this.pendingVictims = new HashMap<>();
+		this.reservedCapacity = new int[Priority.values().length];
+		this.memberCounts = new int[Priority.values().length];
+		this.kicks = new ModerationIndex();
+		this.mutes = new ModerationIndex();
+		this.history = new RoomHistory(chatRoomID);
 	}
 
 	/**
 	 * opens the chat room
 	 */
-	public synchronized void open() {
-		if (!isOpen) {
-			System.out.println("Chat Room " + roomID + " is being opened.");
-			isOpen = true;
+	public void open() {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.ROOM_OPEN, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.ROOM_OPEN, this, arrived);
+			try {
+				if (!isOpen) {
+					ChatLog.println("Chat Room " + roomID + " is being opened.");
+					isOpen = true;
+					publish(ChatEvent.Type.ROOM_OPENED, ChatEvent.NONE);
+				}
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.ROOM_OPEN, this, arrived, acquired);
+			}
 		}
 	}
 
 	/**
 	 * leaves all users from room and closes the room
 	 */
-	public synchronized void close() {
-		for (int i = 0; i < users.size(); i++) {
-			leaveRoom(users.get(i));
+	public void close() {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.ROOM_CLOSE, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.ROOM_CLOSE, this, arrived);
+			try {
+				evictAll();
+
+				if (isOpen) {
+					ChatLog.println("Chat Room " + roomID + " is being closed.");
+					isOpen = false;
+					publish(ChatEvent.Type.ROOM_CLOSED, ChatEvent.NONE);
+				}
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.ROOM_CLOSE, this, arrived, acquired);
+			}
 		}
+	}
+
+	/**
+	 * leaves all users from room without closing it
+	 */
+	protected synchronized void evictAll() {
+		while (!users.isEmpty()) {
+			leaveRoom(users.get(users.size() - 1));
+		}
+	}
 
-		if (isOpen) {
-			System.out.println("Chat Room " + roomID + " is being closed.");
-			isOpen = false;
+	/**
+	 * attempts to enter user into room, the room must be open, the user must not already be in room,
+	 * capacity must not be reached and the user must be unique. when the room is full a user of a
+	 * lower priority class is moved out to make room.
+	 *
+	 * @param user user attempting to join room
+	 * @return whether user joined the room or not
+	 */
+	public boolean enterRoom(User user) {
+		//checked before the room is locked, a kicked user never waits on the room
+		if (kicks.contains(user.getUserID())) {
+			recordRejection();
+			recordAdmission(user, false, System.nanoTime());
+			ChatLog.println("User ", user.getUserID(), " is kicked from Chat Room ", roomID, ".");
+			return false;
 		}
+
+		return enterRoom(user, true);
 	}
 
 	/**
-	 * attempts to enter user into room, the user must not already be in room, capacity must not be
-	 * reached and the user must be unique
+	 * attempts to enter user into room, see enter room
 	 *
 	 * @param user user attempting to join room
+	 * @param mayPreempt whether a user of a lower class may be moved out to make room
 	 * @return whether user joined the room or not
 	 */
-	public synchronized boolean enterRoom(User user) {
-		if (!users.contains(user) && users.size() + 1 < capacity && hasUniqueID(user)) {
-			users.add(user);
-			System.out.println("User " + user.getUserID() + " joined Chat Room " + roomID
-					+ ". (" + user.getWantToChat() + ")");
+	protected boolean enterRoom(User user, boolean mayPreempt) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.ROOM_ENTER, this);
+		long started = System.nanoTime();
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.ROOM_ENTER, this, arrived);
+			try {
+				long now = System.nanoTime();
+				if (isEligible(user, now) && (hasRoomFor(user.getPriority(), now)
+						|| (mayPreempt && preemptFor(user, now)))) {
+					admit(user);
+					recordAdmission(user, true, started);
+
+					return true;
+				} else {
+					rejected.incrementAndGet();
+					recordAdmission(user, false, started);
+					ChatLog.println("User ", user.getUserID(), " not joined Chat Room ", roomID, ". (",
+							user.getWantToChat(), ")");
+
+					return false;
+				}
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.ROOM_ENTER, this, arrived, acquired);
+			}
+		}
+	}
+
+	/**
+	 * checks whether a user may enter the room at all, the room must be open and the user must
+	 * not be kicked, be in the room or hold a reservation for it. the caller must hold the room monitor.
+	 *
+	 * @param user user attempting to join room
+	 * @param now the current System.nanoTime
+	 * @return whether the user may enter
+	 */
+	private boolean isEligible(User user, long now) {
+		//checked again under the lock in case the user was kicked while waiting for it
+		return isOpen && !kicks.contains(user.getUserID()) && !users.contains(user) && hasUniqueID(user)
+				&& !reservations.holds(user.getUserID(), now) && !isPlacedElsewhere(user.getUserID());
+	}
+
+	/**
+	 * checks whether a user with the id is in, or holds a place in, another room standing in for
+	 * this one, as the shards of a sharded room do. the caller must hold the room monitor.
+	 *
+	 * @param userID id of the user
+	 * @return whether the user is placed elsewhere, never for a room on its own
+	 */
+	protected boolean isPlacedElsewhere(int userID) {
+		return false;
+	}
+
+	/**
+	 * checks whether a user would be turned away only because the room has no free place for them
+	 *
+	 * @param user user attempting to join room
+	 * @return whether the user may enter but the room is full
+	 */
+	protected synchronized boolean isFullFor(User user) {
+		long now = System.nanoTime();
+		return isEligible(user, now) && !hasRoomFor(user.getPriority(), now);
+	}
 
-			return true;
-		} else {
-			System.out.println("User " + user.getUserID() + " not joined Chat Room " + roomID
-					+ ". (" + user.getWantToChat() + ")");
+	/**
+	 * checks whether a place in the room is reserved for a user
+	 *
+	 * @param userID id of the user
+	 * @return whether a reservation that has not run out is held
+	 */
+	protected synchronized boolean holdsReservation(int userID) {
+		return reservations.holds(userID, System.nanoTime());
+	}
 
+	/**
+	 * checks whether there is a free place for a user of a class, places reserved for other users
+	 * and unused places set aside for higher classes count as taken. the caller must hold the
+	 * room monitor.
+	 *
+	 * @param priority class of the user
+	 * @param now the current System.nanoTime
+	 * @return whether there is a free place
+	 */
+	private boolean hasRoomFor(Priority priority, long now) {
+		return users.size() + reservations.active(now) + unusedReservedCapacity(priority) + 1 < capacity;
+	}
+
+	/**
+	 * counts the places set aside for classes above a class that are not in use
+	 *
+	 * @param priority class of the user
+	 * @return number of places the user cannot take
+	 */
+	private int unusedReservedCapacity(Priority priority) {
+		if (!hasReservedCapacity) {
+			return 0;
+		}
+
+		//counted into a reused array as this runs inside every admission
+		int[] members = memberCounts;
+		Arrays.fill(members, 0);
+		for (int i = 0; i < users.size(); i++) {
+			User member = users.get(i);
+			members[member.getPriority().ordinal()]++;
+		}
+
+		int unused = 0;
+		for (int i = 0; i < priority.ordinal(); i++) {
+			unused += Math.max(0, reservedCapacity[i] - members[i]);
+		}
+		return unused;
+	}
+
+	/**
+	 * moves the most recent user of the lowest class below the user's class out of the room,
+	 * if doing so makes a place for the user. the caller must hold the room monitor.
+	 *
+	 * @param user user a place is wanted for
+	 * @param now the current System.nanoTime
+	 * @return whether a place was made
+	 */
+	private boolean preemptFor(User user, long now) {
+		User victim = findVictim(user, now);
+		if (victim == null) {
 			return false;
 		}
+
+		evict(victim, user);
+		return true;
+	}
+
+	/**
+	 * finds the most recent user of the lowest class below the user's class, if moving them out
+	 * makes a place for the user. users already chosen for a reservation are not chosen again and
+	 * their places count as free. the caller must hold the room monitor.
+	 *
+	 * @param user user a place is wanted for
+	 * @param now the current System.nanoTime
+	 * @return the user to move out, null if there is none
+	 */
+	private User findVictim(User user, long now) {
+		if (!pendingVictims.isEmpty()) {
+			//victims of reservations that ran out or who already left are no longer pending
+			pendingVictims.entrySet().removeIf(pending -> !reservations.holds(pending.getKey(), now)
+					|| !users.contains(pending.getValue()));
+		}
+
+		//places set aside for higher classes stay taken, so moving one user out may not be enough
+		if (users.size() - pendingVictims.size() + reservations.active(now)
+				+ unusedReservedCapacity(user.getPriority()) >= capacity) {
+			return null;
+		}
+
+		User victim = null;
+		for (int i = users.size() - 1; i >= 0; i--) {
+			User member = users.get(i);
+			if (user.getPriority().isHigherThan(member.getPriority())
+					&& (victim == null || victim.getPriority().isHigherThan(member.getPriority()))
+					&& (pendingVictims.isEmpty() || !pendingVictims.containsValue(member))) {
+				victim = member;
+			}
+		}
+		return victim;
+	}
+
+	/**
+	 * moves out a user chosen to make room for another, the caller must hold the room monitor
+	 *
+	 * @param victim user being moved out
+	 * @param user user the place is made for
+	 */
+	private void evict(User victim, User user) {
+		users.remove(victim);
+		occupancy.decrementAndGet();
+		victim.setJoinedMainRoom(false);
+		victim.setJoinedRandomRoom(false);
+		publish(ChatEvent.Type.USER_LEFT_ROOM, victim.getUserID());
+		AdmissionMetrics recorder = metrics;
+		if (recorder != null) {
+			recorder.recordPreemption(AdmissionMetrics.Scope.ROOM, victim.getPriority());
+		}
+		ChatLog.println("User ", victim.getUserID(), " moved out of Chat Room ", roomID, " for User ",
+				user.getUserID(), ".");
+	}
+
+	/**
+	 * kicks a user out of the room, they cannot enter again until the kick runs out or is lifted
+	 *
+	 * @param user user being kicked
+	 * @param durationMillis how long the kick lasts, 0 or less until it is lifted
+	 * @return whether the user was in the room
+	 */
+	public boolean kick(User user, long durationMillis) {
+		kicks.add(user.getUserID(), durationMillis);
+		boolean wasMember = leaveRoom(user);
+		if (wasMember) {
+			user.setJoinedMainRoom(false);
+			user.setJoinedRandomRoom(false);
+		}
+
+		ChatLog.println("User ", user.getUserID(), " kicked from Chat Room ", roomID, ".");
+		return wasMember;
+	}
+
+	/**
+	 * lets a kicked user enter the room again
+	 *
+	 * @param userID id of the user
+	 * @return whether the user was kicked
+	 */
+	public boolean unkick(int userID) {
+		return kicks.remove(userID);
+	}
+
+	/**
+	 * checks whether a user is kicked from the room, without locking
+	 *
+	 * @param userID id of the user
+	 * @return whether the user is kicked
+	 */
+	public boolean isKicked(int userID) {
+		return kicks.contains(userID);
+	}
+
+	/**
+	 * mutes a user in the room, they may stay but not post until the mute runs out or is lifted
+	 *
+	 * @param userID id of the user
+	 * @param durationMillis how long the mute lasts, 0 or less until it is lifted
+	 */
+	public void mute(int userID, long durationMillis) {
+		mutes.add(userID, durationMillis);
+		ChatLog.println("User ", userID, " muted in Chat Room ", roomID, ".");
+	}
+
+	/**
+	 * lifts the mute on a user
+	 *
+	 * @param userID id of the user
+	 * @return whether the user was muted
+	 */
+	public boolean unmute(int userID) {
+		return mutes.remove(userID);
+	}
+
+	/**
+	 * checks whether a user is muted in the room, without locking
+	 *
+	 * @param userID id of the user
+	 * @return whether the user is muted
+	 */
+	public boolean isMuted(int userID) {
+		return mutes.contains(userID);
+	}
+
+	/**
+	 * posts a message to the room, the room must be open and the user must be in it and not muted
+	 *
+	 * @param user user posting the message
+	 * @param text text of the message
+	 * @return whether the message was posted
+	 */
+	public boolean post(User user, String text) {
+		if (!isOpen || mutes.contains(user.getUserID()) || !hasMember(user.getUserID())) {
+			ChatLog.println("User ", user.getUserID(), " could not post to Chat Room ", roomID, ".");
+			return false;
+		}
+
+		history.append(user.getUserID(), text);
+		return true;
+	}
+
+	/**
+	 * finds the messages posted to the room within a time containing every word of a query
+	 *
+	 * @param query words searched for, case and punctuation are ignored
+	 * @param fromMillis earliest time a message may have been posted
+	 * @param toMillis latest time a message may have been posted
+	 * @param limit most messages returned
+	 * @return the messages found, newest first
+	 */
+	public List<ChatMessage> search(String query, long fromMillis, long toMillis, int limit) {
+		return history.search(query, fromMillis, toMillis, limit);
+	}
+
+	/**
+	 * gets the messages posted to the room
+	 *
+	 * @return history of the room
+	 */
+	public RoomHistory getHistory() {
+		return history;
+	}
+
+	/**
+	 * records an admission decision in the room metrics, if the room has any
+	 *
+	 * @param user user who attempted to enter
+	 * @param entered whether the user entered
+	 * @param started when the attempt started, from System.nanoTime
+	 */
+	protected void recordAdmission(User user, boolean entered, long started) {
+		AdmissionMetrics recorder = metrics;
+		if (recorder != null) {
+			recorder.record(AdmissionMetrics.Scope.ROOM, user.getPriority(), entered, started);
+		}
+	}
+
+	/**
+	 * puts a user in the room as another server already decided, as a standby does for the rooms
+	 * its primary's users entered. none of the admission checks are made, the room only must be
+	 * open and the user not in it.
+	 *
+	 * @param user user being put in the room
+	 * @return whether the user was put in the room
+	 */
+	public boolean restore(User user) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.ROOM_ENTER, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.ROOM_ENTER, this, arrived);
+			try {
+				if (!isOpen || users.contains(user)) {
+					return false;
+				}
+
+				admit(user);
+				return true;
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.ROOM_ENTER, this, arrived, acquired);
+			}
+		}
+	}
+
+	/**
+	 * adds a user to the room, the caller must hold the room monitor
+	 *
+	 * @param user user entering the room
+	 */
+	private void admit(User user) {
+		users.add(user);
+		occupancy.incrementAndGet();
+		publish(ChatEvent.Type.USER_ENTERED_ROOM, user.getUserID());
+		ChatLog.println("User ", user.getUserID(), " joined Chat Room ", roomID, ". (", user.getWantToChat(), ")");
+	}
+
+	/**
+	 * reserves a place in the room for a user, the place is kept free until the reservation is
+	 * committed, released or the reservation timeout passes. the same checks as enter room are made,
+	 * a user of a lower class is chosen to make room but only moved out when the reservation is committed.
+	 *
+	 * @param user user the place is reserved for
+	 * @return whether a place was reserved
+	 */
+	public boolean reserve(User user) {
+		if (kicks.contains(user.getUserID())) {
+			recordRejection();
+			recordAdmission(user, false, System.nanoTime());
+			return false;
+		}
+
+		return reserve(user, true);
+	}
+
+	/**
+	 * reserves a place in the room for a user, see reserve. a place that cannot be reserved counts
+	 * as a rejected admission, the admission itself is counted when the reservation is committed.
+	 *
+	 * @param user user the place is reserved for
+	 * @param mayPreempt whether a user of a lower class may be moved out to make room
+	 * @return whether a place was reserved
+	 */
+	protected boolean reserve(User user, boolean mayPreempt) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.ROOM_RESERVE, this);
+		long started = System.nanoTime();
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.ROOM_RESERVE, this, arrived);
+			try {
+				long now = System.nanoTime();
+				User victim = null;
+				if (isEligible(user, now) && (hasRoomFor(user.getPriority(), now)
+						|| (mayPreempt && (victim = findVictim(user, now)) != null))) {
+					if (victim != null) {
+						pendingVictims.put(user.getUserID(), victim);
+					}
+					reservations.reserve(user.getUserID(), now + reservationTimeoutMillis * 1_000_000L);
+					return true;
+				}
+
+				rejected.incrementAndGet();
+				recordAdmission(user, false, started);
+				return false;
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.ROOM_RESERVE, this, arrived, acquired);
+			}
+		}
+	}
+
+	/**
+	 * enters a user into the place reserved for them, moving out the user chosen to make room if any
+	 *
+	 * @param user user whose reservation is committed
+	 * @return whether the user entered, false if the reservation ran out or the room closed
+	 */
+	public boolean commitReservation(User user) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.ROOM_COMMIT, this);
+		long started = System.nanoTime();
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.ROOM_COMMIT, this, arrived);
+			try {
+				User victim = pendingVictims.isEmpty() ? null : pendingVictims.remove(user.getUserID());
+				if (!reservations.remove(user.getUserID(), System.nanoTime()) || !isOpen) {
+					recordAdmission(user, false, started);
+					return false;
+				}
+
+				if (victim != null && users.contains(victim)) {
+					evict(victim, user);
+				}
+				admit(user);
+				recordAdmission(user, true, started);
+				return true;
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.ROOM_COMMIT, this, arrived, acquired);
+			}
+		}
+	}
+
+	/**
+	 * gives up the place reserved for a user, the user chosen to make room for them stays
+	 *
+	 * @param user user whose reservation is released
+	 */
+	public void releaseReservation(User user) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.ROOM_RELEASE, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.ROOM_RELEASE, this, arrived);
+			try {
+				reservations.remove(user.getUserID(), System.nanoTime());
+				if (!pendingVictims.isEmpty()) {
+					pendingVictims.remove(user.getUserID());
+				}
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.ROOM_RELEASE, this, arrived, acquired);
+			}
+		}
 	}
 
 	/**
@@ -91,7 +634,8 @@ public class ChatRoom {
 	 * @return whether the user is unique
 	 */
 	private boolean hasUniqueID(User user) {
-		for (User user1 : users) {
+		for (int i = 0; i < users.size(); i++) {
+			User user1 = users.get(i);
 			if (user1.getUserID() == user.getUserID()) {
 				return false;
 			}
@@ -99,14 +643,60 @@ public class ChatRoom {
 		return true;
 	}
 
+	/**
+	 * checks whether a user with the id is in this room
+	 *
+	 * @param userID id of the user
+	 * @return whether the user is in this room
+	 */
+	public synchronized boolean hasMember(int userID) {
+		for (int i = 0; i < users.size(); i++) {
+			User user = users.get(i);
+			if (user.getUserID() == userID) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * removes user from room
+	 *
+	 * @param user user leaving the room
+	 * @return whether the user was in the room
+	 */
+	public boolean leaveRoom(User user) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.ROOM_LEAVE, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.ROOM_LEAVE, this, arrived);
+			try {
+				if (users.contains(user)) {
+					users.remove(user);
+					occupancy.decrementAndGet();
+					publish(ChatEvent.Type.USER_LEFT_ROOM, user.getUserID());
+					ChatLog.println("User ", user.getUserID(), " left Chat Room ", roomID, ". (",
+							user.getWantToChat(), ")");
+
+					return true;
+				}
+
+				return false;
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.ROOM_LEAVE, this, arrived, acquired);
+			}
+		}
+	}
+
+	/**
+	 * publishes an event about this room if the room has an event bus
+	 *
+	 * @param type what happened
+	 * @param userID id of the user the event is about, or none
 	 */
-	public void leaveRoom(User user) {
-		if (users.contains(user)) {
-			users.remove(user);
-			System.out.println("User " + user.getUserID() + " left Chat Room " + roomID
-					+ ". (" + user.getWantToChat() + ")");
+	private void publish(ChatEvent.Type type, int userID) {
+		EventBus bus = eventBus;
+		if (bus != null) {
+			bus.publish(type, userID, roomID);
 		}
 	}
 
@@ -133,8 +723,9 @@ public class ChatRoom {
 	 *
 	 * @param users users in this room
 	 */
-	public void setUsers(List<User> users) {
+	public synchronized void setUsers(List<User> users) {
 		this.users = users;
+		occupancy.set(users.size());
 	}
 
 	/**
@@ -146,6 +737,110 @@ public class ChatRoom {
 		return users;
 	}
 
+	/**
+	 * gets the number of users in this room without locking it
+	 *
+	 * @return number of users in this room
+	 */
+	public int getOccupancy() {
+		return occupancy.get();
+	}
+
+	/**
+	 * sets the event bus this room publishes to
+	 *
+	 * @param eventBus event bus of the server this room belongs to
+	 */
+	public void setEventBus(EventBus eventBus) {
+		this.eventBus = eventBus;
+	}
+
+	/**
+	 * gets the event bus this room publishes to
+	 *
+	 * @return event bus of this room, may be null
+	 */
+	public EventBus getEventBus() {
+		return eventBus;
+	}
+
+	/**
+	 * counts a user being turned away from this room
+	 */
+	protected void recordRejection() {
+		rejected.incrementAndGet();
+	}
+
+	/**
+	 * gets the number of times a user was turned away from this room
+	 *
+	 * @return number of rejected entries
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * sets how long a reservation keeps a place free
+	 *
+	 * @param reservationTimeoutMillis reservation timeout in milliseconds
+	 */
+	public void setReservationTimeoutMillis(long reservationTimeoutMillis) {
+		this.reservationTimeoutMillis = reservationTimeoutMillis;
+	}
+
+	/**
+	 * gets how long a reservation keeps a place free
+	 *
+	 * @return reservation timeout in milliseconds
+	 */
+	public long getReservationTimeoutMillis() {
+		return reservationTimeoutMillis;
+	}
+
+	/**
+	 * sets aside places only a priority class, or a higher one, can take
+	 *
+	 * @param priority class the places are set aside for
+	 * @param places number of places
+	 */
+	public synchronized void setReservedCapacity(Priority priority, int places) {
+		reservedCapacity[priority.ordinal()] = places;
+
+		hasReservedCapacity = false;
+		for (int reserved : reservedCapacity) {
+			hasReservedCapacity |= reserved > 0;
+		}
+	}
+
+	/**
+	 * gets the places set aside for a priority class
+	 *
+	 * @param priority class the places are set aside for
+	 * @return number of places
+	 */
+	public synchronized int getReservedCapacity(Priority priority) {
+		return reservedCapacity[priority.ordinal()];
+	}
+
+	/**
+	 * sets the metrics admissions to this room are recorded in
+	 *
+	 * @param metrics admission metrics of the server this room belongs to
+	 */
+	public void setAdmissionMetrics(AdmissionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * gets the metrics admissions to this room are recorded in
+	 *
+	 * @return admission metrics of this room, may be null
+	 */
+	public AdmissionMetrics getAdmissionMetrics() {
+		return metrics;
+	}
+
 	/**
 	 * sets the capacity of this room
 	 *
@@ -1,6 +1,9 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This is the ChatServer object used to manage flow into the server,
@@ -9,10 +12,15 @@ import java.util.Random;
  */
 public class ChatServer {
 
+	/**
+	 * default number of shards the main room is split into
+	 */
+	public static final int DEFAULT_MAIN_ROOM_SHARDS = Runtime.getRuntime().availableProcessors();
+
 	/**
 	 * list of rooms in the server
 	 */
-	private ArrayList<ChatRoom> rooms;
+	private volatile ArrayList<ChatRoom> rooms;
 	/**
 	 * list of users in the server
 	 */
@@ -33,9 +41,63 @@ public class ChatServer {
 	 * main chat room of the server
 	 */
 	private ChatRoom mainRoom;
+	/**
+	 * whether the server is draining, a draining server admits nobody new
+	 */
+	private volatile boolean isDraining;
+	/**
+	 * how long the last drain took in milliseconds
+	 */
+	private volatile long lastDrainMillis;
+	/**
+	 * who is online and how full each room is, queried without locking the server
+	 */
+	private final PresenceIndex presence;
+	/**
+	 * event bus server and room events are published to
+	 */
+	private final EventBus eventBus;
+	/**
+	 * places reserved for users who have not been admitted yet
+	 */
+	private final ReservationTable reservations;
+	/**
+	 * users of a lower class chosen to make room for a reservation, by id of the user who reserved,
+	 * they are only removed once the reservation is committed
+	 */
+	private final Map<Integer, User> pendingVictims;
+	/**
+	 * how long a reservation keeps a place free in milliseconds
+	 */
+	private long reservationTimeoutMillis = 1000;
+	/**
+	 * places set aside for each priority class
+	 */
+	private final int[] reservedCapacity;
+	/**
+	 * scratch counts of the members of each priority class, guarded by the server monitor
+	 */
+	private final int[] memberCounts;
+	/**
+	 * whether any places are set aside
+	 */
+	private boolean hasReservedCapacity;
+	/**
+	 * admissions, rejections and preemptions of the server and its rooms by priority class
+	 */
+	private final AdmissionMetrics metrics;
+	/**
+	 * mailboxes of direct messages, sent and read without locking the server
+	 */
+	private final MailboxIndex mailboxes;
+	/**
+	 * users banned from the server, checked on every admission without locking
+	 */
+	private final ModerationIndex bans;
 
 	/**
 	 * constructor for a chat server, all required attributes are set.
+	 * the main room is split into one shard per processor.
 	 * afterwards the server is opened/
 	 *
 	 * @param capacity capacity of server
@@ -43,17 +105,47 @@ public class ChatServer {
 	 * @param admin admin of this server
 	 */
 	public ChatServer(int capacity, int numOfRooms, Admin admin) {
+		this(capacity, numOfRooms, DEFAULT_MAIN_ROOM_SHARDS, admin);
+	}
+
+	/**
+	 * constructor for a chat server, all required attributes are set.
+	 * afterwards the server is opened/
+	 *
+	 * @param capacity capacity of server
+	 * @param numOfRooms number of rooms in this server
+	 * @param mainRoomShards number of shards the main room is split into
+	 * @param admin admin of this server
+	 */
+	public ChatServer(int capacity, int numOfRooms, int mainRoomShards, Admin admin) {
 		this.rooms = new ArrayList<>();
 		this.users = new ArrayList<>();
 		this.admin = admin;
 		this.capacity = capacity;
+		this.presence = new PresenceIndex();
+		this.eventBus = new EventBus();
+		this.reservations = new ReservationTable();
+		this.pendingVictims = new HashMap<>();
+		this.reservedCapacity = new int[Priority.values().length];
+		this.memberCounts = new int[Priority.values().length];
+		this.metrics = new AdmissionMetrics();
+		this.mailboxes = new MailboxIndex();
+		this.bans = new ModerationIndex();
 
 		if (numOfRooms > 0) {
-			for (int i = 0; i < numOfRooms; i++) {
+			//every user passes through the main room, so it is sharded to spread the contention
+			rooms.add(mainRoomShards > 1 ? new ShardedChatRoom(0, capacity, mainRoomShards)
+					: new ChatRoom(0, capacity));
+			for (int i = 1; i < numOfRooms; i++) {
 				rooms.add(new ChatRoom(i, capacity));
 			}
 			mainRoom = rooms.get(0);
 		}
+		for (ChatRoom room : rooms) {
+			presence.register(room);
+			room.setEventBus(eventBus);
+			room.setAdmissionMetrics(metrics);
+		}
 
 		admin.assignServer(this);
 		open();
@@ -62,10 +154,20 @@ public class ChatServer {
 	/**
 	 * opens the server
 	 */
-	public synchronized void open() {
-		if (!isOpen) {
-			this.isOpen = true;
-			System.out.println("Chat Server is Opened.");
+	public void open() {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.SERVER_OPEN, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.SERVER_OPEN, this, arrived);
+			try {
+				if (!isOpen) {
+					this.isOpen = true;
+					this.isDraining = false;
+					ChatLog.println("Chat Server is Opened.");
+					eventBus.publish(ChatEvent.Type.SERVER_OPENED, ChatEvent.NONE, ChatEvent.NONE);
+				}
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.SERVER_OPEN, this, arrived, acquired);
+			}
 		}
 	}
 
@@ -73,18 +175,75 @@ public class ChatServer {
 	/**
 	 * closes the server, clears all rooms and removes all users before doing so
 	 */
-	public synchronized void close() {
-		System.out.println("Chat Server is being Closed.");
+	public void close() {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.SERVER_CLOSE, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.SERVER_CLOSE, this, arrived);
+			try {
+				ChatLog.println("Chat Server is being Closed.");
 
-		for (ChatRoom room : rooms) {
-			closeChatRoom(room.getRoomID());
+				for (ChatRoom room : rooms) {
+					closeChatRoom(room.getRoomID());
+				}
+				for (User user : users) {
+					presence.userOffline(user.getUserID());
+					eventBus.publish(ChatEvent.Type.USER_LEFT, user.getUserID(), ChatEvent.NONE);
+				}
+				users.clear();
+				reservations.clear();
+				pendingVictims.clear();
+
+				if (isOpen && allRoomsClosed()) {
+					isOpen = false;
+					ChatLog.println("Chat Server is Closed.");
+					eventBus.publish(ChatEvent.Type.SERVER_CLOSED, ChatEvent.NONE, ChatEvent.NONE);
+				}
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.SERVER_CLOSE, this, arrived, acquired);
+			}
 		}
-		users.clear();
+	}
 
-		if (isOpen && allRoomsClosed()) {
-			isOpen = false;
-			System.out.println("Chat Server is Closed.");
+	/**
+	 * drains the server, new users are no longer admitted and users already in the server are
+	 * given until the timeout to leave by themselves. once the server is empty, or the timeout
+	 * passes, all rooms and the server are closed.
+	 *
+	 * @param timeoutMillis the longest time to wait for users to leave
+	 * @return how long the drain took in milliseconds
+	 * @throws InterruptedException if the thread is interrupted while waiting for users to leave
+	 */
+	public long drain(long timeoutMillis) throws InterruptedException {
+		long start = System.nanoTime();
+		long deadline = start + timeoutMillis * 1_000_000L;
+		int remaining;
+
+		synchronized (this) {
+			if (!isOpen) {
+				return 0;
+			}
+			isDraining = true;
+			ChatLog.println("Chat Server is Draining (" + users.size() + " users connected).");
+			eventBus.publish(ChatEvent.Type.SERVER_DRAINING, ChatEvent.NONE, ChatEvent.NONE);
+
+			//wait for the users to leave, leave and leaveChatRoom notify when a user goes
+			long wait = timeoutMillis;
+			while (!users.isEmpty() && wait > 0) {
+				wait(wait);
+				wait = (deadline - System.nanoTime()) / 1_000_000L;
+			}
+			remaining = users.size();
+		}
+
+		if (remaining > 0) {
+			ChatLog.println("Chat Server drain timed out, removing " + remaining + " users.");
 		}
+		close();
+
+		lastDrainMillis = (System.nanoTime() - start) / 1_000_000L;
+		ChatLog.println("Chat Server drained in " + lastDrainMillis + "ms.");
+
+		return lastDrainMillis;
 	}
 
 	/**
@@ -94,20 +253,408 @@ public class ChatServer {
 	 * @param user user attempting to join server
 	 * @return whether the user joined the server
 	 */
-	public synchronized boolean join(User user) {
-		if (!users.contains(user) && users.size() < capacity && hasUniqueID(user)) {
-			users.add(user);
-			System.out.println(capacity);
-			System.out.println("User " + user.getUserID() + " admitted to Chat Server ("
-					+ user.getWantToChat() + ").");
+	public boolean join(User user) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.SERVER_JOIN, this);
+		long started = System.nanoTime();
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.SERVER_JOIN, this, arrived);
+			try {
+				if (isDraining) {
+					metrics.record(AdmissionMetrics.Scope.SERVER, user.getPriority(), false, started);
+					ChatLog.println("User ", user.getUserID(), " failed to join Chat Server as it is draining (",
+							user.getWantToChat(), ").");
+
+					return false;
+				}
 
-			return true;
-		} else {
-			System.out.println("User " + user.getUserID() + " failed to join Chat Server ("
-					+ user.getWantToChat() + ").");
+				long now = System.nanoTime();
+				if (isEligible(user, now) && (hasRoomFor(user.getPriority(), now) || preemptFor(user, now))) {
+					admit(user);
+					metrics.record(AdmissionMetrics.Scope.SERVER, user.getPriority(), true, started);
 
+					return true;
+				} else {
+					metrics.record(AdmissionMetrics.Scope.SERVER, user.getPriority(), false, started);
+					ChatLog.println("User ", user.getUserID(), " failed to join Chat Server (", user.getWantToChat(), ").");
+
+					return false;
+				}
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.SERVER_JOIN, this, arrived, acquired);
+			}
+		}
+	}
+
+	/**
+	 * checks whether a user may join the server at all, the user must not be banned, be in the
+	 * server or hold a reservation for it. the caller must hold the server monitor.
+	 *
+	 * @param user user attempting to join
+	 * @param now the current System.nanoTime
+	 * @return whether the user may join
+	 */
+	private boolean isEligible(User user, long now) {
+		return !bans.contains(user.getUserID()) && !users.contains(user) && hasUniqueID(user)
+				&& !reservations.holds(user.getUserID(), now);
+	}
+
+	/**
+	 * checks whether there is a free place for a user of a class, places reserved for other users
+	 * and unused places set aside for higher classes count as taken. the caller must hold the
+	 * server monitor.
+	 *
+	 * @param priority class of the user
+	 * @param now the current System.nanoTime
+	 * @return whether there is a free place
+	 */
+	private boolean hasRoomFor(Priority priority, long now) {
+		return users.size() + reservations.active(now) + unusedReservedCapacity(priority) < capacity;
+	}
+
+	/**
+	 * counts the places set aside for classes above a class that are not in use
+	 *
+	 * @param priority class of the user
+	 * @return number of places the user cannot take
+	 */
+	private int unusedReservedCapacity(Priority priority) {
+		if (!hasReservedCapacity) {
+			return 0;
+		}
+
+		//counted into a reused array as this runs inside every admission
+		int[] members = memberCounts;
+		Arrays.fill(members, 0);
+		for (int i = 0; i < users.size(); i++) {
+			User member = users.get(i);
+			members[member.getPriority().ordinal()]++;
+		}
+
+		int unused = 0;
+		for (int i = 0; i < priority.ordinal(); i++) {
+			unused += Math.max(0, reservedCapacity[i] - members[i]);
+		}
+		return unused;
+	}
+
+	/**
+	 * removes the most recent user of the lowest class below the user's class from the server
+	 * and all its rooms, if doing so makes a place for the user. the caller must hold the
+	 * server monitor.
+	 *
+	 * @param user user a place is wanted for
+	 * @param now the current System.nanoTime
+	 * @return whether a place was made
+	 */
+	private boolean preemptFor(User user, long now) {
+		User victim = findVictim(user, now);
+		if (victim == null) {
 			return false;
 		}
+
+		evict(victim, user);
+		return true;
+	}
+
+	/**
+	 * finds the most recent user of the lowest class below the user's class, if removing them
+	 * makes a place for the user. users already chosen for a reservation are not chosen again and
+	 * their places count as free. the caller must hold the server monitor.
+	 *
+	 * @param user user a place is wanted for
+	 * @param now the current System.nanoTime
+	 * @return the user to remove, null if there is none
+	 */
+	private User findVictim(User user, long now) {
+		if (!pendingVictims.isEmpty()) {
+			//victims of reservations that ran out or who already left are no longer pending
+			pendingVictims.entrySet().removeIf(pending -> !reservations.holds(pending.getKey(), now)
+					|| !users.contains(pending.getValue()));
+		}
+
+		//places set aside for higher classes stay taken, so removing one user may not be enough
+		if (users.size() - pendingVictims.size() - 1 + reservations.active(now)
+				+ unusedReservedCapacity(user.getPriority()) >= capacity) {
+			return null;
+		}
+
+		User victim = null;
+		for (int i = users.size() - 1; i >= 0; i--) {
+			User member = users.get(i);
+			if (user.getPriority().isHigherThan(member.getPriority())
+					&& (victim == null || victim.getPriority().isHigherThan(member.getPriority()))
+					&& (pendingVictims.isEmpty() || !pendingVictims.containsValue(member))) {
+				victim = member;
+			}
+		}
+		return victim;
+	}
+
+	/**
+	 * removes a user chosen to make room for another, the caller must hold the server monitor
+	 *
+	 * @param victim user being removed
+	 * @param user user the place is made for
+	 */
+	private void evict(User victim, User user) {
+		remove(victim);
+		metrics.recordPreemption(AdmissionMetrics.Scope.SERVER, victim.getPriority());
+		ChatLog.println("User ", victim.getUserID(), " removed from Chat Server for User ", user.getUserID(), ".");
+	}
+
+	/**
+	 * removes a user from the server and all its rooms without them asking to leave,
+	 * the caller must hold the server monitor
+	 *
+	 * @param victim user being removed
+	 */
+	private void remove(User victim) {
+		List<ChatRoom> current = rooms;
+		for (int i = 0; i < current.size(); i++) {
+			ChatRoom room = current.get(i);
+			room.leaveRoom(victim);
+		}
+		users.remove(victim);
+		presence.userOffline(victim.getUserID());
+		eventBus.publish(ChatEvent.Type.USER_LEFT, victim.getUserID(), ChatEvent.NONE);
+		notifyAll();
+
+		victim.setJoinedServer(false);
+		victim.setJoinedMainRoom(false);
+		victim.setJoinedRandomRoom(false);
+	}
+
+	/**
+	 * bans a user from the server for a time, removing them if they are in it.
+	 * a banned user cannot join until the ban runs out or is lifted
+	 *
+	 * @param userID id of the user
+	 * @param durationMillis how long the ban lasts, 0 or less until it is lifted
+	 */
+	public void ban(int userID, long durationMillis) {
+		eventBus.publish(ChatEvent.Type.USER_BANNED, userID, ChatEvent.NONE, bans.add(userID, durationMillis));
+
+		synchronized (this) {
+			for (int i = 0; i < users.size(); i++) {
+				User user = users.get(i);
+				if (user.getUserID() == userID) {
+					remove(user);
+					break;
+				}
+			}
+			//a reservation would let the user in after the ban was made
+			reservations.remove(userID, System.nanoTime());
+		}
+		ChatLog.println("User ", userID, " banned from Chat Server.");
+	}
+
+	/**
+	 * lifts the ban on a user
+	 *
+	 * @param userID id of the user
+	 * @return whether the user was banned
+	 */
+	public boolean unban(int userID) {
+		boolean wasBanned = bans.remove(userID);
+		if (wasBanned) {
+			eventBus.publish(ChatEvent.Type.USER_UNBANNED, userID, ChatEvent.NONE);
+			ChatLog.println("User ", userID, " unbanned from Chat Server.");
+		}
+		return wasBanned;
+	}
+
+	/**
+	 * checks whether a user is banned from the server, without locking
+	 *
+	 * @param userID id of the user
+	 * @return whether the user is banned
+	 */
+	public boolean isBanned(int userID) {
+		return bans.contains(userID);
+	}
+
+	/**
+	 * adds a user to the server, the caller must hold the server monitor
+	 *
+	 * @param user user being admitted
+	 */
+	private void admit(User user) {
+		users.add(user);
+		presence.userOnline(user.getUserID());
+		eventBus.publish(ChatEvent.Type.USER_JOINED, user.getUserID(), ChatEvent.NONE, user.getPriority().ordinal());
+		ChatLog.println("User ", user.getUserID(), " admitted to Chat Server (", user.getWantToChat(), ").");
+	}
+
+	/**
+	 * adds a user to the server as another server already decided, as a standby does for the joins
+	 * of its primary. none of the admission checks are made, the user only must not be in the server.
+	 *
+	 * @param user user being added
+	 * @return whether the user was added
+	 */
+	public boolean restore(User user) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.SERVER_JOIN, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.SERVER_JOIN, this, arrived);
+			try {
+				if (users.contains(user)) {
+					return false;
+				}
+
+				admit(user);
+				return true;
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.SERVER_JOIN, this, arrived, acquired);
+			}
+		}
+	}
+
+	/**
+	 * reserves a place in the server for a user, the place is kept free until the reservation is
+	 * committed, released or the reservation timeout passes. the same checks as join are made,
+	 * a user of a lower class is chosen to make room but only removed when the reservation is committed.
+	 *
+	 * @param user user the place is reserved for
+	 * @return whether a place was reserved
+	 */
+	public boolean reserve(User user) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.SERVER_RESERVE, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.SERVER_RESERVE, this, arrived);
+			try {
+				long now = System.nanoTime();
+				if (isDraining || !isEligible(user, now)) {
+					return false;
+				}
+				if (!hasRoomFor(user.getPriority(), now)) {
+					User victim = findVictim(user, now);
+					if (victim == null) {
+						return false;
+					}
+					pendingVictims.put(user.getUserID(), victim);
+				}
+
+				reservations.reserve(user.getUserID(), now + reservationTimeoutMillis * 1_000_000L);
+				return true;
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.SERVER_RESERVE, this, arrived, acquired);
+			}
+		}
+	}
+
+	/**
+	 * admits a user into the place reserved for them, removing the user chosen to make room if any
+	 *
+	 * @param user user whose reservation is committed
+	 * @return whether the user was admitted, false if the reservation ran out
+	 */
+	public boolean commitReservation(User user) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.SERVER_COMMIT, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.SERVER_COMMIT, this, arrived);
+			try {
+				return commit(user, System.nanoTime());
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.SERVER_COMMIT, this, arrived, acquired);
+			}
+		}
+	}
+
+	/**
+	 * admits a user into the place reserved for them, see commit reservation. the caller must hold
+	 * the server monitor.
+	 *
+	 * @param user user whose reservation is committed
+	 * @param now the current System.nanoTime
+	 * @return whether the user was admitted, false if the reservation ran out
+	 */
+	private boolean commit(User user, long now) {
+		User victim = pendingVictims.isEmpty() ? null : pendingVictims.remove(user.getUserID());
+		if (!reservations.remove(user.getUserID(), now) || isDraining) {
+			return false;
+		}
+
+		if (victim != null && users.contains(victim)) {
+			evict(victim, user);
+		}
+		admit(user);
+		return true;
+	}
+
+	/**
+	 * gives up the place reserved for a user, the user chosen to make room for them stays
+	 *
+	 * @param user user whose reservation is released
+	 */
+	public void releaseReservation(User user) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.SERVER_RELEASE, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.SERVER_RELEASE, this, arrived);
+			try {
+				reservations.remove(user.getUserID(), System.nanoTime());
+				if (!pendingVictims.isEmpty()) {
+					pendingVictims.remove(user.getUserID());
+				}
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.SERVER_RELEASE, this, arrived, acquired);
+			}
+		}
+	}
+
+	/**
+	 * joins a user into the server and the main room as one operation. places are reserved in
+	 * both first, and only when both are reserved are they taken, so the user is never left
+	 * in the server without a place in the main room and no place is held if either is full.
+	 *
+	 * @param user user attempting to join
+	 * @return whether the user joined the server and the main room
+	 */
+	public boolean joinWithMainRoom(User user) {
+		long started = System.nanoTime();
+		boolean joined = reserveAndCommit(user);
+		metrics.record(AdmissionMetrics.Scope.SERVER, user.getPriority(), joined, started);
+
+		return joined;
+	}
+
+	/**
+	 * reserves places in the server and main room then takes both, see join with main room.
+	 * both are taken under the server monitor, the server place is checked first and the room
+	 * committed before the server, so nobody is moved out of the server for a join that fails.
+	 *
+	 * @param user user attempting to join
+	 * @return whether the user joined the server and the main room
+	 */
+	private boolean reserveAndCommit(User user) {
+		if (isDraining || !reserve(user)) {
+			return false;
+		}
+		if (!mainRoom.reserve(user)) {
+			releaseReservation(user);
+			return false;
+		}
+
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.SERVER_COMMIT, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.SERVER_COMMIT, this, arrived);
+			try {
+				//the server place cannot be lost while the monitor is held once it is checked at this time
+				long now = System.nanoTime();
+				if (isDraining || !reservations.holds(user.getUserID(), now)) {
+					mainRoom.releaseReservation(user);
+					releaseReservation(user);
+					return false;
+				}
+				if (!mainRoom.commitReservation(user)) {
+					releaseReservation(user);
+					return false;
+				}
+
+				return commit(user, now);
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.SERVER_COMMIT, this, arrived, acquired);
+			}
+		}
 	}
 
 	/**
@@ -116,12 +663,23 @@ public class ChatServer {
 	 *
 	 * @param user user attempting to leave the server
 	 */
-	public synchronized void leave(User user) {
-		if (users.contains(user)) {
-			users.remove(user);
-			System.out.println("User " + user.getUserID() + " left Chat Server ");
-		} else {
-			System.out.println("Could not remove User " + user.getUserID() + " as is not in the Chat Server.");
+	public void leave(User user) {
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.SERVER_LEAVE, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.SERVER_LEAVE, this, arrived);
+			try {
+				if (users.contains(user)) {
+					users.remove(user);
+					presence.userOffline(user.getUserID());
+					eventBus.publish(ChatEvent.Type.USER_LEFT, user.getUserID(), ChatEvent.NONE);
+					ChatLog.println("User ", user.getUserID(), " left Chat Server ");
+					notifyAll();
+				} else {
+					ChatLog.println("Could not remove User ", user.getUserID(), " as is not in the Chat Server.");
+				}
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.SERVER_LEAVE, this, arrived, acquired);
+			}
 		}
 	}
 
@@ -134,7 +692,7 @@ public class ChatServer {
 		for (ChatRoom chatRoom : rooms) {
 			if (chatRoom.getRoomID() == chatRoomID) {
 				chatRoom.open();
-				System.out.println("ChatRoom " + chatRoomID + " opened.");
+				ChatLog.println("ChatRoom " + chatRoomID + " opened.");
 			}
 		}
 	}
@@ -161,11 +719,17 @@ public class ChatServer {
 	 * @return whether the user entered the room
 	 */
 	public boolean enterRoom(User user, int chatRoomID) {
-		for (ChatRoom chatRoom : rooms) {
+		if (isDraining) {
+			return false;
+		}
+
+		List<ChatRoom> current = rooms;
+		for (int i = 0; i < current.size(); i++) {
+			ChatRoom chatRoom = current.get(i);
 			if (chatRoom.getRoomID() == chatRoomID) {
 				boolean joined = chatRoom.enterRoom(user);
 				if (joined) {
-					System.out.println("User " + user.getUserID() + " joined room " + chatRoomID);
+					ChatLog.println("User ", user.getUserID(), " joined room ", chatRoomID, "");
 				}
 
 				return joined;
@@ -183,10 +747,12 @@ public class ChatServer {
 	 * @return whether the user left the room
 	 */
 	public boolean leaveRoom(User user, int chatRoomID) {
-		for (ChatRoom chatRoom : rooms) {
+		List<ChatRoom> current = rooms;
+		for (int i = 0; i < current.size(); i++) {
+			ChatRoom chatRoom = current.get(i);
 			if (chatRoom.getRoomID() == chatRoomID) {
 				chatRoom.leaveRoom(user);
-				System.out.println("User " + user.getUserID() + " left room " + chatRoomID);
+				ChatLog.println("User ", user.getUserID(), " left room ", chatRoomID, "");
 
 				return true;
 			}
@@ -195,6 +761,49 @@ public class ChatServer {
 		return false;
 	}
 
+	/**
+	 * posts a message from a user to a room with x chat room id
+	 *
+	 * @param user user posting the message
+	 * @param chatRoomID id of the room
+	 * @param text text of the message
+	 * @return whether the message was posted
+	 */
+	public boolean postMessage(User user, int chatRoomID, String text) {
+		List<ChatRoom> current = rooms;
+		for (int i = 0; i < current.size(); i++) {
+			ChatRoom chatRoom = current.get(i);
+			if (chatRoom.getRoomID() == chatRoomID) {
+				return chatRoom.post(user, text);
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * finds the messages posted to a room recently containing every word of a query,
+	 * such as the messages containing a word in the last hour
+	 *
+	 * @param chatRoomID id of the room
+	 * @param query words searched for, case and punctuation are ignored
+	 * @param sinceMillis how far back to search in milliseconds
+	 * @param limit most messages returned
+	 * @return the messages found, newest first
+	 */
+	public List<ChatMessage> searchRoom(int chatRoomID, String query, long sinceMillis, int limit) {
+		List<ChatRoom> current = rooms;
+		for (int i = 0; i < current.size(); i++) {
+			ChatRoom chatRoom = current.get(i);
+			if (chatRoom.getRoomID() == chatRoomID) {
+				long now = System.currentTimeMillis();
+				return chatRoom.search(query, now - sinceMillis, now, limit);
+			}
+		}
+
+		return new ArrayList<>();
+	}
+
 	/**
 	 * gets the number of rooms in server
 	 *
@@ -237,13 +846,26 @@ public class ChatServer {
 	 * @param user user being removed from chat rooms
 	 */
 	public void leaveChatRoom(User user) {
-		if (users.contains(user)) {
-			for (ChatRoom room : rooms) {
-				room.leaveRoom(user);
-			}
-			users.remove(user);
+		long arrived = ContentionProfiler.arrive(ContentionProfiler.Site.SERVER_LEAVE_ROOMS, this);
+		synchronized (this) {
+			long acquired = ContentionProfiler.acquire(ContentionProfiler.Site.SERVER_LEAVE_ROOMS, this, arrived);
+			try {
+				if (users.contains(user)) {
+					List<ChatRoom> current = rooms;
+					for (int i = 0; i < current.size(); i++) {
+						ChatRoom room = current.get(i);
+						room.leaveRoom(user);
+					}
+					users.remove(user);
+					presence.userOffline(user.getUserID());
+					eventBus.publish(ChatEvent.Type.USER_LEFT, user.getUserID(), ChatEvent.NONE);
 
-			System.out.println("User " + user.getUserID() + " left Chat Server ");
+					ChatLog.println("User ", user.getUserID(), " left Chat Server ");
+					notifyAll();
+				}
+			} finally {
+				ContentionProfiler.release(ContentionProfiler.Site.SERVER_LEAVE_ROOMS, this, arrived, acquired);
+			}
 		}
 	}
 
@@ -262,18 +884,91 @@ public class ChatServer {
 	 * @return whether user enter main room
 	 */
 	public boolean joinMainChatRoom(User user) {
+		if (isDraining) {
+			return false;
+		}
+
 		return mainRoom.enterRoom(user);
 	}
 
 	/**
-	 * gets whether the passed user enters the random room or not
+	 * gets whether the passed user enters the random room or not, the room is picked at random
+	 * from the open rooms other than the main room
 	 *
 	 * @return whether user enter random room
 	 */
 	public boolean joinRandomChatRoom(User user) {
-		int random = new Random().nextInt(rooms.size() - 1) + 1;
+		if (isDraining) {
+			return false;
+		}
+
+		List<ChatRoom> current = rooms;
+		int others = current.size() - 1;
+		int random = ThreadLocalRandom.current().nextInt(others);
+
+		//walk on from the random room to the first open one, closed rooms turn everybody away
+		for (int i = 0; i < others; i++) {
+			ChatRoom room = current.get((random + i) % others + 1);
+			if (room.isOpen()) {
+				return room.enterRoom(user);
+			}
+		}
+
+		return current.get(random + 1).enterRoom(user);
+	}
+
+	/**
+	 * sends a direct message from a user in the server to another user by id, without locking
+	 * the server. a recipient who is offline gets the message when they next read their mailbox,
+	 * as long as their offline limit is not reached
+	 *
+	 * @param sender user sending the message
+	 * @param recipientID id of the user the message is for
+	 * @param text text of the message
+	 * @return whether the message was put in the recipient's mailbox
+	 */
+	public boolean sendDirectMessage(User sender, int recipientID, String text) {
+		if (!presence.isOnline(sender.getUserID())) {
+			return false;
+		}
+
+		DirectMessage message = new DirectMessage(sender.getUserID(), recipientID, text, System.currentTimeMillis());
+		return mailboxes.send(message, presence.isOnline(recipientID));
+	}
+
+	/**
+	 * takes up to a number of the oldest direct messages sent to a user, without locking the
+	 * server. only the user's own thread should read their messages
+	 *
+	 * @param user user reading their messages
+	 * @param messages list the messages are added to, oldest first
+	 * @param max most messages taken
+	 * @return number of messages taken
+	 */
+	public int receiveDirectMessages(User user, List<DirectMessage> messages, int max) {
+		return mailboxes.receive(user.getUserID(), messages, max);
+	}
+
+	/**
+	 * adds a new closed chat room to the server, the room gets the next free id
+	 * and the same capacity as the server
+	 *
+	 * @return the new room
+	 */
+	public synchronized ChatRoom addChatRoom() {
+		ChatRoom room = new ChatRoom(rooms.size(), capacity);
+		room.setReservationTimeoutMillis(reservationTimeoutMillis);
+		presence.register(room);
+		room.setEventBus(eventBus);
+		room.setAdmissionMetrics(metrics);
+
+		//rooms is read without locking, so it is replaced rather than changed in place
+		ArrayList<ChatRoom> updated = new ArrayList<>(rooms);
+		updated.add(room);
+		rooms = updated;
 
-		return rooms.get(random).enterRoom(user);
+		ChatLog.println("Chat Room " + room.getRoomID() + " added.");
+		return room;
 	}
 
 	/**
@@ -297,7 +992,8 @@ public class ChatServer {
 	 * @return whether the user is unique
 	 */
 	private boolean hasUniqueID(User user) {
-		for (User user1 : users) {
+		for (int i = 0; i < users.size(); i++) {
+			User user1 = users.get(i);
 			if (user1.getUserID() == user.getUserID()) {
 				return false;
 			}
@@ -332,6 +1028,116 @@ public class ChatServer {
 		isOpen = open;
 	}
 
+	/**
+	 * gets the presence index of the server, used to query who is online and
+	 * how full each room is without locking the server
+	 *
+	 * @return presence index of the server
+	 */
+	public PresenceIndex getPresence() {
+		return presence;
+	}
+
+	/**
+	 * gets the event bus of the server, subscribe to it to react to server and room events
+	 *
+	 * @return event bus of the server
+	 */
+	public EventBus getEventBus() {
+		return eventBus;
+	}
+
+	/**
+	 * sets aside places in the server only a priority class, or a higher one, can take
+	 *
+	 * @param priority class the places are set aside for
+	 * @param places number of places
+	 */
+	public synchronized void setReservedCapacity(Priority priority, int places) {
+		reservedCapacity[priority.ordinal()] = places;
+
+		hasReservedCapacity = false;
+		for (int reserved : reservedCapacity) {
+			hasReservedCapacity |= reserved > 0;
+		}
+	}
+
+	/**
+	 * gets the places in the server set aside for a priority class
+	 *
+	 * @param priority class the places are set aside for
+	 * @return number of places
+	 */
+	public synchronized int getReservedCapacity(Priority priority) {
+		return reservedCapacity[priority.ordinal()];
+	}
+
+	/**
+	 * gets the users banned from the server
+	 *
+	 * @return ban index of the server
+	 */
+	public ModerationIndex getBans() {
+		return bans;
+	}
+
+	/**
+	 * gets the mailboxes of direct messages sent in the server
+	 *
+	 * @return mailbox index of the server
+	 */
+	public MailboxIndex getMailboxes() {
+		return mailboxes;
+	}
+
+	/**
+	 * gets the admission metrics of the server and its rooms
+	 *
+	 * @return admission metrics by priority class
+	 */
+	public AdmissionMetrics getAdmissionMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * sets how long a reservation keeps a place free, for the server and its rooms
+	 *
+	 * @param reservationTimeoutMillis reservation timeout in milliseconds
+	 */
+	public void setReservationTimeoutMillis(long reservationTimeoutMillis) {
+		this.reservationTimeoutMillis = reservationTimeoutMillis;
+		for (ChatRoom room : rooms) {
+			room.setReservationTimeoutMillis(reservationTimeoutMillis);
+		}
+	}
+
+	/**
+	 * gets how long a reservation keeps a place free
+	 *
+	 * @return reservation timeout in milliseconds
+	 */
+	public long getReservationTimeoutMillis() {
+		return reservationTimeoutMillis;
+	}
+
+	/**
+	 * gets whether the server is draining
+	 *
+	 * @return whether the server is draining
+	 */
+	public boolean isDraining() {
+		return isDraining;
+	}
+
+	/**
+	 * gets how long the last drain of this server took
+	 *
+	 * @return length of the last drain in milliseconds
+	 */
+	public long getLastDrainMillis() {
+		return lastDrainMillis;
+	}
+
 	/**
 	 * gets whether server is open
 	 *
@@ -393,6 +1199,11 @@ public class ChatServer {
 	 */
 	public void setRooms(ArrayList<ChatRoom> rooms) {
 		this.rooms = rooms;
+		for (ChatRoom room : rooms) {
+			presence.register(room);
+			room.setEventBus(eventBus);
+			room.setAdmissionMetrics(metrics);
+		}
 	}
 
 	/**
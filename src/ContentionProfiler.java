@@ -0,0 +1,348 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records how long threads wait for, and hold, the server and room monitors.
+ * Statistics are kept per method on each server or room instance, and the queue of waiting
+ * threads is counted per instance whichever method they wait in. Profiling is switched on by
+ * starting the JVM with -Dchat.profile=true, when it is off every method returns straight away
+ * and the checks are removed by the JIT. Each timed section is also committed as a JFR event so
+ * it shows up in flight recordings.
+ */
+public final class ContentionProfiler {
+
+	/**
+	 * the synchronized methods that are profiled
+	 */
+	public enum Site {
+		SERVER_OPEN,
+		SERVER_CLOSE,
+		SERVER_JOIN,
+		SERVER_LEAVE,
+		SERVER_LEAVE_ROOMS,
+		SERVER_RESERVE,
+		SERVER_COMMIT,
+		SERVER_RELEASE,
+		ROOM_OPEN,
+		ROOM_CLOSE,
+		ROOM_ENTER,
+		ROOM_LEAVE,
+		ROOM_RESERVE,
+		ROOM_COMMIT,
+		ROOM_RELEASE
+	}
+
+	/**
+	 * whether profiling is switched on
+	 */
+	public static final boolean ENABLED = Boolean.getBoolean("chat.profile");
+
+	/**
+	 * every profiled monitor by the server or room instance that is locked
+	 */
+	private static final Map<Object, Monitor> MONITORS = new ConcurrentHashMap<>();
+	/**
+	 * number given to the last monitor seen, to tell instances with the same room id apart
+	 */
+	private static final AtomicInteger MONITOR_COUNT = new AtomicInteger();
+
+	/**
+	 * This class holds the threads waiting for one server or room instance and the statistics
+	 * of each method that takes it.
+	 */
+	private static final class Monitor {
+
+		/**
+		 * name shown in the report
+		 */
+		private final String name;
+		/**
+		 * threads currently waiting for the monitor through any method
+		 */
+		private final AtomicInteger waiting = new AtomicInteger();
+		/**
+		 * statistics of each method on the monitor, by site
+		 */
+		private final AtomicReferenceArray<ContentionProfiler> sites =
+				new AtomicReferenceArray<>(Site.values().length);
+
+		/**
+		 * creates the state of a monitor
+		 *
+		 * @param lock server or room instance locked
+		 */
+		private Monitor(Object lock) {
+			String kind = lock instanceof ChatRoom ? "room " + ((ChatRoom) lock).getRoomID() : "server";
+			this.name = kind + " #" + MONITOR_COUNT.incrementAndGet();
+		}
+
+		/**
+		 * gets the statistics of a method on this monitor, creating them on first use
+		 *
+		 * @param site method being profiled
+		 * @return statistics of the method
+		 */
+		private ContentionProfiler stats(Site site) {
+			ContentionProfiler stats = sites.get(site.ordinal());
+			if (stats == null) {
+				sites.compareAndSet(site.ordinal(), null, new ContentionProfiler(site, name));
+				stats = sites.get(site.ordinal());
+			}
+			return stats;
+		}
+
+	}
+
+	/**
+	 * method being profiled
+	 */
+	private final Site site;
+	/**
+	 * name of the monitor being profiled
+	 */
+	private final String monitor;
+	/**
+	 * number of times the monitor was acquired
+	 */
+	private final LongAdder acquisitions = new LongAdder();
+	/**
+	 * total time spent waiting for the monitor
+	 */
+	private final LongAdder waitNanos = new LongAdder();
+	/**
+	 * total time the monitor was held
+	 */
+	private final LongAdder holdNanos = new LongAdder();
+	/**
+	 * longest wait for the monitor
+	 */
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	/**
+	 * total of the queue depths seen on arrival
+	 */
+	private final LongAdder queueDepthTotal = new LongAdder();
+	/**
+	 * deepest queue seen on arrival
+	 */
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+	/**
+	 * creates the statistics of one method on one monitor
+	 *
+	 * @param site method being profiled
+	 * @param monitor name of the monitor
+	 */
+	private ContentionProfiler(Site site, String monitor) {
+		this.site = site;
+		this.monitor = monitor;
+	}
+
+	/**
+	 * gets the state of a monitor, creating it on first use
+	 *
+	 * @param lock server or room instance locked
+	 * @return state of the monitor
+	 */
+	private static Monitor monitor(Object lock) {
+		Monitor monitor = MONITORS.get(lock);
+		if (monitor == null) {
+			monitor = MONITORS.computeIfAbsent(lock, Monitor::new);
+		}
+		return monitor;
+	}
+
+	/**
+	 * called just before a thread tries to take a monitor
+	 *
+	 * @param site method taking the monitor
+	 * @param lock server or room instance locked
+	 * @return when the thread arrived, 0 when profiling is off
+	 */
+	public static long arrive(Site site, Object lock) {
+		if (!ENABLED) {
+			return 0;
+		}
+
+		Monitor monitor = monitor(lock);
+		ContentionProfiler stats = monitor.stats(site);
+		int depth = monitor.waiting.incrementAndGet();
+		stats.queueDepthTotal.add(depth - 1);
+		stats.maxQueueDepth.accumulateAndGet(depth - 1, Math::max);
+
+		return System.nanoTime();
+	}
+
+	/**
+	 * called as soon as a thread has taken a monitor
+	 *
+	 * @param site method taking the monitor
+	 * @param lock server or room instance locked
+	 * @param arrived when the thread arrived
+	 * @return when the monitor was taken, 0 when profiling is off
+	 */
+	public static long acquire(Site site, Object lock, long arrived) {
+		if (!ENABLED) {
+			return 0;
+		}
+
+		long now = System.nanoTime();
+		long wait = now - arrived;
+		Monitor monitor = monitor(lock);
+		ContentionProfiler stats = monitor.stats(site);
+		monitor.waiting.decrementAndGet();
+		stats.acquisitions.increment();
+		stats.waitNanos.add(wait);
+		stats.maxWaitNanos.accumulateAndGet(wait, Math::max);
+
+		return now;
+	}
+
+	/**
+	 * called just before a thread gives up a monitor
+	 *
+	 * @param site method holding the monitor
+	 * @param lock server or room instance locked
+	 * @param arrived when the thread arrived
+	 * @param acquired when the monitor was taken
+	 */
+	public static void release(Site site, Object lock, long arrived, long acquired) {
+		if (!ENABLED) {
+			return;
+		}
+
+		long hold = System.nanoTime() - acquired;
+		ContentionProfiler stats = monitor(lock).stats(site);
+		stats.holdNanos.add(hold);
+
+		MonitorContentionEvent event = new MonitorContentionEvent();
+		if (event.isEnabled()) {
+			event.site = site.name();
+			event.monitor = stats.monitor;
+			event.waitNanos = acquired - arrived;
+			event.holdNanos = hold;
+			event.commit();
+		}
+	}
+
+	/**
+	 * clears all recorded statistics
+	 */
+	public static void reset() {
+		MONITORS.clear();
+	}
+
+	/**
+	 * gets the statistics of every profiled method and monitor, most total wait first
+	 *
+	 * @return recorded statistics
+	 */
+	public static List<ContentionProfiler> getSites() {
+		List<ContentionProfiler> sites = new ArrayList<>();
+		for (Monitor monitor : MONITORS.values()) {
+			for (int i = 0; i < monitor.sites.length(); i++) {
+				if (monitor.sites.get(i) != null) {
+					sites.add(monitor.sites.get(i));
+				}
+			}
+		}
+		sites.sort((a, b) -> Long.compare(b.getWaitNanos(), a.getWaitNanos()));
+		return sites;
+	}
+
+	/**
+	 * builds a report of the methods and monitors with the most total wait
+	 *
+	 * @param top number of sites to show
+	 * @return the report
+	 */
+	public static String report(int top) {
+		StringBuilder report = new StringBuilder();
+		if (!ENABLED) {
+			return report.append("Contention profiling is off, run with -Dchat.profile=true.").toString();
+		}
+
+		report.append(String.format("%-20s %12s %10s %12s %12s %12s %10s %9s%n", "site", "monitor",
+				"acquired", "wait ms", "max wait us", "hold ms", "avg queue", "max queue"));
+		List<ContentionProfiler> sites = getSites();
+		for (int i = 0; i < sites.size() && i < top; i++) {
+			ContentionProfiler stats = sites.get(i);
+			long count = Math.max(stats.getAcquisitions(), 1);
+			report.append(String.format("%-20s %12s %10d %12.3f %12.1f %12.3f %10.2f %9d%n",
+					stats.site, stats.monitor,
+					stats.getAcquisitions(), stats.getWaitNanos() / 1e6, stats.getMaxWaitNanos() / 1e3,
+					stats.getHoldNanos() / 1e6, (double) stats.queueDepthTotal.sum() / count,
+					stats.getMaxQueueDepth()));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * gets the method profiled
+	 *
+	 * @return profiled method
+	 */
+	public Site getSite() {
+		return site;
+	}
+
+	/**
+	 * gets the name of the monitor profiled
+	 *
+	 * @return room id, or server, numbered to tell instances apart
+	 */
+	public String getMonitor() {
+		return monitor;
+	}
+
+	/**
+	 * gets the number of times the monitor was taken
+	 *
+	 * @return number of acquisitions
+	 */
+	public long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	/**
+	 * gets the total time spent waiting for the monitor
+	 *
+	 * @return total wait in nanoseconds
+	 */
+	public long getWaitNanos() {
+		return waitNanos.sum();
+	}
+
+	/**
+	 * gets the longest wait for the monitor
+	 *
+	 * @return longest wait in nanoseconds
+	 */
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+	/**
+	 * gets the total time the monitor was held
+	 *
+	 * @return total hold in nanoseconds
+	 */
+	public long getHoldNanos() {
+		return holdNanos.sum();
+	}
+
+	/**
+	 * gets the deepest queue of threads waiting for the monitor seen on arrival
+	 *
+	 * @return deepest queue
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+}
@@ -0,0 +1,80 @@
+/**
+ * This class is a message sent from one user straight to another, it is held in the
+ * recipient's mailbox until they take it.
+ */
+public class DirectMessage {
+
+	/**
+	 * id of the user who sent the message
+	 */
+	private final int senderID;
+	/**
+	 * id of the user the message is for
+	 */
+	private final int recipientID;
+	/**
+	 * text of the message
+	 */
+	private final String text;
+	/**
+	 * when the message was sent, in milliseconds since the epoch
+	 */
+	private final long timestamp;
+
+	/**
+	 * creates a direct message, all attributes are set
+	 *
+	 * @param senderID id of the user who sent the message
+	 * @param recipientID id of the user the message is for
+	 * @param text text of the message
+	 * @param timestamp when the message was sent
+	 */
+	public DirectMessage(int senderID, int recipientID, String text, long timestamp) {
+		this.senderID = senderID;
+		this.recipientID = recipientID;
+		this.text = text;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * gets the id of the user who sent the message
+	 *
+	 * @return id of sender
+	 */
+	public int getSenderID() {
+		return senderID;
+	}
+
+	/**
+	 * gets the id of the user the message is for
+	 *
+	 * @return id of recipient
+	 */
+	public int getRecipientID() {
+		return recipientID;
+	}
+
+	/**
+	 * gets the text of the message
+	 *
+	 * @return text of message
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * gets when the message was sent
+	 *
+	 * @return milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return "DirectMessage[" + senderID + " -> " + recipientID + ": " + text + "]";
+	}
+
+}
@@ -0,0 +1,333 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class checks the direct message mailboxes and measures many senders writing to a few hot
+ * recipients. Every message must arrive exactly once and in the order its sender sent it, the
+ * offline limit must hold and a million possible ids must be cheap to index. The mailboxes are
+ * then timed against queues guarded by a single lock, as a server wide monitor would be.
+ */
+public class DirectMessageBenchmark {
+
+	/**
+	 * text of every message sent, so only the messaging is timed
+	 */
+	private static final String TEXT = "hello";
+
+	/**
+	 * runs the checks then the benchmark
+	 *
+	 * @param args CLI arguments, optionally the number of senders and messages per sender
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int senders = args.length > 0 ? Integer.parseInt(args[0])
+				: Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+		int perSender = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+		run(false, 4, 1, 50_000);
+		run(false, 4, 3, 50_000);
+		checkOfflineLimit();
+		checkGrowth();
+		checkIndexScale(1_000_000);
+		System.out.println("Ordering, offline limit and index checks passed.");
+
+		System.out.printf("%d senders, %d messages each%n", senders, perSender);
+		System.out.printf("%10s %12s %16s %10s%n", "recipients", "queue", "messages/s", "refused");
+		for (int recipients : new int[] {1, 8}) {
+			//warm up before measuring
+			run(true, senders, recipients, perSender / 10);
+			run(false, senders, recipients, perSender / 10);
+
+			for (boolean locked : new boolean[] {true, false}) {
+				long start = System.nanoTime();
+				long refused = run(locked, senders, recipients, perSender);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.printf("%10d %12s %16.0f %10d%n", recipients, locked ? "locked" : "mailbox",
+						(double) senders * perSender / seconds, refused);
+			}
+		}
+	}
+
+	/**
+	 * sends messages from every sender to the recipients in turn, with one thread per recipient
+	 * reading, and checks every message arrives once and in order. a sender whose message is
+	 * refused as the mailbox is full tries again
+	 *
+	 * @param locked whether queues guarded by one lock are used instead of the mailboxes
+	 * @param senders number of sending threads
+	 * @param recipients number of recipients
+	 * @param perSender messages sent by each sender
+	 * @return number of times a message was refused
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	private static long run(boolean locked, int senders, int recipients, int perSender)
+			throws InterruptedException {
+		MailboxIndex index = new MailboxIndex();
+		index.setMailboxCapacity(1024);
+		LockedQueues queues = new LockedQueues(recipients, 1024);
+
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicBoolean sending = new AtomicBoolean(true);
+		long[] refused = new long[senders];
+		long[][] received = new long[recipients][];
+		String[] failures = new String[recipients];
+		List<Thread> threads = new ArrayList<>();
+
+		for (int s = 0; s < senders; s++) {
+			int sender = s;
+			threads.add(new Thread(() -> {
+				await(start);
+				for (int i = 0; i < perSender; i++) {
+					//the timestamp carries the sender's count so the order can be checked
+					DirectMessage message = new DirectMessage(sender, i % recipients, TEXT, i);
+					while (locked ? !queues.offer(message) : !index.send(message, true)) {
+						refused[sender]++;
+						//lets the reader run, there may be fewer cores than threads
+						Thread.yield();
+					}
+				}
+			}));
+		}
+
+		List<Thread> readers = new ArrayList<>();
+		for (int r = 0; r < recipients; r++) {
+			int recipient = r;
+			readers.add(new Thread(() -> {
+				long[] next = new long[senders];
+				for (int s = 0; s < senders; s++) {
+					next[s] = recipient;
+				}
+				List<DirectMessage> batch = new ArrayList<>();
+				await(start);
+
+				while (true) {
+					boolean wasSending = sending.get();
+					int taken = locked ? queues.drainTo(recipient, batch)
+							: index.receive(recipient, batch, Integer.MAX_VALUE);
+					for (int i = 0; i < taken; i++) {
+						DirectMessage message = batch.get(i);
+						if (message.getTimestamp() != next[message.getSenderID()]) {
+							failures[recipient] = "recipient " + recipient + " expected message "
+									+ next[message.getSenderID()] + " of sender " + message.getSenderID()
+									+ " but got " + message.getTimestamp();
+							return;
+						}
+						next[message.getSenderID()] += recipients;
+					}
+					batch.clear();
+
+					if (taken == 0) {
+						if (!wasSending) {
+							break;
+						}
+						Thread.yield();
+					}
+				}
+				received[recipient] = next;
+			}));
+		}
+
+		for (Thread thread : readers) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		sending.set(false);
+		for (Thread thread : readers) {
+			thread.join();
+		}
+
+		for (int r = 0; r < recipients; r++) {
+			if (failures[r] != null) {
+				fail(failures[r]);
+			}
+			for (int s = 0; s < senders; s++) {
+				//every message with a count of this recipient's turn must have arrived
+				long expected = r + (long) ((perSender - r + recipients - 1) / recipients) * recipients;
+				if (received[r][s] != expected) {
+					fail("recipient " + r + " missed messages of sender " + s);
+				}
+			}
+		}
+
+		long total = 0;
+		for (long count : refused) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * checks a recipient who is offline is only sent messages up to the offline limit,
+	 * and gets them once online
+	 */
+	private static void checkOfflineLimit() {
+		MailboxIndex index = new MailboxIndex();
+		index.setOfflineLimit(32);
+
+		for (int i = 0; i < 100; i++) {
+			index.send(new DirectMessage(1, 7, TEXT, i), false);
+		}
+		if (index.getDeliveredCount() != 32 || index.getDroppedCount() != 68) {
+			fail("offline limit let " + index.getDeliveredCount() + " messages through");
+		}
+
+		List<DirectMessage> messages = new ArrayList<>();
+		if (index.receive(7, messages, Integer.MAX_VALUE) != 32 || messages.get(31).getTimestamp() != 31) {
+			fail("offline messages were not kept in order");
+		}
+		if (!index.send(new DirectMessage(1, 7, TEXT, 0), true)) {
+			fail("online recipient refused a message");
+		}
+	}
+
+	/**
+	 * checks a mailbox that starts small takes an online recipient's messages up to the full
+	 * capacity, and keeps them in order across the mailboxes it grew through
+	 */
+	private static void checkGrowth() {
+		MailboxIndex index = new MailboxIndex();
+		for (int i = 0; i < 300; i++) {
+			index.send(new DirectMessage(1, 7, TEXT, i), true);
+		}
+		if (index.getDeliveredCount() != index.getMailboxCapacity()
+				|| index.getMailbox(7).getCapacity() != index.getMailboxCapacity()) {
+			fail("a growing mailbox took " + index.getDeliveredCount() + " messages");
+		}
+
+		List<DirectMessage> messages = new ArrayList<>();
+		index.receive(7, messages, 10);
+		index.receive(7, messages, Integer.MAX_VALUE);
+		for (int i = 0; i < messages.size(); i++) {
+			if (messages.get(i).getTimestamp() != i) {
+				fail("message " + i + " of a growing mailbox arrived out of order");
+			}
+		}
+		if (messages.size() != index.getMailboxCapacity() || index.getDeliveredCount() != messages.size()) {
+			fail("a growing mailbox gave back " + messages.size() + " messages");
+		}
+	}
+
+	/**
+	 * gives every id up to a number a mailbox and prints how long finding them takes
+	 * and how much memory they use
+	 *
+	 * @param users number of user ids
+	 */
+	private static void checkIndexScale(int users) {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long before = runtime.totalMemory() - runtime.freeMemory();
+
+		MailboxIndex index = new MailboxIndex(users);
+		for (int id = 0; id < users; id++) {
+			index.mailboxFor(id);
+		}
+
+		long start = System.nanoTime();
+		for (int id = 0; id < users; id++) {
+			if (index.getMailbox(id) == null) {
+				fail("mailbox of user " + id + " is missing");
+			}
+		}
+		double lookupNanos = (double) (System.nanoTime() - start) / users;
+
+		System.gc();
+		long after = runtime.totalMemory() - runtime.freeMemory();
+		System.out.printf("%d mailboxes: %.1f ns per lookup, about %d bytes each%n", users, lookupNanos,
+				Math.max(0, after - before) / users);
+		if (index.getMailbox(users + 1) != null) {
+			fail("unused id has a mailbox");
+		}
+	}
+
+	/**
+	 * waits for the start signal
+	 *
+	 * @param start latch counted down when every thread is ready
+	 */
+	private static void await(CountDownLatch start) {
+		try {
+			start.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * stops the checks with a failure
+	 *
+	 * @param message what went wrong
+	 */
+	private static void fail(String message) {
+		System.out.println("FAILED: " + message);
+		System.exit(1);
+	}
+
+	/**
+	 * This class holds a bounded queue per recipient, all guarded by one lock
+	 * like the server monitor guards the server.
+	 */
+	private static class LockedQueues {
+
+		/**
+		 * queue of each recipient
+		 */
+		private final ArrayDeque<DirectMessage>[] queues;
+		/**
+		 * most messages held by a queue
+		 */
+		private final int capacity;
+
+		/**
+		 * creates empty queues
+		 *
+		 * @param recipients number of recipients
+		 * @param capacity most messages held by a queue
+		 */
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		LockedQueues(int recipients, int capacity) {
+			this.queues = new ArrayDeque[recipients];
+			this.capacity = capacity;
+			for (int i = 0; i < recipients; i++) {
+				queues[i] = new ArrayDeque<>(capacity);
+			}
+		}
+
+		/**
+		 * adds a message to the queue of its recipient
+		 *
+		 * @param message message being sent
+		 * @return whether the message was added, false if the queue was full
+		 */
+		synchronized boolean offer(DirectMessage message) {
+			ArrayDeque<DirectMessage> queue = queues[message.getRecipientID()];
+			return queue.size() < capacity && queue.add(message);
+		}
+
+		/**
+		 * takes every message from the queue of a recipient
+		 *
+		 * @param recipient id of the recipient
+		 * @param messages list the messages are added to, oldest first
+		 * @return number of messages taken
+		 */
+		synchronized int drainTo(int recipient, List<DirectMessage> messages) {
+			ArrayDeque<DirectMessage> queue = queues[recipient];
+			int taken = queue.size();
+			messages.addAll(queue);
+			queue.clear();
+			return taken;
+		}
+
+	}
+
+}
@@ -0,0 +1,185 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is an in-process publish/subscribe bus for chat server and room events.
+ * Publishing never blocks, each event is offered to the bounded queue of every subscriber
+ * and delivered in batches on the bus's own executor, keeping listeners off the admission path.
+ */
+public class EventBus {
+
+	/**
+	 * default most events queued for a subscriber before new events are dropped
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	/**
+	 * default most events delivered to a listener in one call
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	/**
+	 * subscriptions events are published to
+	 */
+	private final List<EventSubscription> subscriptions;
+	/**
+	 * executor deliveries are run on
+	 */
+	private final ExecutorService executor;
+	/**
+	 * sequence number of the last published event
+	 */
+	private final AtomicLong sequence;
+	/**
+	 * most events delivered to a listener in one call
+	 */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * creates an event bus delivering events on a single thread
+	 */
+	public EventBus() {
+		this(1);
+	}
+
+	/**
+	 * creates an event bus delivering events on the given number of threads, events for a
+	 * single subscriber are always delivered one batch at a time and in order
+	 *
+	 * @param threads number of delivery threads
+	 */
+	public EventBus(int threads) {
+		this.subscriptions = new CopyOnWriteArrayList<>();
+		this.sequence = new AtomicLong();
+		this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "event-bus");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * subscribes a listener with the default queue capacity
+	 *
+	 * @param listener listener events are delivered to
+	 * @return the subscription, used to cancel it
+	 */
+	public EventSubscription subscribe(ChatEventListener listener) {
+		return subscribe(listener, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * subscribes a listener, events published while its queue is full are dropped for it
+	 *
+	 * @param listener listener events are delivered to
+	 * @param queueCapacity most events queued for the listener
+	 * @return the subscription, used to cancel it
+	 */
+	public EventSubscription subscribe(ChatEventListener listener, int queueCapacity) {
+		EventSubscription subscription = new EventSubscription(listener, queueCapacity, batchSize, executor);
+		subscriptions.add(subscription);
+
+		return subscription;
+	}
+
+	/**
+	 * cancels a subscription so its listener receives no more events
+	 *
+	 * @param subscription subscription being cancelled
+	 */
+	public void unsubscribe(EventSubscription subscription) {
+		subscription.cancel();
+		subscriptions.remove(subscription);
+	}
+
+	/**
+	 * gets whether anybody is subscribed
+	 *
+	 * @return whether the bus has subscribers
+	 */
+	public boolean hasSubscribers() {
+		return !subscriptions.isEmpty();
+	}
+
+	/**
+	 * publishes an event to every subscriber, nothing is created when there are no subscribers
+	 *
+	 * @param type what happened
+	 * @param userID id of the user the event is about, or none
+	 * @param roomID id of the room the event is about, or none
+	 */
+	public void publish(ChatEvent.Type type, int userID, int roomID) {
+		publish(type, userID, roomID, 0);
+	}
+
+	/**
+	 * publishes an event with more about what happened to every subscriber, see publish
+	 *
+	 * @param type what happened
+	 * @param userID id of the user the event is about, or none
+	 * @param roomID id of the room the event is about, or none
+	 * @param detail more about what happened, see the event's detail
+	 */
+	public void publish(ChatEvent.Type type, int userID, int roomID, long detail) {
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+
+		ChatEvent event = new ChatEvent(sequence.incrementAndGet(), type, userID, roomID, detail,
+				System.currentTimeMillis());
+		for (EventSubscription subscription : subscriptions) {
+			subscription.offer(event);
+		}
+	}
+
+	/**
+	 * stops the delivery threads, waiting up to the timeout for queued deliveries to finish
+	 *
+	 * @param timeoutMillis longest time to wait in milliseconds
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void shutdown(long timeoutMillis) throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * gets the current subscriptions
+	 *
+	 * @return subscriptions of this bus
+	 */
+	public List<EventSubscription> getSubscriptions() {
+		return subscriptions;
+	}
+
+	/**
+	 * gets the sequence number of the last published event
+	 *
+	 * @return last sequence number
+	 */
+	public long getLastSequence() {
+		return sequence.get();
+	}
+
+	/**
+	 * sets the most events delivered to a listener in one call, applies to new subscriptions
+	 *
+	 * @param batchSize most events per delivery
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * gets the most events delivered to a listener in one call
+	 *
+	 * @return most events per delivery
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+}
@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a single listener subscribed to an event bus. Each subscription has its own
+ * bounded queue so a slow listener only ever drops its own events, it never blocks the
+ * publisher or delays other listeners.
+ */
+public class EventSubscription implements Runnable {
+
+	/**
+	 * listener events are delivered to
+	 */
+	private final ChatEventListener listener;
+	/**
+	 * events waiting to be delivered
+	 */
+	private final BlockingQueue<ChatEvent> queue;
+	/**
+	 * executor deliveries are run on
+	 */
+	private final Executor executor;
+	/**
+	 * most events delivered in one call to the listener
+	 */
+	private final int batchSize;
+	/**
+	 * whether a delivery is scheduled or running on the executor
+	 */
+	private final AtomicBoolean scheduled;
+	/**
+	 * number of events dropped as the queue was full
+	 */
+	private final AtomicLong dropped;
+	/**
+	 * number of events delivered to the listener
+	 */
+	private final AtomicLong delivered;
+	/**
+	 * whether the subscription has been cancelled
+	 */
+	private volatile boolean isCancelled;
+
+	/**
+	 * creates a subscription, all required attributes are set
+	 *
+	 * @param listener listener events are delivered to
+	 * @param queueCapacity most events waiting to be delivered before new ones are dropped
+	 * @param batchSize most events delivered in one call to the listener
+	 * @param executor executor deliveries are run on
+	 */
+	public EventSubscription(ChatEventListener listener, int queueCapacity, int batchSize, Executor executor) {
+		this.listener = listener;
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.batchSize = batchSize;
+		this.executor = executor;
+		this.scheduled = new AtomicBoolean();
+		this.dropped = new AtomicLong();
+		this.delivered = new AtomicLong();
+	}
+
+	/**
+	 * queues an event for delivery without blocking, the event is dropped if the queue is full
+	 *
+	 * @param event event being queued
+	 * @return whether the event was queued
+	 */
+	boolean offer(ChatEvent event) {
+		if (isCancelled) {
+			return false;
+		}
+		if (!queue.offer(event)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		schedule();
+		return true;
+	}
+
+	/**
+	 * schedules a delivery on the executor unless one is already scheduled
+	 */
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(this);
+			} catch (RuntimeException e) {
+				//executor has been shut down, nothing more will be delivered
+				scheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * delivers the next batch of queued events to the listener, then reschedules itself
+	 * if more events arrived so other subscriptions get a turn on the executor
+	 */
+	@Override
+	public void run() {
+		List<ChatEvent> batch = new ArrayList<>(Math.min(batchSize, queue.size() + 1));
+		queue.drainTo(batch, batchSize);
+
+		if (!batch.isEmpty() && !isCancelled) {
+			try {
+				listener.onEvents(Collections.unmodifiableList(batch));
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			delivered.addAndGet(batch.size());
+		}
+
+		scheduled.set(false);
+		if (!queue.isEmpty() && !isCancelled) {
+			schedule();
+		}
+	}
+
+	/**
+	 * stops delivering events to the listener, events already queued are discarded
+	 */
+	public void cancel() {
+		isCancelled = true;
+		queue.clear();
+	}
+
+	/**
+	 * gets whether the subscription has been cancelled
+	 *
+	 * @return whether the subscription is cancelled
+	 */
+	public boolean isCancelled() {
+		return isCancelled;
+	}
+
+	/**
+	 * gets the listener of this subscription
+	 *
+	 * @return listener events are delivered to
+	 */
+	public ChatEventListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * gets the number of events waiting to be delivered
+	 *
+	 * @return number of queued events
+	 */
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	/**
+	 * gets the number of events dropped as the queue was full
+	 *
+	 * @return number of dropped events
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * gets the number of events delivered to the listener
+	 *
+	 * @return number of delivered events
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+}
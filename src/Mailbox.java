@@ -0,0 +1,275 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is the bounded mailbox of one user. Any number of senders can add messages at once
+ * without locking, each claims a slot by moving the tail forward with a compare and set, while
+ * only the recipient takes messages out. Every slot carries a sequence number saying whether it
+ * is free for the sender of a given position or holds the message the recipient reads next, so
+ * a full mailbox refuses messages instead of blocking. A mailbox can be replaced by a larger one,
+ * the old one is then sealed so senders move on, and the recipient reads what is left in it before
+ * anything in the new one.
+ */
+public class Mailbox {
+
+	/**
+	 * bit set in the tail once the mailbox is sealed, positions never reach it
+	 */
+	private static final long SEALED = Long.MIN_VALUE;
+
+	/**
+	 * messages, indexed by position modulo the capacity
+	 */
+	private final DirectMessage[] slots;
+	/**
+	 * sequence number of each slot, equal to the position a sender may write when free
+	 * and one past the position when it holds a message
+	 */
+	private final AtomicLongArray sequences;
+	/**
+	 * capacity less one, capacity is a power of two
+	 */
+	private final int mask;
+	/**
+	 * next position a sender writes to
+	 */
+	private final AtomicLong tail;
+	/**
+	 * next position the recipient reads from, only written by the recipient
+	 */
+	private volatile long head;
+	/**
+	 * smaller mailbox this one replaced while it still held messages, read first
+	 */
+	private volatile Mailbox previous;
+	/**
+	 * messages added to the mailboxes this one replaced once they were read, only written by the recipient
+	 */
+	private volatile long carried;
+
+	/**
+	 * creates an empty mailbox, the capacity is rounded up to a power of two
+	 *
+	 * @param capacity most messages held at once
+	 */
+	public Mailbox(int capacity) {
+		this(capacity, null);
+	}
+
+	/**
+	 * creates an empty mailbox replacing another, whose messages are read first.
+	 * the capacity is rounded up to a power of two
+	 *
+	 * @param capacity most messages held at once
+	 * @param previous mailbox being replaced, sealed once this one has taken its place
+	 */
+	public Mailbox(int capacity, Mailbox previous) {
+		this.previous = previous;
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		this.slots = new DirectMessage[size];
+		this.sequences = new AtomicLongArray(size);
+		this.mask = size - 1;
+		this.tail = new AtomicLong();
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * adds a message if the mailbox holds fewer than the capacity, safe to call from any thread
+	 *
+	 * @param message message to add
+	 * @return whether the message was added
+	 */
+	public boolean offer(DirectMessage message) {
+		return offer(message, slots.length);
+	}
+
+	/**
+	 * adds a message if the mailbox holds fewer than a limit, safe to call from any thread.
+	 * messages left in the mailboxes this one replaced count towards the limit
+	 *
+	 * @param message message to add
+	 * @param limit most messages the mailbox may hold, no more than the capacity
+	 * @return whether the message was added, false if it is full or sealed
+	 */
+	public boolean offer(DirectMessage message, int limit) {
+		Mailbox older = previous;
+		int held = older == null ? 0 : older.size();
+		while (true) {
+			long position = tail.get();
+			if (position < 0) {
+				return false;
+			}
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+
+			if (difference < 0 || position - head + held >= limit) {
+				//the slot still holds an unread message from the last lap, or the limit is reached
+				return false;
+			}
+			if (difference == 0 && tail.compareAndSet(position, position + 1)) {
+				slots[index] = message;
+				//publishes the message to the recipient, an ordered store is enough as the
+				//recipient reads the sequence before the slot
+				sequences.lazySet(index, position + 1);
+				return true;
+			}
+			//another sender claimed the position first, try the next one
+		}
+	}
+
+	/**
+	 * stops senders adding messages, they see the mailbox as sealed and move on to the one
+	 * that replaced it. messages already being added still arrive
+	 */
+	public void seal() {
+		long position;
+		do {
+			position = tail.get();
+		} while (position >= 0 && !tail.compareAndSet(position, position | SEALED));
+	}
+
+	/**
+	 * gets whether the mailbox was sealed as a larger one replaced it
+	 *
+	 * @return whether the mailbox is sealed
+	 */
+	public boolean isSealed() {
+		return tail.get() < 0;
+	}
+
+	/**
+	 * gets whether the mailbox is sealed and every message added to it was read
+	 *
+	 * @return whether nothing more can be read from the mailbox
+	 */
+	private boolean isDrained() {
+		long position = tail.get();
+		return position < 0 && head == (position & ~SEALED) && previous == null;
+	}
+
+	/**
+	 * reads the mailbox this one replaced, forgetting it once everything in it was read.
+	 * only the recipient may call this
+	 *
+	 * @return the replaced mailbox while it may still hold messages, null once it is drained
+	 */
+	private Mailbox older() {
+		Mailbox older = previous;
+		if (older != null && older.isDrained()) {
+			carried += older.getAddedCount();
+			previous = null;
+			return null;
+		}
+		return older;
+	}
+
+	/**
+	 * takes the oldest message, only the recipient may call this
+	 *
+	 * @return the oldest message, null if there is none
+	 */
+	public DirectMessage poll() {
+		Mailbox older = older();
+		if (older != null) {
+			//nothing newer is read until the replaced mailbox is drained, so senders keep their order
+			DirectMessage message = older.poll();
+			return message != null || older() != null ? message : poll();
+		}
+
+		long position = head;
+		int index = (int) position & mask;
+		if (sequences.get(index) != position + 1) {
+			//empty, or the sender of this position has not finished writing
+			return null;
+		}
+
+		DirectMessage message = slots[index];
+		slots[index] = null;
+		//frees the slot for the sender one lap ahead
+		sequences.lazySet(index, position + slots.length);
+		head = position + 1;
+
+		return message;
+	}
+
+	/**
+	 * takes up to a number of the oldest messages, only the recipient may call this
+	 *
+	 * @param messages list the messages are added to, oldest first
+	 * @param max most messages taken
+	 * @return number of messages taken
+	 */
+	public int drainTo(List<DirectMessage> messages, int max) {
+		int taken = 0;
+		Mailbox older = older();
+		if (older != null) {
+			//nothing newer is read until the replaced mailbox is drained, so senders keep their order
+			taken = older.drainTo(messages, max);
+			if (older() != null) {
+				return taken;
+			}
+		}
+
+		long position = head;
+		while (taken < max) {
+			int index = (int) position & mask;
+			if (sequences.get(index) != position + 1) {
+				break;
+			}
+
+			messages.add(slots[index]);
+			slots[index] = null;
+			sequences.lazySet(index, position + slots.length);
+			position++;
+			taken++;
+		}
+		//the head is only published once for the whole batch
+		head = position;
+
+		return taken;
+	}
+
+	/**
+	 * gets the number of messages held, only exact when no sender is adding
+	 *
+	 * @return number of messages
+	 */
+	public int size() {
+		Mailbox older = previous;
+		int own = (int) Math.max(0, Math.min((tail.get() & ~SEALED) - head, slots.length));
+		return older == null ? own : own + older.size();
+	}
+
+	/**
+	 * gets the number of messages ever added to the mailbox and the ones it replaced
+	 *
+	 * @return number of messages added
+	 */
+	public long getAddedCount() {
+		Mailbox older = previous;
+		long added = (tail.get() & ~SEALED) + carried;
+		return older == null ? added : added + older.getAddedCount();
+	}
+
+	/**
+	 * gets whether the mailbox holds no messages
+	 *
+	 * @return whether the mailbox is empty
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * gets the most messages the mailbox holds at once
+	 *
+	 * @return capacity of mailbox
+	 */
+	public int getCapacity() {
+		return slots.length;
+	}
+
+}
@@ -0,0 +1,265 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class finds the mailbox of a user by id. Mailboxes are kept in pages of a fixed number of
+ * ids, a page is only created once a user in it gets a message, so a million possible ids cost
+ * little until they are used and finding a mailbox is two array reads. Ids past the pages are
+ * kept in a map. Messages for users who are offline are held up to a lower limit than for users
+ * who are online, so nobody can fill the memory of the server by messaging absent users. A mailbox
+ * starts small and is replaced by one twice the size whenever it fills up below the limit, so the
+ * memory of a mailbox follows the messages its user is actually sent.
+ */
+public class MailboxIndex {
+
+	/**
+	 * default highest user id kept in the pages
+	 */
+	public static final int DEFAULT_MAX_USER_ID = PresenceIndex.DEFAULT_MAX_USER_ID;
+	/**
+	 * number of bits of a user id used to find its place within a page
+	 */
+	private static final int PAGE_BITS = 12;
+	/**
+	 * number of mailboxes in a page
+	 */
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	/**
+	 * capacity a mailbox starts with
+	 */
+	private static final int INITIAL_CAPACITY = 4;
+
+	/**
+	 * pages of mailboxes, created when first needed
+	 */
+	private final AtomicReferenceArray<AtomicReferenceArray<Mailbox>> pages;
+	/**
+	 * mailboxes of users whose id does not fit in the pages
+	 */
+	private final Map<Integer, Mailbox> overflow;
+	/**
+	 * most messages held for a user who is online
+	 */
+	private int mailboxCapacity = 256;
+	/**
+	 * most messages held for a user who is offline
+	 */
+	private int offlineLimit = 32;
+	/**
+	 * number of messages refused as the mailbox was full
+	 */
+	private final LongAdder dropped;
+
+	/**
+	 * creates an index able to find the mailboxes of user ids up to the default max user id
+	 * without allocating
+	 */
+	public MailboxIndex() {
+		this(DEFAULT_MAX_USER_ID);
+	}
+
+	/**
+	 * creates an index able to find the mailboxes of user ids up to max user id without
+	 * allocating, any higher ids are still found but more slowly
+	 *
+	 * @param maxUserID highest user id kept in the pages
+	 */
+	public MailboxIndex(int maxUserID) {
+		this.pages = new AtomicReferenceArray<>((maxUserID >>> PAGE_BITS) + 1);
+		this.overflow = new ConcurrentHashMap<>();
+		this.dropped = new LongAdder();
+	}
+
+	/**
+	 * puts a message in the mailbox of its recipient
+	 *
+	 * @param message message being sent
+	 * @param isRecipientOnline whether the recipient is online
+	 * @return whether the message was put in the mailbox, false if it was full
+	 */
+	public boolean send(DirectMessage message, boolean isRecipientOnline) {
+		int limit = isRecipientOnline ? mailboxCapacity : offlineLimit;
+		while (true) {
+			Mailbox mailbox = mailboxFor(message.getRecipientID());
+			if (mailbox.offer(message, limit)) {
+				//delivered messages are counted by the mailboxes themselves, saving a shared counter
+				return true;
+			}
+
+			//a sealed mailbox was just replaced by a larger one, the message goes there
+			if (!mailbox.isSealed()) {
+				if (mailbox.getCapacity() >= limit || mailbox.size() >= limit) {
+					dropped.increment();
+					return false;
+				}
+				grow(message.getRecipientID(), mailbox);
+			}
+		}
+	}
+
+	/**
+	 * replaces a full mailbox with one twice the size, when another sender has not already
+	 *
+	 * @param userID id of the user
+	 * @param mailbox the user's full mailbox
+	 */
+	private void grow(int userID, Mailbox mailbox) {
+		Mailbox larger = new Mailbox(mailbox.getCapacity() * 2, mailbox);
+		AtomicReferenceArray<Mailbox> page = pageFor(userID, false);
+		boolean replaced = page == null ? overflow.replace(userID, mailbox, larger)
+				: page.compareAndSet(userID & (PAGE_SIZE - 1), mailbox, larger);
+		if (replaced) {
+			mailbox.seal();
+		}
+	}
+
+	/**
+	 * takes up to a number of the oldest messages of a user, only one thread may take
+	 * the messages of a user at a time
+	 *
+	 * @param userID id of the recipient
+	 * @param messages list the messages are added to, oldest first
+	 * @param max most messages taken
+	 * @return number of messages taken
+	 */
+	public int receive(int userID, List<DirectMessage> messages, int max) {
+		Mailbox mailbox = getMailbox(userID);
+		return mailbox == null ? 0 : mailbox.drainTo(messages, max);
+	}
+
+	/**
+	 * gets the mailbox of a user, creating a small one if they have none
+	 *
+	 * @param userID id of the user
+	 * @return mailbox of the user
+	 */
+	public Mailbox mailboxFor(int userID) {
+		AtomicReferenceArray<Mailbox> page = pageFor(userID, true);
+		if (page == null) {
+			return overflow.computeIfAbsent(userID, id -> new Mailbox(INITIAL_CAPACITY));
+		}
+
+		int index = userID & (PAGE_SIZE - 1);
+		Mailbox mailbox = page.get(index);
+		if (mailbox == null) {
+			page.compareAndSet(index, null, new Mailbox(INITIAL_CAPACITY));
+			mailbox = page.get(index);
+		}
+		return mailbox;
+	}
+
+	/**
+	 * gets the mailbox of a user
+	 *
+	 * @param userID id of the user
+	 * @return mailbox of the user, null if they have none
+	 */
+	public Mailbox getMailbox(int userID) {
+		if (userID < 0 || (userID >>> PAGE_BITS) >= pages.length()) {
+			return overflow.get(userID);
+		}
+
+		AtomicReferenceArray<Mailbox> page = pageFor(userID, false);
+		return page == null ? null : page.get(userID & (PAGE_SIZE - 1));
+	}
+
+	/**
+	 * finds the page a user id falls in
+	 *
+	 * @param userID id of the user
+	 * @param create whether a missing page is created
+	 * @return page of the user, null if the id is past the pages or the page is missing
+	 */
+	private AtomicReferenceArray<Mailbox> pageFor(int userID, boolean create) {
+		int pageIndex = userID >>> PAGE_BITS;
+		if (userID < 0 || pageIndex >= pages.length()) {
+			return null;
+		}
+
+		AtomicReferenceArray<Mailbox> page = pages.get(pageIndex);
+		if (page == null && create) {
+			pages.compareAndSet(pageIndex, null, new AtomicReferenceArray<>(PAGE_SIZE));
+			page = pages.get(pageIndex);
+		}
+		return page;
+	}
+
+	/**
+	 * removes every mailbox and the messages in them
+	 */
+	public void clear() {
+		for (int i = 0; i < pages.length(); i++) {
+			pages.set(i, null);
+		}
+		overflow.clear();
+	}
+
+	/**
+	 * gets the number of messages put in a mailbox, this walks every mailbox
+	 *
+	 * @return number of messages delivered
+	 */
+	public long getDeliveredCount() {
+		long delivered = 0;
+		for (int i = 0; i < pages.length(); i++) {
+			AtomicReferenceArray<Mailbox> page = pages.get(i);
+			for (int j = 0; page != null && j < page.length(); j++) {
+				Mailbox mailbox = page.get(j);
+				delivered += mailbox == null ? 0 : mailbox.getAddedCount();
+			}
+		}
+		for (Mailbox mailbox : overflow.values()) {
+			delivered += mailbox.getAddedCount();
+		}
+		return delivered;
+	}
+
+	/**
+	 * gets the number of messages refused as the mailbox was full
+	 *
+	 * @return number of messages dropped
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * sets the most messages held for a user who is online
+	 *
+	 * @param mailboxCapacity most messages held
+	 */
+	public void setMailboxCapacity(int mailboxCapacity) {
+		this.mailboxCapacity = mailboxCapacity;
+	}
+
+	/**
+	 * gets the most messages held for a user who is online
+	 *
+	 * @return most messages held
+	 */
+	public int getMailboxCapacity() {
+		return mailboxCapacity;
+	}
+
+	/**
+	 * sets the most messages held for a user who is offline
+	 *
+	 * @param offlineLimit most messages held
+	 */
+	public void setOfflineLimit(int offlineLimit) {
+		this.offlineLimit = offlineLimit;
+	}
+
+	/**
+	 * gets the most messages held for a user who is offline
+	 *
+	 * @return most messages held
+	 */
+	public int getOfflineLimit() {
+		return offlineLimit;
+	}
+
+}
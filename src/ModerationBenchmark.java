@@ -0,0 +1,191 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class checks moderation is enforced and measures what it costs admission. Bans must keep
+ * users out of the server, kicks out of a room, and both must run out or be lifted. Checks must
+ * stay correct while the index is rebuilt under them. Finally joining and leaving the server is
+ * timed with no bans and with many bans, which should take the same time.
+ */
+public class ModerationBenchmark {
+
+	/**
+	 * runs the checks then the benchmark
+	 *
+	 * @param args CLI arguments, optionally the number of bans and of joins timed
+	 * @throws InterruptedException if interrupted while waiting for an action to run out
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int bans = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int joins = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+		ChatLog.setEnabled(false);
+		checkIndex();
+		checkConcurrentReads();
+		checkServer();
+		System.out.println("Ban, kick, mute and expiry checks passed.");
+
+		double empty = timeJoins(0, joins);
+		double banned = timeJoins(bans, joins);
+		System.out.printf("join and leave with no bans:    %8.1f ns%n", empty);
+		System.out.printf("join and leave with %7d bans: %8.1f ns%n", bans, banned);
+		ChatLog.setEnabled(true);
+	}
+
+	/**
+	 * checks adding, lifting and running out of actions, including ids the table treats specially
+	 *
+	 * @throws InterruptedException if interrupted while waiting for an action to run out
+	 */
+	private static void checkIndex() throws InterruptedException {
+		ModerationIndex index = new ModerationIndex();
+		index.add(0, 0);
+		index.add(-7, 0);
+		index.add(42, 50);
+		expect(index.contains(0) && index.contains(-7) && index.contains(42), "added users are found");
+		expect(!index.contains(1) && index.size() == 3, "only added users are found");
+		expect(index.getRemainingMillis(0) == Long.MAX_VALUE, "an action without duration lasts until lifted");
+
+		expect(index.remove(0) && !index.contains(0) && !index.remove(0), "a lifted action is gone");
+		Thread.sleep(100);
+		expect(!index.contains(42) && index.contains(-7), "a timed action runs out");
+
+		index.add(0, 0);
+		expect(index.contains(0), "an action can be put back on a user");
+
+		//end times are not counted from when the index was made, so long actions keep their length
+		long sixtyDays = 60L * 24 * 60 * 60 * 1000;
+		index.add(7, sixtyDays);
+		long remaining = index.getRemainingMillis(7);
+		expect(remaining > sixtyDays - 1000 && remaining <= sixtyDays, "a 60 day action lasts 60 days");
+		index.add(8, Long.MAX_VALUE);
+		index.add(9, Long.MAX_VALUE - 1);
+		expect(index.getRemainingMillis(8) == Long.MAX_VALUE
+				&& index.getRemainingMillis(9) == Long.MAX_VALUE, "an action too long to end lasts until lifted");
+		index.add(7, 50);
+		expect(index.getRemainingMillis(7) <= 50, "a new action replaces a longer one");
+		index.remove(8);
+		index.remove(9);
+		Thread.sleep(100);
+		expect(!index.contains(7) && !index.contains(8) && !index.contains(9), "replaced and lifted actions end");
+
+		//many short actions fill the table with entries that ran out, forcing rebuilds
+		for (int i = 1; i <= 100_000; i++) {
+			index.add(i, 1);
+		}
+		Thread.sleep(10);
+		for (int i = 1; i <= 100_000; i++) {
+			index.add(1_000_000 + i, 0);
+			index.remove(1_000_000 + i);
+		}
+		expect(index.size() == 2 && index.contains(0) && index.contains(-7), "rebuilds keep live entries");
+	}
+
+	/**
+	 * checks a reader never misses a user under an action while another thread adds and lifts
+	 * actions on other users, rebuilding the table many times
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	private static void checkConcurrentReads() throws InterruptedException {
+		ModerationIndex index = new ModerationIndex();
+		for (int i = 0; i < 64; i++) {
+			index.add(i * 7919, 0);
+		}
+
+		AtomicBoolean writing = new AtomicBoolean(true);
+		Thread writer = new Thread(() -> {
+			for (int i = 0; i < 500_000; i++) {
+				index.add(-1 - i, 0);
+				index.remove(-1 - i);
+			}
+			writing.set(false);
+		});
+		writer.start();
+
+		long misses = 0;
+		while (writing.get()) {
+			for (int i = 0; i < 64; i++) {
+				if (!index.contains(i * 7919)) {
+					misses++;
+				}
+			}
+		}
+		writer.join();
+		expect(misses == 0, "readers see every live entry during rebuilds, missed " + misses);
+	}
+
+	/**
+	 * checks bans and kicks are enforced by the server and its rooms, including a sharded main room
+	 */
+	private static void checkServer() {
+		Admin admin = new Admin("Moderator");
+		ChatServer server = new ChatServer(10, 3, 2, admin);
+		for (ChatRoom room : server.getChatRooms()) {
+			room.open();
+		}
+		User user = new User(1, server);
+		User other = new User(2, server);
+
+		expect(server.join(user) && server.joinMainChatRoom(user), "user joins before being banned");
+		admin.ban(1, 0);
+		expect(server.getNumberOfUsers() == 0 && !server.getMainRoom().hasMember(1), "a ban removes the user");
+		expect(!user.isJoinedServer() && !user.isJoinedMainRoom(), "a banned user knows they left");
+		expect(!server.join(user) && !server.joinWithMainRoom(user), "a banned user cannot join");
+		expect(admin.unban(1) && server.join(user), "an unbanned user can join");
+
+		server.join(other);
+		ChatRoom room = server.getChatRooms().get(1);
+		expect(room.enterRoom(other), "user enters before being kicked");
+		expect(admin.kick(other, 1, 0) && !room.hasMember(2), "a kick removes the user from the room");
+		expect(!room.enterRoom(other) && !room.reserve(other), "a kicked user cannot enter");
+		expect(server.joinMainChatRoom(other), "a kick only applies to its room");
+		expect(admin.kick(other, 0, 0) && !server.joinMainChatRoom(other), "a sharded room enforces kicks");
+		expect(room.unkick(2) && room.enterRoom(other), "a lifted kick lets the user back in");
+
+		admin.mute(2, 1, 0);
+		expect(room.isMuted(2) && room.hasMember(2), "a muted user stays in the room");
+		expect(admin.unmute(2, 1) && !room.isMuted(2), "a lifted mute is gone");
+	}
+
+	/**
+	 * times one user joining and leaving a server with a number of other users banned
+	 *
+	 * @param bans number of users banned
+	 * @param joins number of joins timed
+	 * @return average time of a join and leave in nanoseconds
+	 */
+	private static double timeJoins(int bans, int joins) {
+		ChatServer server = new ChatServer(10, 2, 1, new Admin("Timing"));
+		for (int i = 0; i < bans; i++) {
+			server.ban(1_000 + i, 0);
+		}
+		User user = new User(1, server);
+
+		//warm up before measuring
+		for (int i = 0; i < joins / 4; i++) {
+			server.join(user);
+			server.leave(user);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < joins; i++) {
+			server.join(user);
+			server.leave(user);
+		}
+		return (double) (System.nanoTime() - start) / joins;
+	}
+
+	/**
+	 * stops the checks with a failure if a condition does not hold
+	 *
+	 * @param condition condition being checked
+	 * @param what what the condition means
+	 */
+	private static void expect(boolean condition, String what) {
+		if (!condition) {
+			System.out.println("FAILED: " + what);
+			System.exit(1);
+		}
+	}
+
+}
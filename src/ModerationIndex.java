@@ -0,0 +1,289 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class holds the users under a moderation action, such as a ban or a mute, until it runs
+ * out. Each entry is two longs, the user id and the time the action ends, kept side by side in an
+ * open addressing table, so checking a user is a few array reads with no locking and nothing
+ * allocated. Adding and lifting actions lock the index. Entries that ran out or were lifted stay
+ * in place until the table fills up, when it is rebuilt with only the live entries and swapped in
+ * whole, so a check never sees a table being changed. The id of a slot never changes once set and
+ * its end time is written first, so a check never sees an id without its end time.
+ */
+public class ModerationIndex {
+
+	/**
+	 * end time of an action that lasts until it is lifted
+	 */
+	private static final long UNTIL_LIFTED = Long.MAX_VALUE;
+	/**
+	 * end time of an action that was lifted, long in the past
+	 */
+	private static final long LIFTED = 0;
+	/**
+	 * bit set on every stored id, so no id is mistaken for an empty slot
+	 */
+	private static final long OCCUPIED = 1L << 32;
+
+	/**
+	 * entries, each slot the user id with the occupied bit then the end time in milliseconds since
+	 * the unix epoch, zero ids for an empty slot
+	 */
+	private volatile AtomicLongArray table;
+	/**
+	 * number of slots used, including entries that ran out or were lifted
+	 */
+	private int used;
+
+	/**
+	 * creates an empty index
+	 */
+	public ModerationIndex() {
+		this(16);
+	}
+
+	/**
+	 * creates an empty index sized for a number of users, the size is rounded up to a power of two
+	 *
+	 * @param expected number of users expected to be under an action at once
+	 */
+	public ModerationIndex(int expected) {
+		this.table = new AtomicLongArray(2 * tableSize(expected));
+	}
+
+	/**
+	 * gets the size of a table that keeps a number of entries at most half full
+	 *
+	 * @param entries number of entries
+	 * @return number of slots, a power of two
+	 */
+	private static int tableSize(int entries) {
+		return Integer.highestOneBit(Math.max(entries, 4) * 2 - 1) << 1;
+	}
+
+	/**
+	 * gets the first slot of a user id in a table
+	 *
+	 * @param userID id of the user
+	 * @param mask number of slots less one
+	 * @return index of the first slot probed
+	 */
+	private static int slot(int userID, int mask) {
+		int hash = userID * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * puts a user under the action, replacing any action already on them
+	 *
+	 * @param userID id of the user
+	 * @param durationMillis how long the action lasts, 0 or less until it is lifted.
+	 *                       actions too long to end before the end of time also last until lifted
+	 * @return when the action ends in milliseconds since the epoch, Long.MAX_VALUE if it lasts until lifted
+	 */
+	public long add(int userID, long durationMillis) {
+		long now = System.currentTimeMillis();
+		boolean ends = durationMillis > 0 && durationMillis < UNTIL_LIFTED - now;
+		long end = ends ? now + durationMillis : UNTIL_LIFTED;
+
+		addUntil(userID, end);
+		return end;
+	}
+
+	/**
+	 * puts a user under the action until a time, replacing any action already on them,
+	 * as when copying an action from another index
+	 *
+	 * @param userID id of the user
+	 * @param end when the action ends in milliseconds since the epoch, Long.MAX_VALUE until it is lifted
+	 */
+	public synchronized void addUntil(int userID, long end) {
+		AtomicLongArray current = table;
+		int index = find(current, userID);
+		if (index < 0) {
+			if ((used + 1) * 4 > current.length()) {
+				current = rebuild();
+			}
+			index = ~find(current, userID);
+			used++;
+			//the end time goes in before the id makes the slot visible
+			current.set(2 * index + 1, end);
+			current.set(2 * index, (userID & 0xFFFFFFFFL) | OCCUPIED);
+		} else {
+			current.set(2 * index + 1, end);
+		}
+	}
+
+	/**
+	 * lifts the action on a user
+	 *
+	 * @param userID id of the user
+	 * @return whether the user was under the action
+	 */
+	public synchronized boolean remove(int userID) {
+		boolean wasActive = contains(userID);
+
+		AtomicLongArray current = table;
+		int index = find(current, userID);
+		if (index >= 0) {
+			current.set(2 * index + 1, LIFTED);
+		}
+		return wasActive;
+	}
+
+	/**
+	 * checks whether a user is under the action, without locking
+	 *
+	 * @param userID id of the user
+	 * @return whether the action is on the user and has not run out
+	 */
+	public boolean contains(int userID) {
+		return getRemainingMillis(userID) != 0;
+	}
+
+	/**
+	 * gets how long the action on a user has left, without locking
+	 *
+	 * @param userID id of the user
+	 * @return milliseconds left, 0 if the user is not under the action,
+	 *         Long.MAX_VALUE if it lasts until lifted
+	 */
+	public long getRemainingMillis(int userID) {
+		long end = getEndMillis(userID);
+		return end == UNTIL_LIFTED ? Long.MAX_VALUE : Math.max(0, end - System.currentTimeMillis());
+	}
+
+	/**
+	 * gets when the action on a user ends, without locking
+	 *
+	 * @param userID id of the user
+	 * @return milliseconds since the epoch, Long.MAX_VALUE if it lasts until lifted,
+	 *         0 if the user was never under the action or it was lifted
+	 */
+	public long getEndMillis(int userID) {
+		AtomicLongArray current = table;
+		int mask = current.length() / 2 - 1;
+
+		for (int i = slot(userID, mask); ; i = (i + 1) & mask) {
+			long id = current.get(2 * i);
+			if (id == 0) {
+				return LIFTED;
+			}
+			if ((int) id == userID) {
+				return current.get(2 * i + 1);
+			}
+		}
+	}
+
+	/**
+	 * gets the ids of the users under the action, without locking
+	 *
+	 * @return ids of the users, in no order
+	 */
+	public int[] getUserIDs() {
+		AtomicLongArray current = table;
+		long now = System.currentTimeMillis();
+
+		int[] ids = new int[current.length() / 2];
+		int count = 0;
+		for (int i = 0; i < current.length(); i += 2) {
+			long id = current.get(i);
+			if (isLive(id, current.get(i + 1), now)) {
+				ids[count++] = (int) id;
+			}
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+	/**
+	 * finds the slot of a user in a table
+	 *
+	 * @param current table searched
+	 * @param userID id of the user
+	 * @return index of the user's slot, or the complement of the empty slot they would go in
+	 */
+	private static int find(AtomicLongArray current, int userID) {
+		int mask = current.length() / 2 - 1;
+		for (int i = slot(userID, mask); ; i = (i + 1) & mask) {
+			long id = current.get(2 * i);
+			if (id == 0) {
+				return ~i;
+			}
+			if ((int) id == userID) {
+				return i;
+			}
+		}
+	}
+
+	/**
+	 * builds a new table holding only the live entries and swaps it in,
+	 * the caller must hold the index monitor
+	 *
+	 * @return the new table
+	 */
+	private AtomicLongArray rebuild() {
+		AtomicLongArray current = table;
+		long now = System.currentTimeMillis();
+
+		int live = 0;
+		for (int i = 0; i < current.length(); i += 2) {
+			if (isLive(current.get(i), current.get(i + 1), now)) {
+				live++;
+			}
+		}
+
+		AtomicLongArray rebuilt = new AtomicLongArray(2 * tableSize(live + 1));
+		for (int i = 0; i < current.length(); i += 2) {
+			long id = current.get(i);
+			long end = current.get(i + 1);
+			if (isLive(id, end, now)) {
+				int index = ~find(rebuilt, (int) id);
+				rebuilt.set(2 * index, id);
+				rebuilt.set(2 * index + 1, end);
+			}
+		}
+
+		used = live;
+		table = rebuilt;
+		return rebuilt;
+	}
+
+	/**
+	 * checks whether a slot holds an action that has not been lifted or run out
+	 *
+	 * @param id stored id of the slot
+	 * @param end end time of the slot
+	 * @param now the current time in milliseconds since the unix epoch
+	 * @return whether the entry is live
+	 */
+	private static boolean isLive(long id, long end, long now) {
+		return id != 0 && end > now;
+	}
+
+	/**
+	 * gets the number of users under the action
+	 *
+	 * @return number of users
+	 */
+	public int size() {
+		AtomicLongArray current = table;
+		long now = System.currentTimeMillis();
+
+		int live = 0;
+		for (int i = 0; i < current.length(); i += 2) {
+			if (isLive(current.get(i), current.get(i + 1), now)) {
+				live++;
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * lifts every action
+	 */
+	public synchronized void clear() {
+		table = new AtomicLongArray(table.length());
+		used = 0;
+	}
+
+}
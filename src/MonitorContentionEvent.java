@@ -0,0 +1,40 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * This class is the JFR event committed by the contention profiler each time a
+ * profiled server or room monitor is released.
+ */
+@Name("chat.MonitorContention")
+@Label("Chat Monitor Contention")
+@Category("Chat Server")
+@Description("Wait for and hold of a chat server or chat room monitor")
+public class MonitorContentionEvent extends jdk.jfr.Event {
+
+	/**
+	 * method that took the monitor
+	 */
+	@Label("Site")
+	String site;
+	/**
+	 * name of the server or room instance locked
+	 */
+	@Label("Monitor")
+	String monitor;
+	/**
+	 * time spent waiting for the monitor
+	 */
+	@Label("Wait")
+	@Timespan(Timespan.NANOSECONDS)
+	long waitNanos;
+	/**
+	 * time the monitor was held
+	 */
+	@Label("Hold")
+	@Timespan(Timespan.NANOSECONDS)
+	long holdNanos;
+
+}
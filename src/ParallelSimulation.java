@@ -0,0 +1,284 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class simulates many users across every core. Instead of a thread per user sleeping
+ * between actions, users are split into partitions with a chat server each, and every round
+ * each user takes its next action (join, enter the main room, move to a random room, stay or
+ * leave) in tasks run on a work-stealing fork/join pool. Running it with 1, 2, 4... workers
+ * shows how the simulated actions per second scale with cores. Only turns that change what a user
+ * is doing count as actions, not turns spent staying in a room or turned away.
+ */
+public class ParallelSimulation {
+
+	/**
+	 * user is not in the server
+	 */
+	private static final byte OUTSIDE = 0;
+	/**
+	 * user is in the server but not in a room
+	 */
+	private static final byte IN_SERVER = 1;
+	/**
+	 * user is in the main room
+	 */
+	private static final byte IN_MAIN_ROOM = 2;
+	/**
+	 * user is in a random room
+	 */
+	private static final byte IN_RANDOM_ROOM = 3;
+
+	/**
+	 * number of users simulated
+	 */
+	private final int userCount;
+	/**
+	 * number of partitions, each with its own chat server
+	 */
+	private final int partitions;
+	/**
+	 * most users handled by one task before it is split
+	 */
+	private int batchSize = 512;
+	/**
+	 * number of rooms in each partition's server, including the main room
+	 */
+	private int roomsPerPartition = 4;
+	/**
+	 * chat server of each partition
+	 */
+	private final ChatServer[] servers;
+	/**
+	 * the simulated users, users of one partition are next to each other
+	 */
+	private final User[] users;
+	/**
+	 * what each user is currently doing
+	 */
+	private final byte[] phase;
+	/**
+	 * rounds each user still stays in its room
+	 */
+	private final byte[] stay;
+
+	/**
+	 * creates a simulation, the users are split evenly between the partitions
+	 *
+	 * @param userCount number of users
+	 * @param partitions number of partitions
+	 */
+	public ParallelSimulation(int userCount, int partitions) {
+		this.userCount = userCount;
+		this.partitions = partitions;
+		this.servers = new ChatServer[partitions];
+		this.users = new User[userCount];
+		this.phase = new byte[userCount];
+		this.stay = new byte[userCount];
+
+		int perPartition = (userCount + partitions - 1) / partitions;
+		for (int p = 0; p < partitions; p++) {
+			//the server has a place for every user of the partition, each room holds one fewer
+			servers[p] = new ChatServer(perPartition, roomsPerPartition, new Admin("Partition " + p));
+			for (ChatRoom room : servers[p].getChatRooms()) {
+				room.open();
+			}
+		}
+		for (int i = 0; i < userCount; i++) {
+			users[i] = new User(i + 1, servers[i / perPartition]);
+		}
+	}
+
+	/**
+	 * runs the scaling curve, doubling the number of workers up to the number of cores
+	 *
+	 * @param args CLI arguments, optionally the number of users, rounds and users per partition
+	 */
+	public static void main(String[] args) {
+		int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		int perPartition = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int partitions = Math.max(1, userCount / perPartition);
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		ChatLog.setEnabled(false);
+		double baseline = 0;
+		System.out.printf("%d users in %d partitions, %d rounds%n", userCount, partitions, rounds);
+		System.out.printf("%8s %16s %10s%n", "workers", "actions/s", "speedup");
+
+		//the partitions stay the same for every run so only the number of workers changes
+		for (int step = 1; ; step *= 2) {
+			int workers = Math.min(step, cores);
+			ParallelSimulation simulation = new ParallelSimulation(userCount, partitions);
+			ForkJoinPool pool = new ForkJoinPool(workers);
+
+			//warm up before measuring
+			simulation.run(pool, Math.max(rounds / 5, 1));
+			long start = System.nanoTime();
+			long actions = simulation.run(pool, rounds);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			pool.shutdown();
+
+			double rate = actions / seconds;
+			if (baseline == 0) {
+				baseline = rate;
+			}
+			System.out.printf("%8d %16.0f %9.2fx%n", workers, rate, rate / baseline);
+
+			if (workers == cores) {
+				break;
+			}
+		}
+		ChatLog.setEnabled(true);
+	}
+
+	/**
+	 * runs a number of rounds, every user takes one turn each round
+	 *
+	 * @param pool pool the rounds are run on
+	 * @param rounds number of rounds
+	 * @return number of actions taken, turns spent staying or turned away are not counted
+	 */
+	public long run(ForkJoinPool pool, int rounds) {
+		long actions = 0;
+		for (int round = 0; round < rounds; round++) {
+			actions += pool.invoke(new Step(0, userCount));
+		}
+		return actions;
+	}
+
+	/**
+	 * takes the next action of one user
+	 *
+	 * @param i index of the user
+	 * @return whether the user did something, false if they stayed or were turned away
+	 */
+	private boolean act(int i) {
+		User user = users[i];
+		ChatServer server = user.getServer();
+
+		switch (phase[i]) {
+			case OUTSIDE:
+				if (server.join(user)) {
+					phase[i] = IN_SERVER;
+					return true;
+				}
+				return false;
+			case IN_SERVER:
+				if (server.joinMainChatRoom(user)) {
+					phase[i] = IN_MAIN_ROOM;
+					stay[i] = (byte) ThreadLocalRandom.current().nextInt(2, 6);
+					return true;
+				}
+				return false;
+			case IN_MAIN_ROOM:
+				if (--stay[i] > 0) {
+					return false;
+				}
+				server.getMainRoom().leaveRoom(user);
+				if (server.joinRandomChatRoom(user)) {
+					phase[i] = IN_RANDOM_ROOM;
+					stay[i] = (byte) ThreadLocalRandom.current().nextInt(2, 6);
+				} else {
+					phase[i] = IN_SERVER;
+				}
+				return true;
+			default:
+				if (--stay[i] > 0) {
+					return false;
+				}
+				server.leaveChatRoom(user);
+				phase[i] = OUTSIDE;
+				return true;
+		}
+	}
+
+	/**
+	 * This class is one round of actions for a range of users, it splits itself in half until
+	 * the range is no bigger than the batch size so idle workers can steal the halves.
+	 */
+	private class Step extends RecursiveTask<Long> {
+
+		/**
+		 * version of the serialized form, steps are never serialized
+		 */
+		private static final long serialVersionUID = 1L;
+		/**
+		 * index of the first user
+		 */
+		private final int from;
+		/**
+		 * index just past the last user
+		 */
+		private final int to;
+
+		/**
+		 * creates a step for a range of users
+		 *
+		 * @param from index of the first user
+		 * @param to index just past the last user
+		 */
+		Step(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Long compute() {
+			if (to - from <= batchSize) {
+				long actions = 0;
+				for (int i = from; i < to; i++) {
+					if (act(i)) {
+						actions++;
+					}
+				}
+				return actions;
+			}
+
+			int middle = (from + to) >>> 1;
+			Step left = new Step(from, middle);
+			left.fork();
+			long right = new Step(middle, to).compute();
+
+			return right + left.join();
+		}
+
+	}
+
+	/**
+	 * sets the most users handled by one task before it is split
+	 *
+	 * @param batchSize users per task
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * gets the most users handled by one task before it is split
+	 *
+	 * @return users per task
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * gets the chat server of each partition
+	 *
+	 * @return servers of the partitions
+	 */
+	public ChatServer[] getServers() {
+		return servers;
+	}
+
+	/**
+	 * gets the number of partitions
+	 *
+	 * @return number of partitions
+	 */
+	public int getPartitions() {
+		return partitions;
+	}
+
+}
@@ -0,0 +1,604 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class runs the simulation through a fixed set of scenarios and fails when any of them gets
+ * slower than a stored baseline. Each scenario is an Application style run with users and admins
+ * sleeping milliseconds instead of seconds: a lobby rush of users all arriving at once, heavy
+ * churn of users joining and leaving, an admin opening and closing rooms as fast as they can,
+ * and far more users than the server holds. Users admitted per second of CPU time the users and
+ * admin used, the latency of admission decisions and bytes allocated per decision are recorded
+ * for each. Users turned away do not count as throughput, so a server that rejects more users
+ * faster does not pass as a faster one, and CPU time leaves out the time threads spend asleep,
+ * which depends on the scheduler more than on the code. Baselines depend on the machine, so record
+ * one on the machine the suite is run on with --record before checking against it with --baseline.
+ * Recording also stores how far each metric spread across its runs, and a later result may move
+ * by that much as well as by the tolerance, so a metric that is noisy on the machine does not
+ * fail on unchanged code.
+ */
+public class PerformanceSuite {
+
+	/**
+	 * the scenarios run by the suite
+	 */
+	public enum Scenario {
+		LOBBY_RUSH("lobby-rush"),
+		CHURN("churn"),
+		ROOM_CLOSE_STORM("room-close-storm"),
+		SATURATION("saturation");
+
+		/**
+		 * name of the scenario in reports and baseline files
+		 */
+		private final String key;
+
+		/**
+		 * creates a scenario
+		 *
+		 * @param key name of the scenario in reports and baseline files
+		 */
+		Scenario(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * gets the name of the scenario in reports and baseline files
+		 *
+		 * @return name of scenario
+		 */
+		public String getKey() {
+			return key;
+		}
+	}
+
+	/**
+	 * bean counting the bytes allocated by each thread, looked up once as the lookup allocates
+	 */
+	private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	/**
+	 * latency in microseconds a result may rise by on top of the tolerance, as timings
+	 * of a few microseconds vary more than any percentage between runs
+	 */
+	private static final double LATENCY_SLACK_MICROS = 2;
+	/**
+	 * bytes per admission a result may rise by on top of the tolerance, so a baseline
+	 * of zero does not fail on a single stray allocation
+	 */
+	private static final double ALLOCATION_SLACK_BYTES = 16;
+	/**
+	 * how many times the spread recorded in the baseline a result may move by
+	 */
+	private static final double SPREAD_FACTOR = 1.5;
+	/**
+	 * runs of each scenario thrown away before measuring, a single run is too short for the JIT
+	 * to compile the admission paths
+	 */
+	private static final int WARM_UP_RUNS = 4;
+	/**
+	 * fewest runs a baseline is recorded or checked with, one run has no median
+	 */
+	private static final int MIN_GATED_RUNS = 3;
+
+	/**
+	 * share a result may get worse by before it counts as a regression
+	 */
+	private double tolerance = 0.25;
+	/**
+	 * times each scenario is run, the median of each metric is kept
+	 */
+	private int runs = 5;
+	/**
+	 * multiplies the number of users in every scenario
+	 */
+	private double scale = 1;
+	/**
+	 * bytes allocated by the threads of the scenario being run
+	 */
+	private final LongAdder allocatedBytes = new LongAdder();
+	/**
+	 * CPU time used by the threads of the scenario being run in nanoseconds
+	 */
+	private final LongAdder cpuNanos = new LongAdder();
+
+	/**
+	 * runs the suite, with --record the results are written to the file as the new baseline,
+	 * with --baseline they are checked against the file and the exit status is 1 on a regression
+	 *
+	 * @param args CLI arguments: [--baseline file] [--record file] [--tolerance share] [--runs n]
+	 *             [--scale factor]
+	 * @throws Exception if the baseline file cannot be read or written or a run is interrupted
+	 */
+	public static void main(String[] args) throws Exception {
+		PerformanceSuite suite = new PerformanceSuite();
+		String baselineFile = null;
+		String recordFile = null;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "--baseline":
+					baselineFile = args[i + 1];
+					break;
+				case "--record":
+					recordFile = args[i + 1];
+					break;
+				case "--tolerance":
+					suite.setTolerance(Double.parseDouble(args[i + 1]));
+					break;
+				case "--runs":
+					suite.setRuns(Integer.parseInt(args[i + 1]));
+					break;
+				case "--scale":
+					suite.setScale(Double.parseDouble(args[i + 1]));
+					break;
+				default:
+					System.out.println("Unknown option " + args[i]);
+					System.exit(2);
+			}
+		}
+
+		if ((baselineFile != null || recordFile != null) && suite.getRuns() < MIN_GATED_RUNS) {
+			System.out.println("Baselines need at least " + MIN_GATED_RUNS + " runs, a single run is too noisy");
+			System.exit(2);
+		}
+
+		ChatLog.setEnabled(false);
+		Properties results = suite.runAll();
+		ChatLog.setEnabled(true);
+
+		if (recordFile != null) {
+			try (OutputStream out = new FileOutputStream(recordFile)) {
+				results.store(out, "PerformanceSuite baseline");
+			}
+			System.out.println("Baseline written to " + recordFile);
+		}
+		if (baselineFile != null) {
+			Properties baseline = new Properties();
+			try (InputStream in = new FileInputStream(baselineFile)) {
+				baseline.load(in);
+			}
+			if (!suite.compare(results, baseline)) {
+				System.out.println("FAILED: performance regressed beyond the allowed change");
+				System.exit(1);
+			}
+			System.out.println("No regressions against " + baselineFile);
+		}
+	}
+
+	/**
+	 * runs every scenario the set number of times and prints the median result of each. the
+	 * scenarios take turns, one run of each per round, so a stretch of time the machine is slower
+	 * falls on every scenario instead of on all the runs of one.
+	 *
+	 * @return the median results, keyed by scenario and metric
+	 * @throws InterruptedException if interrupted while waiting for a run
+	 */
+	public Properties runAll() throws InterruptedException {
+		Scenario[] scenarios = Scenario.values();
+		//warm up before measuring
+		for (int i = 0; i < WARM_UP_RUNS; i++) {
+			for (Scenario scenario : scenarios) {
+				run(scenario);
+			}
+		}
+
+		double[][] throughput = new double[scenarios.length][runs];
+		double[][] latency = new double[scenarios.length][runs];
+		double[][] maxLatency = new double[scenarios.length][runs];
+		double[][] bytes = new double[scenarios.length][runs];
+		for (int i = 0; i < runs; i++) {
+			for (int s = 0; s < scenarios.length; s++) {
+				Result result = run(scenarios[s]);
+				throughput[s][i] = result.getThroughput();
+				latency[s][i] = result.getLatencyMicros();
+				maxLatency[s][i] = result.getMaxLatencyMicros();
+				bytes[s][i] = result.getBytesPerAdmission();
+			}
+		}
+
+		Properties results = new Properties();
+		System.out.printf("%-18s %14s %12s %12s %14s%n", "scenario", "admits/cpu s", "avg us", "max us",
+				"bytes/admit");
+		for (int s = 0; s < scenarios.length; s++) {
+			//each metric takes its own median, one slow run should not decide all of them
+			String key = scenarios[s].getKey();
+			System.out.printf("%-18s %14.0f %12.2f %12.1f %14.0f%n", key, median(throughput[s]),
+					median(latency[s]), median(maxLatency[s]), median(bytes[s]));
+			store(results, key + ".throughput", throughput[s]);
+			store(results, key + ".latencyMicros", latency[s]);
+			store(results, key + ".bytesPerAdmission", bytes[s]);
+		}
+		return results;
+	}
+
+	/**
+	 * stores the median of a metric and how far its runs spread, from the lowest to the highest
+	 * as a share of the median
+	 *
+	 * @param results results the metric is stored in
+	 * @param key name of the metric
+	 * @param values value of the metric in each run, sorted in place
+	 */
+	private static void store(Properties results, String key, double[] values) {
+		double median = median(values);
+		double spread = median == 0 ? 0 : (values[values.length - 1] - values[0]) / median;
+		results.setProperty(key, format(median));
+		results.setProperty(key + ".spread", format(spread));
+	}
+
+	/**
+	 * runs one scenario once on a new server
+	 *
+	 * @param scenario scenario being run
+	 * @return result of the run
+	 * @throws InterruptedException if interrupted while waiting for the run
+	 */
+	public Result run(Scenario scenario) throws InterruptedException {
+		int oldSleepScale = User.getSleepScale();
+		User.setSleepScale(1);
+		try {
+			switch (scenario) {
+				case LOBBY_RUSH:
+					//everyone arrives at once and there is room for half of them
+					return runUsers(new ChatServer(users(500), 4, new Admin("Lobby")), users(1000), 0, null);
+				case CHURN:
+					//users stay long enough to join and leave the server many times
+					return runUsers(new ChatServer(users(200), 6, new Admin("Churn")), users(400), 60, null);
+				case ROOM_CLOSE_STORM:
+					Admin admin = new Admin("Storm");
+					admin.setSleepScale(1);
+					admin.setActionCount(500);
+					admin.setDrainTimeout(1000);
+					return runUsers(new ChatServer(users(300), 8, admin), users(400), 60, admin);
+				default:
+					//twenty users for every place in the server
+					return runUsers(new ChatServer(users(50), 4, new Admin("Saturation")), users(1000), 0, null);
+			}
+		} finally {
+			User.setSleepScale(oldSleepScale);
+		}
+	}
+
+	/**
+	 * scales a number of users by the scale of the suite
+	 *
+	 * @param count number of users at a scale of one
+	 * @return scaled number of users
+	 */
+	private int users(int count) {
+		return Math.max(1, (int) (count * scale));
+	}
+
+	/**
+	 * runs users against a server until they have all ended, then drains the server.
+	 * with an admin the admin runs alongside the users and drains the server itself
+	 *
+	 * @param server server the users join
+	 * @param userCount number of users
+	 * @param wantToChat how much each user wants to chat, 0 keeps the users' own random value
+	 * @param admin admin run alongside the users, null for none
+	 * @return result of the run
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	private Result runUsers(ChatServer server, int userCount, int wantToChat, Admin admin)
+			throws InterruptedException {
+		for (ChatRoom room : server.getChatRooms()) {
+			room.open();
+		}
+		allocatedBytes.reset();
+		cpuNanos.reset();
+
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < userCount; i++) {
+			User user = new User(i + 1, server);
+			if (wantToChat > 0) {
+				user.setWantToChat(wantToChat);
+			}
+			threads.add(new Thread(() -> measure(user)));
+		}
+		if (admin != null) {
+			threads.add(new Thread(() -> measure(admin)));
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		if (admin == null) {
+			server.drain(0);
+		}
+		server.getEventBus().shutdown(1000);
+
+		//without CPU times the wall time is all there is
+		double cpuSeconds = cpuNanos.sum() > 0 ? cpuNanos.sum() / 1e9 : seconds;
+		return new Result(server.getAdmissionMetrics(), cpuSeconds, allocatedBytes.sum());
+	}
+
+	/**
+	 * runs a user or admin, adding the bytes its thread allocates and the CPU time it uses to the
+	 * totals of the run
+	 *
+	 * @param action user or admin being run
+	 */
+	private void measure(Runnable action) {
+		long before = allocatedBytes();
+		long cpuBefore = cpuNanos();
+		action.run();
+		long cpuAfter = cpuNanos();
+		long after = allocatedBytes();
+		if (before >= 0 && after >= 0) {
+			allocatedBytes.add(after - before);
+		}
+		if (cpuBefore >= 0 && cpuAfter >= 0) {
+			cpuNanos.add(cpuAfter - cpuBefore);
+		}
+	}
+
+	/**
+	 * gets the CPU time used by the current thread so far
+	 *
+	 * @return CPU time in nanoseconds, -1 if the JVM cannot measure it
+	 */
+	private static long cpuNanos() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+	}
+
+	/**
+	 * gets the bytes allocated by the current thread so far
+	 *
+	 * @return bytes allocated, -1 if the JVM cannot count them
+	 */
+	static long allocatedBytes() {
+		return THREADS instanceof com.sun.management.ThreadMXBean
+				? ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes() : -1;
+	}
+
+	/**
+	 * compares results against a baseline and prints every metric with its change
+	 *
+	 * @param results results of this run of the suite
+	 * @param baseline stored baseline
+	 * @return whether no metric regressed beyond the tolerance
+	 */
+	public boolean compare(Properties results, Properties baseline) {
+		boolean passed = true;
+		System.out.printf("%-40s %14s %14s %9s %9s  %s%n", "metric", "result", "baseline", "change", "allowed",
+				"status");
+
+		for (Scenario scenario : Scenario.values()) {
+			for (String metric : new String[] {"throughput", "latencyMicros", "bytesPerAdmission"}) {
+				String key = scenario.getKey() + "." + metric;
+				double result = Double.parseDouble(results.getProperty(key));
+				String stored = baseline.getProperty(key);
+				if (stored == null) {
+					System.out.printf("%-40s %14.2f %14s %9s %9s  %s%n", key, result, "-", "-", "-", "new");
+					continue;
+				}
+
+				double expected = Double.parseDouble(stored);
+				//a metric that spread widely while the baseline was recorded may move as far again
+				double allowed = Math.max(tolerance,
+						SPREAD_FACTOR * Double.parseDouble(baseline.getProperty(key + ".spread", "0")));
+				boolean regressed;
+				if (metric.equals("throughput")) {
+					regressed = result < expected * (1 - allowed);
+				} else {
+					double slack = metric.equals("latencyMicros") ? LATENCY_SLACK_MICROS : ALLOCATION_SLACK_BYTES;
+					regressed = result > expected * (1 + allowed) + slack;
+				}
+				passed &= !regressed;
+
+				double change = expected == 0 ? 0 : (result - expected) / expected * 100;
+				System.out.printf("%-40s %14.2f %14.2f %8.1f%% %8.1f%%  %s%n", key, result, expected, change,
+						allowed * 100, regressed ? "REGRESSED" : "ok");
+			}
+		}
+		return passed;
+	}
+
+	/**
+	 * finds the median of the values of a metric
+	 *
+	 * @param values value of the metric in each run, sorted in place
+	 * @return median value
+	 */
+	private static double median(double[] values) {
+		Arrays.sort(values);
+		return values[values.length / 2];
+	}
+
+	/**
+	 * formats a result for the baseline file
+	 *
+	 * @param value value of the metric
+	 * @return value with two decimal places
+	 */
+	private static String format(double value) {
+		return String.format("%.2f", value);
+	}
+
+	/**
+	 * sets the share a result may get worse by before it counts as a regression
+	 *
+	 * @param tolerance share, 0.25 allows results 25% worse than the baseline
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * gets the share a result may get worse by before it counts as a regression
+	 *
+	 * @return share allowed
+	 */
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * sets the times each scenario is run, the median of each metric is kept
+	 *
+	 * @param runs number of runs
+	 */
+	public void setRuns(int runs) {
+		this.runs = Math.max(1, runs);
+	}
+
+	/**
+	 * gets the times each scenario is run
+	 *
+	 * @return number of runs
+	 */
+	public int getRuns() {
+		return runs;
+	}
+
+	/**
+	 * sets what the number of users in every scenario is multiplied by
+	 *
+	 * @param scale factor the users are multiplied by
+	 */
+	public void setScale(double scale) {
+		this.scale = scale;
+	}
+
+	/**
+	 * gets what the number of users in every scenario is multiplied by
+	 *
+	 * @return factor the users are multiplied by
+	 */
+	public double getScale() {
+		return scale;
+	}
+
+	/**
+	 * This class is the outcome of one run of a scenario.
+	 */
+	public static class Result {
+
+		/**
+		 * users admitted, by the server and its rooms
+		 */
+		private final long admitted;
+		/**
+		 * admission decisions made, users turned away included
+		 */
+		private final long decisions;
+		/**
+		 * CPU time the users and admin of the run used in seconds
+		 */
+		private final double cpuSeconds;
+		/**
+		 * average time an admission decision took in microseconds
+		 */
+		private final double latencyMicros;
+		/**
+		 * longest time an admission decision took in microseconds
+		 */
+		private final double maxLatencyMicros;
+		/**
+		 * bytes allocated by the users and admin of the run
+		 */
+		private final long allocatedBytes;
+
+		/**
+		 * creates a result from the admission metrics of the server that was run
+		 *
+		 * @param metrics admission metrics of the server
+		 * @param cpuSeconds CPU time the users and admin of the run used in seconds
+		 * @param allocatedBytes bytes allocated by the users and admin of the run
+		 */
+		public Result(AdmissionMetrics metrics, double cpuSeconds, long allocatedBytes) {
+			long admitted = 0;
+			long decisions = 0;
+			double totalNanos = 0;
+			long maxNanos = 0;
+			for (AdmissionMetrics.Scope scope : AdmissionMetrics.Scope.values()) {
+				for (Priority priority : Priority.values()) {
+					long count = metrics.getAdmitted(scope, priority) + metrics.getRejected(scope, priority);
+					admitted += metrics.getAdmitted(scope, priority);
+					decisions += count;
+					totalNanos += metrics.getAverageLatencyNanos(scope, priority) * count;
+					maxNanos = Math.max(maxNanos, metrics.getMaxLatencyNanos(scope, priority));
+				}
+			}
+
+			this.admitted = admitted;
+			this.decisions = decisions;
+			this.cpuSeconds = cpuSeconds;
+			this.latencyMicros = decisions == 0 ? 0 : totalNanos / decisions / 1e3;
+			this.maxLatencyMicros = maxNanos / 1e3;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		/**
+		 * gets the users admitted per second of CPU time, a server turning users away faster is
+		 * not faster
+		 *
+		 * @return admissions per CPU second
+		 */
+		public double getThroughput() {
+			return admitted / cpuSeconds;
+		}
+
+		/**
+		 * gets the average time an admission decision took
+		 *
+		 * @return latency in microseconds
+		 */
+		public double getLatencyMicros() {
+			return latencyMicros;
+		}
+
+		/**
+		 * gets the longest time an admission decision took
+		 *
+		 * @return latency in microseconds
+		 */
+		public double getMaxLatencyMicros() {
+			return maxLatencyMicros;
+		}
+
+		/**
+		 * gets the bytes allocated per admission decision
+		 *
+		 * @return bytes per admission
+		 */
+		public double getBytesPerAdmission() {
+			return decisions == 0 ? 0 : (double) allocatedBytes / decisions;
+		}
+
+		/**
+		 * gets the users admitted
+		 *
+		 * @return number of admissions
+		 */
+		public long getAdmissions() {
+			return admitted;
+		}
+
+		/**
+		 * gets the admission decisions made, users turned away included
+		 *
+		 * @return number of decisions
+		 */
+		public long getDecisions() {
+			return decisions;
+		}
+
+	}
+
+}
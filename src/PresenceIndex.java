@@ -0,0 +1,308 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class keeps track of who is online and how full each room is. The server and rooms
+ * update it as users are admitted and leave, using only atomic operations, so that dashboards
+ * can query presence and occupancy without ever taking the server or room locks.
+ */
+public class PresenceIndex {
+
+	/**
+	 * default highest user id tracked in the online bitset
+	 */
+	public static final int DEFAULT_MAX_USER_ID = 1 << 20;
+	/**
+	 * how long the ranking of rooms by occupancy is cached for in nanoseconds
+	 */
+	private long refreshNanos = 100_000_000L;
+	/**
+	 * one bit per user id below the max user id, set when the user is online
+	 */
+	private final AtomicLongArray online;
+	/**
+	 * online users whose id does not fit in the bitset
+	 */
+	private final Set<Integer> overflow;
+	/**
+	 * number of users online
+	 */
+	private final AtomicInteger onlineCount;
+	/**
+	 * rooms tracked by this index
+	 */
+	private final List<ChatRoom> rooms;
+	/**
+	 * rooms tracked by this index, by room id
+	 */
+	private final Map<Integer, ChatRoom> roomsByID;
+	/**
+	 * rooms sorted by occupancy the last time the ranking was built, busiest first
+	 */
+	private volatile ChatRoom[] ranking;
+	/**
+	 * occupancy of each room in the ranking when it was built
+	 */
+	private volatile int[] rankingCounts;
+	/**
+	 * when the ranking was last built
+	 */
+	private volatile long rankedAt;
+
+	/**
+	 * creates a presence index able to track user ids up to the default max user id
+	 * without allocating
+	 */
+	public PresenceIndex() {
+		this(DEFAULT_MAX_USER_ID);
+	}
+
+	/**
+	 * creates a presence index able to track user ids up to max user id without allocating,
+	 * any higher ids are still tracked but more slowly
+	 *
+	 * @param maxUserID highest user id kept in the online bitset
+	 */
+	public PresenceIndex(int maxUserID) {
+		this.online = new AtomicLongArray((maxUserID >>> 6) + 1);
+		this.overflow = ConcurrentHashMap.newKeySet();
+		this.onlineCount = new AtomicInteger();
+		this.rooms = new CopyOnWriteArrayList<>();
+		this.roomsByID = new ConcurrentHashMap<>();
+		this.ranking = new ChatRoom[0];
+		this.rankingCounts = new int[0];
+	}
+
+	/**
+	 * starts tracking the occupancy of a room
+	 *
+	 * @param room room being tracked
+	 */
+	public void register(ChatRoom room) {
+		if (roomsByID.putIfAbsent(room.getRoomID(), room) == null) {
+			rooms.add(room);
+			rankedAt = 0;
+		}
+	}
+
+	/**
+	 * marks a user as online
+	 *
+	 * @param userID id of the user who came online
+	 */
+	public void userOnline(int userID) {
+		if (setOnline(userID, true)) {
+			onlineCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * marks a user as offline
+	 *
+	 * @param userID id of the user who went offline
+	 */
+	public void userOffline(int userID) {
+		if (setOnline(userID, false)) {
+			onlineCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * flips the online bit of a user
+	 *
+	 * @param userID id of the user
+	 * @param isOnline whether the user is now online
+	 * @return whether the bit changed
+	 */
+	private boolean setOnline(int userID, boolean isOnline) {
+		int word = userID >>> 6;
+		if (userID < 0 || word >= online.length()) {
+			return isOnline ? overflow.add(userID) : overflow.remove(userID);
+		}
+
+		long bit = 1L << userID;
+		while (true) {
+			long current = online.get(word);
+			boolean wasOnline = (current & bit) != 0;
+			if (wasOnline == isOnline) {
+				return false;
+			}
+			if (online.compareAndSet(word, current, current ^ bit)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * checks whether a user is online
+	 *
+	 * @param userID id of the user
+	 * @return whether the user is online
+	 */
+	public boolean isOnline(int userID) {
+		int word = userID >>> 6;
+		if (userID < 0 || word >= online.length()) {
+			return overflow.contains(userID);
+		}
+		return (online.get(word) & (1L << userID)) != 0;
+	}
+
+	/**
+	 * gets the number of users online, the total occupancy of the server
+	 *
+	 * @return number of users online
+	 */
+	public int getOnlineCount() {
+		return onlineCount.get();
+	}
+
+	/**
+	 * gets the ids of all users online, in ascending order
+	 *
+	 * @return ids of users online
+	 */
+	public int[] getOnlineUserIDs() {
+		int[] ids = new int[Math.max(onlineCount.get(), 0)];
+		int found = 0;
+
+		for (int word = 0; word < online.length(); word++) {
+			long bits = online.get(word);
+			while (bits != 0) {
+				if (found == ids.length) {
+					ids = Arrays.copyOf(ids, ids.length * 2 + 1);
+				}
+				ids[found++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+			}
+		}
+		for (int userID : overflow) {
+			if (found == ids.length) {
+				ids = Arrays.copyOf(ids, ids.length * 2 + 1);
+			}
+			ids[found++] = userID;
+		}
+
+		ids = Arrays.copyOf(ids, found);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * gets the number of users in a room
+	 *
+	 * @param roomID id of the room
+	 * @return number of users in the room, 0 if the room is not tracked
+	 */
+	public int getOccupancy(int roomID) {
+		ChatRoom room = roomsByID.get(roomID);
+		return room == null ? 0 : room.getOccupancy();
+	}
+
+	/**
+	 * gets the number of users in every tracked room
+	 *
+	 * @return occupancy of each room by room id
+	 */
+	public Map<Integer, Integer> getOccupancies() {
+		Map<Integer, Integer> occupancies = new LinkedHashMap<>();
+		for (ChatRoom room : rooms) {
+			occupancies.put(room.getRoomID(), room.getOccupancy());
+		}
+		return occupancies;
+	}
+
+	/**
+	 * gets the busiest rooms, busiest first. the ranking is cached and rebuilt at most once
+	 * per refresh interval so it may lag the live occupancy by that long.
+	 *
+	 * @param n number of rooms wanted
+	 * @return up to n of the busiest rooms
+	 */
+	public List<ChatRoom> getBusiestRooms(int n) {
+		refreshRanking();
+
+		ChatRoom[] ranked = ranking;
+		List<ChatRoom> busiest = new ArrayList<>(Math.min(n, ranked.length));
+		for (int i = 0; i < ranked.length && i < n; i++) {
+			busiest.add(ranked[i]);
+		}
+		return busiest;
+	}
+
+	/**
+	 * gets the occupancy of the busiest rooms as it was when the ranking was built,
+	 * in the same order as get busiest rooms
+	 *
+	 * @param n number of rooms wanted
+	 * @return occupancy of up to n of the busiest rooms
+	 */
+	public int[] getBusiestOccupancies(int n) {
+		refreshRanking();
+
+		int[] counts = rankingCounts;
+		return Arrays.copyOf(counts, Math.min(n, counts.length));
+	}
+
+	/**
+	 * rebuilds the ranking of rooms by occupancy if it is older than the refresh interval
+	 */
+	private void refreshRanking() {
+		long now = System.nanoTime();
+		if (rankedAt != 0 && now - rankedAt < refreshNanos) {
+			return;
+		}
+
+		synchronized (this) {
+			if (rankedAt != 0 && now - rankedAt < refreshNanos) {
+				return;
+			}
+
+			ChatRoom[] ranked = rooms.toArray(new ChatRoom[0]);
+			int[] counts = new int[ranked.length];
+			Integer[] order = new Integer[ranked.length];
+			for (int i = 0; i < ranked.length; i++) {
+				counts[i] = ranked[i].getOccupancy();
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> Integer.compare(counts[b], counts[a]));
+
+			ChatRoom[] sortedRooms = new ChatRoom[ranked.length];
+			int[] sortedCounts = new int[ranked.length];
+			for (int i = 0; i < order.length; i++) {
+				sortedRooms[i] = ranked[order[i]];
+				sortedCounts[i] = counts[order[i]];
+			}
+
+			ranking = sortedRooms;
+			rankingCounts = sortedCounts;
+			rankedAt = Math.max(System.nanoTime(), 1);
+		}
+	}
+
+	/**
+	 * sets how long the ranking of rooms is cached for
+	 *
+	 * @param refreshMillis how long the ranking is cached for in milliseconds
+	 */
+	public void setRefreshMillis(long refreshMillis) {
+		this.refreshNanos = refreshMillis * 1_000_000L;
+	}
+
+	/**
+	 * gets how long the ranking of rooms is cached for
+	 *
+	 * @return how long the ranking is cached for in milliseconds
+	 */
+	public long getRefreshMillis() {
+		return refreshNanos / 1_000_000L;
+	}
+
+}
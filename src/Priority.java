@@ -0,0 +1,35 @@
+/**
+ * The priority classes users are admitted by, highest first. When a server or room is full
+ * a user can take the place of a user of a lower class, and places can be reserved for a class
+ * so lower classes cannot fill them.
+ */
+public enum Priority {
+
+	/**
+	 * administrators of the server
+	 */
+	ADMIN,
+	/**
+	 * moderators of the server
+	 */
+	MODERATOR,
+	/**
+	 * paying users
+	 */
+	PREMIUM,
+	/**
+	 * everybody else, including simulated users
+	 */
+	BEST_EFFORT;
+
+	/**
+	 * checks whether this class ranks above another
+	 *
+	 * @param other class being compared with
+	 * @return whether this class is higher
+	 */
+	public boolean isHigherThan(Priority other) {
+		return ordinal() < other.ordinal();
+	}
+
+}
@@ -0,0 +1,161 @@
+/**
+ * This class checks preemption by priority class. A full server and main room must make room for a
+ * higher class, and when a place is only reserved the user chosen to make room must stay until the
+ * reservation is committed, so a join that fails part way never removes anybody.
+ */
+public class PriorityCheck {
+
+	/**
+	 * runs every check
+	 *
+	 * @param args CLI arguments, not used
+	 */
+	public static void main(String[] args) {
+		ChatLog.setEnabled(false);
+		checkJoin();
+		checkJoinWithMainRoom();
+		checkFailedJoinWithMainRoom();
+		checkExpiredMainRoomReservation();
+		checkReleasedReservation();
+		System.out.println("Preemption makes room for higher classes and only removes users once committed.");
+	}
+
+	/**
+	 * checks a premium user joining a full server takes the place of a best effort user
+	 */
+	private static void checkJoin() {
+		ChatServer server = fullServer();
+		User premium = new User(4, server, Priority.PREMIUM);
+		if (!server.join(premium) || server.getUsers().size() != 3 || preempted(server) != 1) {
+			fail("a premium user did not take the place of a best effort user");
+		}
+	}
+
+	/**
+	 * checks a premium user joining a full server and main room takes a place in both
+	 */
+	private static void checkJoinWithMainRoom() {
+		ChatServer server = fullServer();
+		User premium = new User(4, server, Priority.PREMIUM);
+		if (!server.joinWithMainRoom(premium) || !server.getUsers().contains(premium)
+				|| !server.getMainRoom().getUsers().contains(premium)
+				|| server.getUsers().size() != 3 || preempted(server) != 1) {
+			fail("joinWithMainRoom=" + premium.isJoinedMainRoom() + " users=" + server.getUsers().size()
+					+ " preempted=" + preempted(server) + " for a premium user in a full server");
+		}
+		AdmissionMetrics metrics = server.getAdmissionMetrics();
+		if (metrics.getAdmitted(AdmissionMetrics.Scope.ROOM, Priority.PREMIUM) != 1
+				|| metrics.getPreempted(AdmissionMetrics.Scope.ROOM, Priority.BEST_EFFORT) != 1) {
+			fail("the main room did not count the premium user taking a place");
+		}
+	}
+
+	/**
+	 * checks nobody is removed when the main room turns the premium user away after the server
+	 * place was reserved
+	 */
+	private static void checkFailedJoinWithMainRoom() {
+		ChatServer server = fullServer();
+		User premium = new User(4, server, Priority.PREMIUM);
+		server.getMainRoom().kick(premium, 0);
+		boolean joined = server.joinWithMainRoom(premium);
+		if (joined || server.getUsers().size() != 3 || preempted(server) != 0) {
+			fail("joinWithMainRoom=" + joined + " users=" + server.getUsers().size()
+					+ " preempted=" + preempted(server) + " for a premium user kicked from the main room");
+		}
+		if (server.getMainRoom().getUsers().size() != 2) {
+			fail("the main room lost a user for a join that failed");
+		}
+		if (server.getAdmissionMetrics().getRejected(AdmissionMetrics.Scope.ROOM, Priority.PREMIUM) != 1) {
+			fail("the main room did not count turning the premium user away");
+		}
+	}
+
+	/**
+	 * checks nobody is removed from the server when the main room reservation runs out before
+	 * it is committed
+	 */
+	private static void checkExpiredMainRoomReservation() {
+		ChatServer server = fullServer();
+		server.getMainRoom().setReservationTimeoutMillis(0);
+		User premium = new User(4, server, Priority.PREMIUM);
+		boolean joined = server.joinWithMainRoom(premium);
+		if (joined || server.getUsers().contains(premium) || server.getUsers().size() != 3
+				|| preempted(server) != 0) {
+			fail("joinWithMainRoom=" + joined + " users=" + server.getUsers().size()
+					+ " preempted=" + preempted(server) + " when the main room reservation ran out");
+		}
+		if (!server.reserve(premium) || !server.commitReservation(premium)) {
+			fail("the server place was still held after the main room reservation ran out");
+		}
+	}
+
+	/**
+	 * checks a released reservation leaves the user chosen to make room in place, and a later
+	 * reservation can still choose them
+	 */
+	private static void checkReleasedReservation() {
+		ChatServer server = fullServer();
+		User premium = new User(4, server, Priority.PREMIUM);
+		User other = new User(6, server, Priority.PREMIUM);
+		User third = new User(7, server, Priority.PREMIUM);
+		if (!server.reserve(premium) || !server.reserve(other) || !server.reserve(third)) {
+			fail("a full server of best effort users did not take three premium reservations");
+		}
+		if (server.reserve(new User(8, server, Priority.PREMIUM))) {
+			fail("a fourth premium reservation was taken with only three users to remove");
+		}
+		server.releaseReservation(premium);
+		server.releaseReservation(other);
+		server.releaseReservation(third);
+		if (server.getUsers().size() != 3 || preempted(server) != 0) {
+			fail("released reservations removed users");
+		}
+
+		if (!server.reserve(premium) || !server.commitReservation(premium)
+				|| !server.getUsers().contains(premium) || server.getUsers().size() != 3 || preempted(server) != 1) {
+			fail("a committed reservation did not take the place of a best effort user");
+		}
+	}
+
+	/**
+	 * makes a full server of three places with three best effort users, the first two of them
+	 * filling its main room
+	 *
+	 * @return the server
+	 */
+	private static ChatServer fullServer() {
+		ChatServer server = new ChatServer(3, 1, 1, new Admin("Priority"));
+		for (ChatRoom room : server.getChatRooms()) {
+			room.open();
+		}
+		for (int id = 1; id <= 3; id++) {
+			User user = new User(id, server);
+			if (!server.join(user) || (id < 3 && !server.joinMainChatRoom(user))) {
+				fail("user " + id + " could not join an empty server");
+			}
+		}
+		return server;
+	}
+
+	/**
+	 * counts the users removed from the server for a higher class
+	 *
+	 * @param server server checked
+	 * @return number of best effort users preempted
+	 */
+	private static long preempted(ChatServer server) {
+		return server.getAdmissionMetrics().getPreempted(AdmissionMetrics.Scope.SERVER, Priority.BEST_EFFORT);
+	}
+
+	/**
+	 * stops the checks with a failure
+	 *
+	 * @param message what went wrong
+	 */
+	private static void fail(String message) {
+		System.out.println("FAILED: " + message);
+		System.exit(1);
+	}
+
+}
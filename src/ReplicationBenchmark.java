@@ -0,0 +1,240 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class measures replication to a standby in another process over loopback. A primary server
+ * is churned at a steady rate of joins, room moves and leaves, with a room closed and reopened and
+ * users banned and unbanned now and then, while a standby process follows it. Some users are premium
+ * with places set aside for them, so joins are turned away and users preempted by class. The lag of
+ * the standby and the cost of the log are printed, then the primary goes silent and the standby must
+ * take over holding the same state, classes and bans included.
+ */
+public class ReplicationBenchmark {
+
+	/**
+	 * number of rooms in the primary, including the main room
+	 */
+	private static final int ROOMS = 8;
+	/**
+	 * user is not in the server
+	 */
+	private static final byte OUTSIDE = -2;
+	/**
+	 * user is in the server but not in a room
+	 */
+	private static final byte IN_SERVER = -1;
+
+	/**
+	 * the state line the standby printed after taking over
+	 */
+	private static volatile String standbyState;
+	/**
+	 * when the standby said it took over, from System.nanoTime
+	 */
+	private static volatile long tookOver;
+	/**
+	 * whether the standby admitted a new user after taking over
+	 */
+	private static volatile boolean isServing;
+	/**
+	 * thread printing the standby's output
+	 */
+	private static Thread output;
+
+	/**
+	 * runs the benchmark
+	 *
+	 * @param args CLI arguments, optionally the number of users, actions per second, seconds and the
+	 *             primary's event queue capacity, a small queue drops events and forces snapshots
+	 * @throws IOException if the standby process cannot be started
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+		int rate = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int queueCapacity = args.length > 3 ? Integer.parseInt(args[3]) : 1 << 16;
+		long heartbeatTimeout = 250;
+
+		ChatLog.setEnabled(false);
+		ChatServer server = new ChatServer(userCount, ROOMS, new Admin("Primary"));
+		for (ChatRoom room : server.getChatRooms()) {
+			room.open();
+		}
+		server.setReservedCapacity(Priority.PREMIUM, userCount / 10);
+		server.getMainRoom().setReservedCapacity(Priority.PREMIUM, userCount / 20);
+		User[] users = new User[userCount];
+		for (int i = 0; i < userCount; i++) {
+			users[i] = new User(i + 1, server, i % 5 == 0 ? Priority.PREMIUM : Priority.BEST_EFFORT);
+		}
+
+		ReplicationPrimary primary = new ReplicationPrimary(server, 0);
+		primary.setQueueCapacity(queueCapacity);
+		primary.start();
+		Process standby = startStandby(primary.getPort(), heartbeatTimeout);
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+		while (!primary.isConnected() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		if (!primary.isConnected()) {
+			fail("the standby did not connect", standby);
+		}
+
+		//churn the primary at a steady rate, sampling how far behind the standby falls
+		byte[] phase = new byte[userCount];
+		Arrays.fill(phase, OUTSIDE);
+		long actions = 0;
+		long maxBehind = 0;
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		for (long tick = start; tick < end; tick += 1_000_000L) {
+			LockSupport.parkNanos(tick - System.nanoTime());
+			for (int i = 0; i < rate / 1000; i++) {
+				int index = ThreadLocalRandom.current().nextInt(userCount);
+				phase[index] = act(server, users[index], phase[index]);
+				actions++;
+			}
+			if ((tick - start) % 100_000_000L == 0) {
+				//a ban sends the user out of the server, some bans are lifted again
+				int banned = ThreadLocalRandom.current().nextInt(userCount);
+				server.ban(banned + 1, banned % 2 == 0 ? 0 : 60_000);
+				phase[banned] = OUTSIDE;
+				server.unban(ThreadLocalRandom.current().nextInt(userCount) + 1);
+			}
+			if ((tick - start) % 500_000_000L == 0) {
+				//a room closing sends its users out and reopening it lets them back in
+				ChatRoom last = server.getChatRooms().get(ROOMS - 1);
+				if (last.isOpen()) {
+					last.close();
+				} else {
+					last.open();
+				}
+			}
+			maxBehind = Math.max(maxBehind, primary.getSequenceLag());
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (primary.getSequenceLag() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		if (primary.getSequenceLag() > 0) {
+			fail("the standby did not catch up, " + primary.getSequenceLag() + " events behind", standby);
+		}
+
+		long events = primary.getEventCount();
+		System.out.printf("%d actions/s on the primary published %d events, %.0f events/s%n",
+				(long) (actions / elapsed), server.getEventBus().getLastSequence(), events / elapsed);
+		System.out.printf("%d batches of %.1f events, %.2f bytes per event, %d snapshots (%d for missing events)%n",
+				primary.getBatchCount(), (double) events / Math.max(1, primary.getBatchCount()),
+				(double) primary.getBytesSent() / Math.max(1, events), primary.getSnapshotCount(),
+				primary.getGapCount());
+		System.out.printf("replication lag p50 %.0f us, p99 %.0f us, max %.0f us, at most %d events behind%n",
+				primary.getLagMicros(50), primary.getLagMicros(99), primary.getLagMicros(100), maxBehind);
+
+		String primaryState = ReplicationSnapshot.take(server).describe();
+		System.out.println("primary state: " + primaryState);
+
+		long crashed = System.nanoTime();
+		primary.crash();
+		if (!standby.waitFor(20, TimeUnit.SECONDS)) {
+			fail("the standby did not take over", standby);
+		}
+		output.join();
+		System.out.printf("standby took over %.1f ms after the primary went silent (heartbeat timeout %d ms)%n",
+				(tookOver - crashed) / 1e6, heartbeatTimeout);
+		primary.close();
+
+		if (!primaryState.equals(standbyState)) {
+			fail("the standby's state differs from the primary's", standby);
+		}
+		if (!isServing) {
+			fail("the standby did not admit users after taking over", standby);
+		}
+		System.out.println("The standby took over with the primary's state.");
+	}
+
+	/**
+	 * takes the next action of a user, joining, entering a room, moving to another room or leaving
+	 *
+	 * @param server server the user is in
+	 * @param user the user
+	 * @param phase where the user is, outside, in the server or the id of their room
+	 * @return where the user is afterwards
+	 */
+	private static byte act(ChatServer server, User user, byte phase) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (phase == OUTSIDE) {
+			return server.join(user) ? IN_SERVER : OUTSIDE;
+		}
+		if (phase == IN_SERVER) {
+			int room = random.nextInt(ROOMS);
+			return server.enterRoom(user, room) ? (byte) room : IN_SERVER;
+		}
+		if (random.nextInt(3) == 0) {
+			server.leaveChatRoom(user);
+			return OUTSIDE;
+		}
+		server.leaveRoom(user, phase);
+		int room = random.nextInt(ROOMS);
+		return server.enterRoom(user, room) ? (byte) room : IN_SERVER;
+	}
+
+	/**
+	 * starts a standby in a new process, its output is printed and the lines about taking over kept
+	 *
+	 * @param port port of the primary
+	 * @param heartbeatTimeout how long the primary may stay silent in milliseconds
+	 * @return the standby process
+	 * @throws IOException if the process cannot be started
+	 */
+	private static Process startStandby(int port, long heartbeatTimeout) throws IOException {
+		String java = ProcessHandle.current().info().command().orElse("java");
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				"ReplicationStandby", "127.0.0.1", String.valueOf(port), String.valueOf(heartbeatTimeout))
+				.redirectErrorStream(true).start();
+
+		output = new Thread(() -> {
+			try (BufferedReader lines = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				String line;
+				while ((line = lines.readLine()) != null) {
+					if (tookOver == 0) {
+						tookOver = System.nanoTime();
+					}
+					if (line.startsWith("state: ")) {
+						standbyState = line.substring("state: ".length());
+					}
+					if (line.endsWith("taking over: true")) {
+						isServing = true;
+					}
+					System.out.println("  standby: " + line);
+				}
+			} catch (IOException e) {
+				System.out.println("Could not read the standby: " + e.getMessage());
+			}
+		}, "standby-output");
+		output.setDaemon(true);
+		output.start();
+
+		return process;
+	}
+
+	/**
+	 * stops the benchmark with a failure
+	 *
+	 * @param message what went wrong
+	 * @param standby the standby process, killed if still running
+	 */
+	private static void fail(String message, Process standby) {
+		System.out.println("FAILED: " + message);
+		standby.destroyForcibly();
+		System.exit(1);
+	}
+
+}
@@ -0,0 +1,44 @@
+/**
+ * This interface is implemented by anything receiving frames decoded by the replication log.
+ * The primary receives acks and resync requests, the standby everything else.
+ */
+public interface ReplicationHandler {
+
+	/**
+	 * an event the primary published, events arrive in sequence order
+	 *
+	 * @param sequence sequence number of the event on the primary
+	 * @param type what happened
+	 * @param userID id of the user the event is about, or none
+	 * @param roomID id of the room the event is about, or none
+	 * @param detail more about what happened, see the event's detail
+	 */
+	void onEvent(long sequence, ChatEvent.Type type, int userID, int roomID, long detail);
+
+	/**
+	 * the whole state of the primary, replacing whatever the standby had
+	 *
+	 * @param snapshot state of the primary
+	 */
+	void onSnapshot(ReplicationSnapshot snapshot);
+
+	/**
+	 * the primary is still alive
+	 *
+	 * @param lastSequence sequence number of the last event the primary published
+	 */
+	void onHeartbeat(long lastSequence);
+
+	/**
+	 * the standby applied every event up to a sequence number
+	 *
+	 * @param sequence sequence number applied
+	 */
+	void onAck(long sequence);
+
+	/**
+	 * the standby missed events and needs a snapshot
+	 */
+	void onResync();
+
+}
@@ -0,0 +1,401 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * This class encodes and decodes the frames a primary and its standby exchange. Frames are laid
+ * out like the wire codec's, a varint length, a one byte opcode, then the body. Events are sent in
+ * batches of consecutive sequence numbers, so a batch only carries the sequence number of its first
+ * event and each event is its type then its user and room ids plus one, so a missing id (-1) takes one byte,
+ * then its detail, which takes one byte for events without one.
+ */
+public final class ReplicationLog {
+
+	/**
+	 * opcode of a batch frame, body is the first sequence number, the event count, then the events
+	 */
+	public static final byte BATCH = 1;
+	/**
+	 * opcode of a snapshot frame, body is the state of the primary
+	 */
+	public static final byte SNAPSHOT = 2;
+	/**
+	 * opcode of a heartbeat frame, body is the last sequence number published
+	 */
+	public static final byte HEARTBEAT = 3;
+	/**
+	 * opcode of an ack frame, body is the last sequence number applied
+	 */
+	public static final byte ACK = 4;
+	/**
+	 * opcode of a resync frame, it has no body
+	 */
+	public static final byte RESYNC = 5;
+	/**
+	 * largest frame body accepted, in bytes, big enough for a snapshot of a large server
+	 */
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * event types by ordinal, so decoding does not copy the values array
+	 */
+	private static final ChatEvent.Type[] TYPES = ChatEvent.Type.values();
+
+	/**
+	 * the log only has static methods
+	 */
+	private ReplicationLog() {
+	}
+
+	/**
+	 * writes a batch frame, the events must have consecutive sequence numbers
+	 *
+	 * @param out buffer being written to
+	 * @param events events being sent
+	 * @param from index of the first event sent
+	 * @param to index just past the last event sent
+	 */
+	public static void encodeBatch(ByteBuffer out, List<ChatEvent> events, int from, int to) {
+		long first = events.get(from).getSequence();
+		int bodyLength = WireCodec.varintSize(first) + WireCodec.varintSize(to - from);
+		for (int i = from; i < to; i++) {
+			ChatEvent event = events.get(i);
+			bodyLength += 1 + WireCodec.varintSize(event.getUserID() + 1) + WireCodec.varintSize(event.getRoomID() + 1)
+					+ WireCodec.varintSize(event.getDetail());
+		}
+
+		writeHeader(out, BATCH, bodyLength);
+		WireCodec.writeVarint(out, first);
+		WireCodec.writeVarint(out, to - from);
+		for (int i = from; i < to; i++) {
+			ChatEvent event = events.get(i);
+			out.put((byte) event.getType().ordinal());
+			WireCodec.writeVarint(out, event.getUserID() + 1);
+			WireCodec.writeVarint(out, event.getRoomID() + 1);
+			WireCodec.writeVarint(out, event.getDetail());
+		}
+	}
+
+	/**
+	 * gets the number of bytes a snapshot frame takes
+	 *
+	 * @param snapshot snapshot being measured
+	 * @return size in bytes
+	 */
+	public static int snapshotFrameSize(ReplicationSnapshot snapshot) {
+		int length = snapshotBodyLength(snapshot) + 1;
+		return WireCodec.varintSize(length) + length;
+	}
+
+	/**
+	 * gets the number of bytes the body of a snapshot frame takes
+	 *
+	 * @param snapshot snapshot being measured
+	 * @return size in bytes
+	 */
+	private static int snapshotBodyLength(ReplicationSnapshot snapshot) {
+		int length = WireCodec.varintSize(snapshot.getSequence()) + WireCodec.varintSize(snapshot.getCapacity())
+				+ WireCodec.varintSize(snapshot.getMainRoomShards()) + 1 + idsLength(snapshot.getUsers())
+				+ idsLength(snapshot.getClasses()) + idsLength(snapshot.getReservedCapacity())
+				+ idsLength(snapshot.getBanned()) + WireCodec.varintSize(snapshot.getRoomOpen().length);
+		for (long end : snapshot.getBanEnds()) {
+			length += WireCodec.varintSize(end);
+		}
+		for (int i = 0; i < snapshot.getRoomOpen().length; i++) {
+			length += 1 + idsLength(snapshot.getRoomMembers()[i]) + idsLength(snapshot.getRoomReservedCapacity()[i]);
+		}
+		return length;
+	}
+
+	/**
+	 * writes a snapshot frame, the body is the sequence number, capacity, main room shards, whether
+	 * the server is open, its users, their classes, the places set aside for each class and the
+	 * banned users followed by when each ban ends, then the room count and for each room whether it
+	 * is open, its users and the places set aside for each class. lists are a count then the values.
+	 *
+	 * @param out buffer being written to
+	 * @param snapshot snapshot being sent
+	 */
+	public static void encodeSnapshot(ByteBuffer out, ReplicationSnapshot snapshot) {
+		writeHeader(out, SNAPSHOT, snapshotBodyLength(snapshot));
+		WireCodec.writeVarint(out, snapshot.getSequence());
+		WireCodec.writeVarint(out, snapshot.getCapacity());
+		WireCodec.writeVarint(out, snapshot.getMainRoomShards());
+		out.put((byte) (snapshot.isOpen() ? 1 : 0));
+		writeIDs(out, snapshot.getUsers());
+		writeIDs(out, snapshot.getClasses());
+		writeIDs(out, snapshot.getReservedCapacity());
+		writeIDs(out, snapshot.getBanned());
+		for (long end : snapshot.getBanEnds()) {
+			WireCodec.writeVarint(out, end);
+		}
+
+		WireCodec.writeVarint(out, snapshot.getRoomOpen().length);
+		for (int i = 0; i < snapshot.getRoomOpen().length; i++) {
+			out.put((byte) (snapshot.getRoomOpen()[i] ? 1 : 0));
+			writeIDs(out, snapshot.getRoomMembers()[i]);
+			writeIDs(out, snapshot.getRoomReservedCapacity()[i]);
+		}
+	}
+
+	/**
+	 * writes a heartbeat frame
+	 *
+	 * @param out buffer being written to
+	 * @param lastSequence sequence number of the last event published
+	 */
+	public static void encodeHeartbeat(ByteBuffer out, long lastSequence) {
+		writeHeader(out, HEARTBEAT, WireCodec.varintSize(lastSequence));
+		WireCodec.writeVarint(out, lastSequence);
+	}
+
+	/**
+	 * writes an ack frame
+	 *
+	 * @param out buffer being written to
+	 * @param sequence sequence number of the last event applied
+	 */
+	public static void encodeAck(ByteBuffer out, long sequence) {
+		writeHeader(out, ACK, WireCodec.varintSize(sequence));
+		WireCodec.writeVarint(out, sequence);
+	}
+
+	/**
+	 * writes a resync frame
+	 *
+	 * @param out buffer being written to
+	 */
+	public static void encodeResync(ByteBuffer out) {
+		writeHeader(out, RESYNC, 0);
+	}
+
+	/**
+	 * writes the length and opcode of a frame, checking the whole frame fits first
+	 *
+	 * @param out buffer being written to
+	 * @param opcode opcode of the frame
+	 * @param bodyLength length of the body after the opcode
+	 */
+	private static void writeHeader(ByteBuffer out, byte opcode, int bodyLength) {
+		int length = bodyLength + 1;
+		if (length > MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("Frame of " + length + " bytes is too long.");
+		}
+		if (out.remaining() < WireCodec.varintSize(length) + length) {
+			throw new BufferOverflowException();
+		}
+
+		WireCodec.writeVarint(out, length);
+		out.put(opcode);
+	}
+
+	/**
+	 * gets the number of bytes a list of ids takes
+	 *
+	 * @param ids ids being measured
+	 * @return size in bytes
+	 */
+	private static int idsLength(int[] ids) {
+		int length = WireCodec.varintSize(ids.length);
+		for (int id : ids) {
+			length += WireCodec.varintSize(id);
+		}
+		return length;
+	}
+
+	/**
+	 * writes a list of ids, the count then each id
+	 *
+	 * @param out buffer being written to
+	 * @param ids ids being written
+	 */
+	private static void writeIDs(ByteBuffer out, int[] ids) {
+		WireCodec.writeVarint(out, ids.length);
+		for (int id : ids) {
+			WireCodec.writeVarint(out, id);
+		}
+	}
+
+	/**
+	 * reads a list of ids
+	 *
+	 * @param in buffer being read
+	 * @param end index just past the end of the frame
+	 * @return the ids
+	 */
+	private static int[] readIDs(ByteBuffer in, int end) {
+		int count = WireCodec.readVarint(in, end);
+		if (count < 0 || count > end - in.position()) {
+			throw new IllegalArgumentException("Id count " + count + " overruns frame.");
+		}
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = WireCodec.readVarint(in, end);
+		}
+		return ids;
+	}
+
+	/**
+	 * reads the priority class ordinals of a snapshot's users
+	 *
+	 * @param in buffer being read
+	 * @param end index just past the end of the frame
+	 * @param users number of users the classes are for
+	 * @return the class ordinals
+	 */
+	private static int[] readClasses(ByteBuffer in, int end, int users) {
+		int[] classes = readIDs(in, end);
+		if (classes.length != users) {
+			throw new IllegalArgumentException(classes.length + " classes for " + users + " users.");
+		}
+		for (int ordinal : classes) {
+			if (ordinal < 0 || ordinal >= Priority.values().length) {
+				throw new IllegalArgumentException("Unknown priority class " + ordinal + ".");
+			}
+		}
+		return classes;
+	}
+
+	/**
+	 * decodes every complete frame in the buffer, passing each to the handler. a partial frame at
+	 * the end is left in the buffer, with the position at its start, for when more bytes arrive.
+	 *
+	 * @param in buffer being read, between its position and limit
+	 * @param handler handler frames are passed to
+	 * @return number of frames decoded
+	 * @throws IllegalArgumentException if a frame is malformed
+	 */
+	public static int decode(ByteBuffer in, ReplicationHandler handler) {
+		int frames = 0;
+
+		while (in.hasRemaining()) {
+			int start = in.position();
+			int length = readLength(in);
+			if (length < 0 || in.remaining() < length) {
+				in.position(start);
+				break;
+			}
+
+			int end = in.position() + length;
+			decodeFrame(in, end, handler);
+			if (in.position() != end) {
+				throw new IllegalArgumentException("Frame at " + start + " has " + (end - in.position())
+						+ " bytes left over.");
+			}
+			frames++;
+		}
+
+		return frames;
+	}
+
+	/**
+	 * decodes the body of one frame
+	 *
+	 * @param in buffer being read, positioned at the opcode
+	 * @param end index just past the end of the frame
+	 * @param handler handler the frame is passed to
+	 */
+	private static void decodeFrame(ByteBuffer in, int end, ReplicationHandler handler) {
+		byte opcode = in.get();
+		switch (opcode) {
+			case BATCH: {
+				long sequence = WireCodec.readVarintLong(in, end);
+				int count = WireCodec.readVarint(in, end);
+				for (int i = 0; i < count; i++) {
+					if (in.position() >= end) {
+						throw new IllegalArgumentException("Batch of " + count + " events overruns frame.");
+					}
+					int type = in.get();
+					if (type < 0 || type >= TYPES.length) {
+						throw new IllegalArgumentException("Unknown event type " + type + ".");
+					}
+					int userID = WireCodec.readVarint(in, end) - 1;
+					int roomID = WireCodec.readVarint(in, end) - 1;
+					long detail = WireCodec.readVarintLong(in, end);
+					handler.onEvent(sequence + i, TYPES[type], userID, roomID, detail);
+				}
+				break;
+			}
+			case SNAPSHOT: {
+				long sequence = WireCodec.readVarintLong(in, end);
+				int capacity = WireCodec.readVarint(in, end);
+				int shards = WireCodec.readVarint(in, end);
+				boolean isOpen = readFlag(in, end);
+				int[] users = readIDs(in, end);
+				int[] classes = readClasses(in, end, users.length);
+				int[] reservedCapacity = readIDs(in, end);
+				int[] banned = readIDs(in, end);
+				long[] banEnds = new long[banned.length];
+				for (int i = 0; i < banEnds.length; i++) {
+					banEnds[i] = WireCodec.readVarintLong(in, end);
+				}
+
+				int roomCount = WireCodec.readVarint(in, end);
+				if (roomCount < 0 || roomCount > end - in.position()) {
+					throw new IllegalArgumentException("Room count " + roomCount + " overruns frame.");
+				}
+				boolean[] roomOpen = new boolean[roomCount];
+				int[][] roomMembers = new int[roomCount][];
+				int[][] roomReservedCapacity = new int[roomCount][];
+				for (int i = 0; i < roomCount; i++) {
+					roomOpen[i] = readFlag(in, end);
+					roomMembers[i] = readIDs(in, end);
+					roomReservedCapacity[i] = readIDs(in, end);
+				}
+				handler.onSnapshot(new ReplicationSnapshot(sequence, capacity, shards, isOpen, users, classes,
+						reservedCapacity, banned, banEnds, roomOpen, roomMembers, roomReservedCapacity));
+				break;
+			}
+			case HEARTBEAT:
+				handler.onHeartbeat(WireCodec.readVarintLong(in, end));
+				break;
+			case ACK:
+				handler.onAck(WireCodec.readVarintLong(in, end));
+				break;
+			case RESYNC:
+				handler.onResync();
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown opcode " + opcode + ".");
+		}
+	}
+
+	/**
+	 * reads a one byte flag
+	 *
+	 * @param in buffer being read
+	 * @param end index just past the end of the frame
+	 * @return whether the flag is set
+	 */
+	private static boolean readFlag(ByteBuffer in, int end) {
+		if (in.position() >= end) {
+			throw new IllegalArgumentException("Flag overruns frame.");
+		}
+		return in.get() != 0;
+	}
+
+	/**
+	 * reads the length of the next frame
+	 *
+	 * @param in buffer being read
+	 * @return length of the frame, -1 if the length itself is not all there yet
+	 */
+	private static int readLength(ByteBuffer in) {
+		int length = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!in.hasRemaining()) {
+				return -1;
+			}
+			byte b = in.get();
+			length |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				if (length < 1 || length > MAX_FRAME_LENGTH) {
+					throw new IllegalArgumentException("Frame length " + length + " is out of range.");
+				}
+				return length;
+			}
+		}
+		throw new IllegalArgumentException("Frame length is longer than 5 bytes.");
+	}
+
+}
@@ -0,0 +1,703 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class streams the membership and room changes of a chat server to a standby over a socket.
+ * It subscribes to the server's event bus, but only queues what it is given there so a slow standby
+ * never holds up the bus. A writer thread of its own does every write, sending what was queued as
+ * batch frames. Events can reach the subscription slightly out of order, so they are held in a
+ * ring by sequence number and only sent once every earlier event has been. A standby gets a
+ * snapshot when it connects, when it asks for one and when an event stays missing (the bus or the
+ * queue drops events when full), so it never applies a log with a hole in it. Heartbeats are sent
+ * while nothing else is, and the standby's acks give the replication lag, from a batch being
+ * written to it being applied.
+ */
+public class ReplicationPrimary implements ChatEventListener, ReplicationHandler {
+
+	/**
+	 * most events held waiting for an earlier one, a power of two
+	 */
+	private static final int PENDING_CAPACITY = 1 << 16;
+	/**
+	 * most events sent in one batch frame
+	 */
+	private static final int MAX_BATCH = 1024;
+	/**
+	 * number of batches whose send time is kept until acked, a power of two
+	 */
+	private static final int IN_FLIGHT_CAPACITY = 4096;
+	/**
+	 * number of replication lag samples kept, a power of two
+	 */
+	private static final int LAG_SAMPLES = 1 << 16;
+	/**
+	 * queued to wake the writer without an event, its sequence number is never sent
+	 */
+	private static final ChatEvent WAKE = new ChatEvent(-1, ChatEvent.Type.SERVER_OPENED, ChatEvent.NONE,
+			ChatEvent.NONE, 0);
+
+	/**
+	 * server being replicated
+	 */
+	private final ChatServer server;
+	/**
+	 * socket the standby connects to
+	 */
+	private final ServerSocket listener;
+	/**
+	 * connection to the standby, null while there is none
+	 */
+	private Socket standby;
+	/**
+	 * stream to the standby, null while there is none
+	 */
+	private OutputStream out;
+	/**
+	 * frames waiting to be written to the standby
+	 */
+	private final ByteBuffer buffer;
+	/**
+	 * events handed over by the event bus, waiting for the writer
+	 */
+	private final ArrayBlockingQueue<ChatEvent> outgoing;
+	/**
+	 * events the writer took from the queue, reused between writes
+	 */
+	private final List<ChatEvent> taken;
+	/**
+	 * whether the writer should send a snapshot before anything else
+	 */
+	private volatile boolean snapshotWanted;
+	/**
+	 * events waiting for an earlier event, by sequence number
+	 */
+	private final ChatEvent[] pending;
+	/**
+	 * events ready to be sent, reused between deliveries
+	 */
+	private final List<ChatEvent> ready;
+	/**
+	 * sequence number of the next event to send
+	 */
+	private long nextSequence;
+	/**
+	 * highest sequence number waiting in pending
+	 */
+	private long highestSequence;
+	/**
+	 * when an event was first seen missing, from System.nanoTime, 0 if none is
+	 */
+	private long missingSince;
+	/**
+	 * when a frame was last written, from System.nanoTime
+	 */
+	private long lastWrite;
+	/**
+	 * last sequence number of each batch not yet acked
+	 */
+	private final long[] inFlightSequence;
+	/**
+	 * when each batch not yet acked was written, from System.nanoTime
+	 */
+	private final long[] inFlightSent;
+	/**
+	 * index of the oldest batch not yet acked
+	 */
+	private long inFlightHead;
+	/**
+	 * index the next batch written is kept at
+	 */
+	private long inFlightTail;
+	/**
+	 * the latest replication lag samples in nanoseconds
+	 */
+	private final long[] lagNanos;
+	/**
+	 * number of replication lag samples taken
+	 */
+	private long lagCount;
+	/**
+	 * last sequence number the standby applied
+	 */
+	private volatile long ackedSequence;
+	/**
+	 * number of batch frames sent
+	 */
+	private long batchCount;
+	/**
+	 * number of events sent in batches
+	 */
+	private long eventCount;
+	/**
+	 * number of snapshots sent
+	 */
+	private long snapshotCount;
+	/**
+	 * number of snapshots sent because an event went missing
+	 */
+	private long gapCount;
+	/**
+	 * number of bytes written to standbys
+	 */
+	private long bytesSent;
+	/**
+	 * time between heartbeats while no events are sent in milliseconds
+	 */
+	private long heartbeatMillis = 50;
+	/**
+	 * how long an event may stay missing before a snapshot is sent instead in milliseconds
+	 */
+	private long gapMillis = 100;
+	/**
+	 * most events queued for this subscriber on the event bus
+	 */
+	private int queueCapacity = 1 << 16;
+	/**
+	 * subscription to the server's event bus, null until started
+	 */
+	private EventSubscription subscription;
+	/**
+	 * whether the primary is accepting standbys
+	 */
+	private volatile boolean isRunning;
+	/**
+	 * whether the primary has stopped sending, as if its process hung
+	 */
+	private volatile boolean isCrashed;
+
+	/**
+	 * creates a primary for a server listening on the loopback address
+	 *
+	 * @param server server being replicated
+	 * @param port port standbys connect to, 0 for any free port
+	 * @throws IOException if the port cannot be listened on
+	 */
+	public ReplicationPrimary(ChatServer server, int port) throws IOException {
+		this.server = server;
+		this.listener = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+		this.buffer = ByteBuffer.allocate(256 * 1024);
+		this.outgoing = new ArrayBlockingQueue<>(PENDING_CAPACITY);
+		this.taken = new ArrayList<>();
+		this.pending = new ChatEvent[PENDING_CAPACITY];
+		this.ready = new ArrayList<>();
+		this.inFlightSequence = new long[IN_FLIGHT_CAPACITY];
+		this.inFlightSent = new long[IN_FLIGHT_CAPACITY];
+		this.lagNanos = new long[LAG_SAMPLES];
+	}
+
+	/**
+	 * subscribes to the server's events and starts accepting a standby and writing to it
+	 */
+	public void start() {
+		isRunning = true;
+		subscription = server.getEventBus().subscribe(this, queueCapacity);
+
+		Thread acceptor = new Thread(this::accept, "replication-primary");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		Thread writer = new Thread(this::writeLoop, "replication-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * accepts one standby at a time, having the writer send it a snapshot then reading its acks
+	 * until it goes
+	 */
+	private void accept() {
+		while (isRunning) {
+			Socket socket;
+			try {
+				socket = listener.accept();
+			} catch (IOException e) {
+				if (isRunning) {
+					ChatLog.println("Replication stopped accepting standbys: " + e.getMessage());
+				}
+				return;
+			}
+
+			try {
+				socket.setTcpNoDelay(true);
+				synchronized (this) {
+					disconnect();
+					standby = socket;
+					out = socket.getOutputStream();
+					ackedSequence = 0;
+					wantSnapshot();
+				}
+				ChatLog.println("Standby connected from " + socket.getRemoteSocketAddress() + ".");
+				read(socket.getInputStream());
+			} catch (IOException | IllegalArgumentException e) {
+				ChatLog.println("Replication to standby failed: " + e.getMessage());
+			} finally {
+				synchronized (this) {
+					if (standby == socket) {
+						disconnect();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * reads frames from the standby until it disconnects
+	 *
+	 * @param in stream from the standby
+	 * @throws IOException if reading fails
+	 */
+	private void read(InputStream in) throws IOException {
+		ByteBuffer incoming = ByteBuffer.allocate(4096);
+		while (isRunning) {
+			int read = in.read(incoming.array(), incoming.position(), incoming.remaining());
+			if (read < 0) {
+				return;
+			}
+			incoming.position(incoming.position() + read);
+			incoming.flip();
+			ReplicationLog.decode(incoming, this);
+			incoming.compact();
+		}
+	}
+
+	/**
+	 * takes queued events and writes them to the standby, along with the snapshots and heartbeats
+	 * that are due, until the primary is closed. wakes at least once per heartbeat so missing
+	 * events are noticed when no more events arrive.
+	 */
+	private void writeLoop() {
+		try {
+			while (isRunning) {
+				ChatEvent first = outgoing.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					taken.add(first);
+					outgoing.drainTo(taken);
+				}
+
+				synchronized (this) {
+					try {
+						write(taken);
+					} catch (IOException e) {
+						ChatLog.println("Replication to standby failed: " + e.getMessage());
+						disconnect();
+					}
+				}
+				taken.clear();
+			}
+		} catch (InterruptedException e) {
+			ChatLog.println("Interrupted Replication Writer Thread");
+		}
+	}
+
+	/**
+	 * called on the event bus executor, only queues the events for the writer so the bus is never
+	 * held up by the standby. events that do not fit are dropped and covered by a snapshot later.
+	 *
+	 * @param events the batch of events, only valid for the duration of the call
+	 */
+	@Override
+	public void onEvents(List<ChatEvent> events) {
+		for (int i = 0; i < events.size(); i++) {
+			outgoing.offer(events.get(i));
+		}
+	}
+
+	/**
+	 * holds each event by sequence number then sends every event that is no longer waiting for an
+	 * earlier one, after a snapshot if one is wanted and followed by a heartbeat if nothing was
+	 * written for a while. nothing is sent without a standby. the caller must hold the primary monitor.
+	 *
+	 * @param events events taken from the queue
+	 * @throws IOException if writing to the standby fails
+	 */
+	private void write(List<ChatEvent> events) throws IOException {
+		if (out == null || isCrashed) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		if (snapshotWanted) {
+			snapshotWanted = false;
+			sendSnapshot();
+		}
+		for (int i = 0; i < events.size(); i++) {
+			ChatEvent event = events.get(i);
+			long sequence = event.getSequence();
+			if (event == WAKE || sequence < nextSequence) {
+				continue;
+			}
+			if (sequence >= nextSequence + pending.length) {
+				//too far ahead to hold, the snapshot covers it and everything before it
+				gapCount++;
+				sendSnapshot();
+				if (sequence < nextSequence) {
+					continue;
+				}
+			}
+			pending[(int) sequence & (pending.length - 1)] = event;
+			highestSequence = Math.max(highestSequence, sequence);
+		}
+		send(now);
+
+		if (now - lastWrite >= heartbeatMillis * 1_000_000L) {
+			ReplicationLog.encodeHeartbeat(buffer, server.getEventBus().getLastSequence());
+			write(buffer, now);
+		}
+	}
+
+	/**
+	 * asks the writer for a snapshot before anything else it sends, and wakes it
+	 */
+	private void wantSnapshot() {
+		snapshotWanted = true;
+		outgoing.offer(WAKE);
+	}
+
+	/**
+	 * sends every event that is no longer waiting for an earlier one, in batches, and a snapshot
+	 * if an event has been missing for too long. the caller must hold the primary monitor.
+	 *
+	 * @param now the current System.nanoTime
+	 * @throws IOException if writing to the standby fails
+	 */
+	private void send(long now) throws IOException {
+		int mask = pending.length - 1;
+		while (pending[(int) nextSequence & mask] != null) {
+			ready.add(pending[(int) nextSequence & mask]);
+			pending[(int) nextSequence & mask] = null;
+			nextSequence++;
+		}
+
+		for (int from = 0; from < ready.size(); from += MAX_BATCH) {
+			int to = Math.min(from + MAX_BATCH, ready.size());
+			if (buffer.remaining() < 16 * MAX_BATCH) {
+				write(buffer, now);
+			}
+			ReplicationLog.encodeBatch(buffer, ready, from, to);
+
+			//the oldest batch is forgotten rather than blocking when too many are unacked
+			if (inFlightTail - inFlightHead == inFlightSequence.length) {
+				inFlightHead++;
+			}
+			inFlightSequence[(int) inFlightTail & (inFlightSequence.length - 1)] = nextSequence - ready.size() + to - 1;
+			inFlightSent[(int) inFlightTail & (inFlightSequence.length - 1)] = now;
+			inFlightTail++;
+			batchCount++;
+		}
+		eventCount += ready.size();
+		ready.clear();
+		if (buffer.position() > 0) {
+			write(buffer, now);
+		}
+
+		if (highestSequence < nextSequence) {
+			missingSince = 0;
+		} else if (missingSince == 0) {
+			missingSince = now;
+		} else if (now - missingSince >= gapMillis * 1_000_000L) {
+			gapCount++;
+			sendSnapshot();
+			send(now);
+		}
+	}
+
+	/**
+	 * sends a snapshot of the server, events it already covers are dropped and later events keep
+	 * waiting to be sent after it. the caller must hold the primary monitor.
+	 *
+	 * @throws IOException if writing to the standby fails
+	 */
+	private void sendSnapshot() throws IOException {
+		long now = System.nanoTime();
+		ReplicationSnapshot snapshot = ReplicationSnapshot.take(server);
+		if (buffer.position() > 0) {
+			write(buffer, now);
+		}
+
+		int size = ReplicationLog.snapshotFrameSize(snapshot);
+		ByteBuffer frame = size <= buffer.capacity() ? buffer : ByteBuffer.allocate(size);
+		ReplicationLog.encodeSnapshot(frame, snapshot);
+		write(frame, now);
+
+		nextSequence = snapshot.getSequence() + 1;
+		for (int i = 0; i < pending.length; i++) {
+			if (pending[i] != null && pending[i].getSequence() < nextSequence) {
+				pending[i] = null;
+			}
+		}
+		missingSince = 0;
+		snapshotCount++;
+	}
+
+	/**
+	 * writes the frames in a buffer to the standby and empties it
+	 *
+	 * @param frames buffer holding the frames
+	 * @param now the current System.nanoTime
+	 * @throws IOException if writing to the standby fails
+	 */
+	private void write(ByteBuffer frames, long now) throws IOException {
+		out.write(frames.array(), 0, frames.position());
+		bytesSent += frames.position();
+		lastWrite = now;
+		frames.clear();
+	}
+
+	/**
+	 * closes the connection to the standby, if any. the caller must hold the primary monitor.
+	 */
+	private void disconnect() {
+		if (standby != null) {
+			try {
+				standby.close();
+			} catch (IOException e) {
+				ChatLog.println("Could not close standby connection: " + e.getMessage());
+			}
+		}
+		standby = null;
+		out = null;
+		buffer.clear();
+		Arrays.fill(pending, null);
+		highestSequence = 0;
+		inFlightHead = inFlightTail;
+	}
+
+	/**
+	 * the standby acked, every batch up to the sequence number gives a lag sample
+	 *
+	 * @param sequence sequence number applied
+	 */
+	@Override
+	public synchronized void onAck(long sequence) {
+		ackedSequence = Math.max(ackedSequence, sequence);
+		long now = System.nanoTime();
+		int mask = inFlightSequence.length - 1;
+		while (inFlightHead < inFlightTail && inFlightSequence[(int) inFlightHead & mask] <= sequence) {
+			lagNanos[(int) (lagCount++ & (lagNanos.length - 1))] = now - inFlightSent[(int) inFlightHead & mask];
+			inFlightHead++;
+		}
+	}
+
+	/**
+	 * the standby missed events, the writer sends it a snapshot
+	 */
+	@Override
+	public synchronized void onResync() {
+		gapCount++;
+		wantSnapshot();
+	}
+
+	@Override
+	public void onEvent(long sequence, ChatEvent.Type type, int userID, int roomID, long detail) {
+		throw new IllegalArgumentException("A standby does not send events.");
+	}
+
+	@Override
+	public void onSnapshot(ReplicationSnapshot snapshot) {
+		throw new IllegalArgumentException("A standby does not send snapshots.");
+	}
+
+	@Override
+	public void onHeartbeat(long lastSequence) {
+		throw new IllegalArgumentException("A standby does not send heartbeats.");
+	}
+
+	/**
+	 * stops sending anything while leaving the connection open, as a hung or partitioned primary
+	 * would, so the standby has to notice from the missing heartbeats
+	 */
+	public void crash() {
+		isCrashed = true;
+	}
+
+	/**
+	 * stops replicating, the standby sees the connection close
+	 */
+	public void close() {
+		isRunning = false;
+		outgoing.offer(WAKE);
+		if (subscription != null) {
+			server.getEventBus().unsubscribe(subscription);
+		}
+		try {
+			listener.close();
+		} catch (IOException e) {
+			ChatLog.println("Could not close replication listener: " + e.getMessage());
+		}
+		synchronized (this) {
+			disconnect();
+		}
+	}
+
+	/**
+	 * gets a percentile of the replication lag, from a batch being written to the standby to its
+	 * ack arriving, over the latest samples
+	 *
+	 * @param percentile percentile wanted, between 0 and 100
+	 * @return lag in microseconds, 0 if nothing was acked
+	 */
+	public synchronized double getLagMicros(double percentile) {
+		int count = (int) Math.min(lagCount, lagNanos.length);
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(lagNanos, count);
+		Arrays.sort(sorted);
+		return sorted[(int) Math.min(count - 1, (long) (percentile / 100 * count))] / 1e3;
+	}
+
+	/**
+	 * gets the number of events published that the standby has not applied
+	 *
+	 * @return events behind
+	 */
+	public long getSequenceLag() {
+		return Math.max(0, server.getEventBus().getLastSequence() - ackedSequence);
+	}
+
+	/**
+	 * gets the last sequence number the standby applied
+	 *
+	 * @return sequence number acked
+	 */
+	public long getAckedSequence() {
+		return ackedSequence;
+	}
+
+	/**
+	 * gets whether a standby is connected
+	 *
+	 * @return whether a standby is connected
+	 */
+	public synchronized boolean isConnected() {
+		return out != null;
+	}
+
+	/**
+	 * gets the port standbys connect to
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return listener.getLocalPort();
+	}
+
+	/**
+	 * gets the number of batch frames sent
+	 *
+	 * @return batches sent
+	 */
+	public synchronized long getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * gets the number of events sent in batches
+	 *
+	 * @return events sent
+	 */
+	public synchronized long getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * gets the number of snapshots sent
+	 *
+	 * @return snapshots sent
+	 */
+	public synchronized long getSnapshotCount() {
+		return snapshotCount;
+	}
+
+	/**
+	 * gets the number of snapshots sent because events went missing
+	 *
+	 * @return snapshots sent for missing events
+	 */
+	public synchronized long getGapCount() {
+		return gapCount;
+	}
+
+	/**
+	 * gets the number of bytes written to standbys
+	 *
+	 * @return bytes sent
+	 */
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * gets the server being replicated
+	 *
+	 * @return the server
+	 */
+	public ChatServer getServer() {
+		return server;
+	}
+
+	/**
+	 * sets the time between heartbeats while no events are sent
+	 *
+	 * @param heartbeatMillis time between heartbeats in milliseconds
+	 */
+	public void setHeartbeatMillis(long heartbeatMillis) {
+		this.heartbeatMillis = heartbeatMillis;
+	}
+
+	/**
+	 * gets the time between heartbeats while no events are sent
+	 *
+	 * @return time between heartbeats in milliseconds
+	 */
+	public long getHeartbeatMillis() {
+		return heartbeatMillis;
+	}
+
+	/**
+	 * sets how long an event may stay missing before a snapshot is sent instead
+	 *
+	 * @param gapMillis time in milliseconds
+	 */
+	public void setGapMillis(long gapMillis) {
+		this.gapMillis = gapMillis;
+	}
+
+	/**
+	 * gets how long an event may stay missing before a snapshot is sent instead
+	 *
+	 * @return time in milliseconds
+	 */
+	public long getGapMillis() {
+		return gapMillis;
+	}
+
+	/**
+	 * sets the most events queued for the primary on the event bus, applies when started
+	 *
+	 * @param queueCapacity most events queued
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * gets the most events queued for the primary on the event bus
+	 *
+	 * @return most events queued
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+}
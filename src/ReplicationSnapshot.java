@@ -0,0 +1,326 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is the membership, moderation and room state of a chat server at one point of its
+ * event log, with the class of each user and the places set aside for each class. A standby starts
+ * from a snapshot and then applies the events published after it. The server is read one monitor
+ * at a time, so the state may already include some later events. Those are applied again
+ * afterwards, which is safe as each event sets a user or room to where it ended up.
+ */
+public class ReplicationSnapshot {
+
+	/**
+	 * sequence number of the last event published before the server was read
+	 */
+	private final long sequence;
+	/**
+	 * capacity of the server
+	 */
+	private final int capacity;
+	/**
+	 * number of shards the main room is split into
+	 */
+	private final int mainRoomShards;
+	/**
+	 * whether the server is open
+	 */
+	private final boolean isOpen;
+	/**
+	 * ids of the users in the server
+	 */
+	private final int[] users;
+	/**
+	 * priority class ordinal of each user in the server, in the same order as the users
+	 */
+	private final int[] classes;
+	/**
+	 * places in the server set aside for each priority class, by class ordinal
+	 */
+	private final int[] reservedCapacity;
+	/**
+	 * ids of the users banned from the server
+	 */
+	private final int[] banned;
+	/**
+	 * when each ban ends in milliseconds since the epoch, Long.MAX_VALUE if it lasts until lifted
+	 */
+	private final long[] banEnds;
+	/**
+	 * whether each room is open, by room id
+	 */
+	private final boolean[] roomOpen;
+	/**
+	 * ids of the users in each room, by room id
+	 */
+	private final int[][] roomMembers;
+	/**
+	 * places in each room set aside for each priority class, by room id then class ordinal
+	 */
+	private final int[][] roomReservedCapacity;
+
+	/**
+	 * creates a snapshot
+	 *
+	 * @param sequence sequence number of the last event included
+	 * @param capacity capacity of the server
+	 * @param mainRoomShards number of shards the main room is split into
+	 * @param isOpen whether the server is open
+	 * @param users ids of the users in the server
+	 * @param classes priority class ordinal of each user
+	 * @param reservedCapacity places in the server set aside for each class
+	 * @param banned ids of the users banned from the server
+	 * @param banEnds when each ban ends
+	 * @param roomOpen whether each room is open
+	 * @param roomMembers ids of the users in each room
+	 * @param roomReservedCapacity places in each room set aside for each class
+	 */
+	public ReplicationSnapshot(long sequence, int capacity, int mainRoomShards, boolean isOpen, int[] users,
+			int[] classes, int[] reservedCapacity, int[] banned, long[] banEnds, boolean[] roomOpen,
+			int[][] roomMembers, int[][] roomReservedCapacity) {
+		this.sequence = sequence;
+		this.capacity = capacity;
+		this.mainRoomShards = mainRoomShards;
+		this.isOpen = isOpen;
+		this.users = users;
+		this.classes = classes;
+		this.reservedCapacity = reservedCapacity;
+		this.banned = banned;
+		this.banEnds = banEnds;
+		this.roomOpen = roomOpen;
+		this.roomMembers = roomMembers;
+		this.roomReservedCapacity = roomReservedCapacity;
+	}
+
+	/**
+	 * takes a snapshot of a server, the sequence number is read before the server so no event
+	 * after it can be missing from the state
+	 *
+	 * @param server server being read
+	 * @return the snapshot
+	 */
+	public static ReplicationSnapshot take(ChatServer server) {
+		long sequence = server.getEventBus().getLastSequence();
+
+		int[] users;
+		int[] classes;
+		int[] reservedCapacity = new int[Priority.values().length];
+		boolean isOpen;
+		synchronized (server) {
+			isOpen = server.isOpen();
+			users = ids(server.getUsers());
+			classes = classes(server.getUsers());
+			for (Priority priority : Priority.values()) {
+				reservedCapacity[priority.ordinal()] = server.getReservedCapacity(priority);
+			}
+		}
+
+		//a ban lifted between listing the ids and reading its end is left out
+		int[] bannedIDs = server.getBans().getUserIDs();
+		int[] banned = new int[bannedIDs.length];
+		long[] banEnds = new long[bannedIDs.length];
+		int bans = 0;
+		for (int userID : bannedIDs) {
+			long end = server.getBans().getEndMillis(userID);
+			if (end != 0) {
+				banned[bans] = userID;
+				banEnds[bans++] = end;
+			}
+		}
+
+		List<ChatRoom> rooms = server.getChatRooms();
+		boolean[] roomOpen = new boolean[rooms.size()];
+		int[][] roomMembers = new int[rooms.size()][];
+		int[][] roomReservedCapacity = new int[rooms.size()][Priority.values().length];
+		for (int i = 0; i < rooms.size(); i++) {
+			ChatRoom room = rooms.get(i);
+			synchronized (room) {
+				roomOpen[i] = room.isOpen();
+				roomMembers[i] = ids(room.getUsers());
+				for (Priority priority : Priority.values()) {
+					roomReservedCapacity[i][priority.ordinal()] = room.getReservedCapacity(priority);
+				}
+			}
+		}
+
+		ChatRoom mainRoom = server.getMainRoom();
+		int shards = mainRoom instanceof ShardedChatRoom ? ((ShardedChatRoom) mainRoom).getShardCount() : 1;
+		return new ReplicationSnapshot(sequence, server.getCapacity(), shards, isOpen, users, classes,
+				reservedCapacity, Arrays.copyOf(banned, bans), Arrays.copyOf(banEnds, bans), roomOpen, roomMembers,
+				roomReservedCapacity);
+	}
+
+	/**
+	 * gets the ids of users
+	 *
+	 * @param users users
+	 * @return their ids, in the same order
+	 */
+	private static int[] ids(List<User> users) {
+		int[] ids = new int[users.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = users.get(i).getUserID();
+		}
+		return ids;
+	}
+
+	/**
+	 * gets the priority class ordinals of users
+	 *
+	 * @param users users
+	 * @return their class ordinals, in the same order
+	 */
+	private static int[] classes(List<User> users) {
+		int[] classes = new int[users.size()];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = users.get(i).getPriority().ordinal();
+		}
+		return classes;
+	}
+
+	/**
+	 * describes the state without the sequence number or when bans end, two servers in the same
+	 * state are described the same whatever order their users joined in
+	 *
+	 * @return the description
+	 */
+	public String describe() {
+		List<String> rooms = new ArrayList<>();
+		for (int i = 0; i < roomOpen.length; i++) {
+			rooms.add((roomOpen[i] ? "open " : "closed ") + roomMembers[i].length + "/" + hash(roomMembers[i])
+					+ Arrays.toString(roomReservedCapacity[i]));
+		}
+
+		//each user is hashed with their class so a user admitted in another class differs
+		int[] usersWithClasses = new int[users.length];
+		for (int i = 0; i < users.length; i++) {
+			usersWithClasses[i] = users[i] * Priority.values().length + classes[i];
+		}
+		return (isOpen ? "open, " : "closed, ") + users.length + " users/" + hash(usersWithClasses)
+				+ Arrays.toString(reservedCapacity) + ", " + banned.length + " banned/" + hash(banned)
+				+ ", rooms " + rooms;
+	}
+
+	/**
+	 * hashes ids without regard to their order
+	 *
+	 * @param ids ids being hashed
+	 * @return the hash in hex
+	 */
+	private static String hash(int[] ids) {
+		int[] sorted = ids.clone();
+		Arrays.sort(sorted);
+		return Integer.toHexString(Arrays.hashCode(sorted));
+	}
+
+	/**
+	 * gets the sequence number of the last event included
+	 *
+	 * @return sequence number
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * gets the capacity of the server
+	 *
+	 * @return capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * gets the number of shards the main room is split into
+	 *
+	 * @return number of shards
+	 */
+	public int getMainRoomShards() {
+		return mainRoomShards;
+	}
+
+	/**
+	 * gets whether the server is open
+	 *
+	 * @return whether the server is open
+	 */
+	public boolean isOpen() {
+		return isOpen;
+	}
+
+	/**
+	 * gets the ids of the users in the server
+	 *
+	 * @return user ids
+	 */
+	public int[] getUsers() {
+		return users;
+	}
+
+	/**
+	 * gets the priority class ordinal of each user in the server
+	 *
+	 * @return class ordinals, in the same order as the users
+	 */
+	public int[] getClasses() {
+		return classes;
+	}
+
+	/**
+	 * gets the places in the server set aside for each priority class
+	 *
+	 * @return places, by class ordinal
+	 */
+	public int[] getReservedCapacity() {
+		return reservedCapacity;
+	}
+
+	/**
+	 * gets the ids of the users banned from the server
+	 *
+	 * @return user ids
+	 */
+	public int[] getBanned() {
+		return banned;
+	}
+
+	/**
+	 * gets when each ban ends
+	 *
+	 * @return milliseconds since the epoch, Long.MAX_VALUE for a ban until lifted, in the same order
+	 *         as the banned users
+	 */
+	public long[] getBanEnds() {
+		return banEnds;
+	}
+
+	/**
+	 * gets whether each room is open
+	 *
+	 * @return whether each room is open, by room id
+	 */
+	public boolean[] getRoomOpen() {
+		return roomOpen;
+	}
+
+	/**
+	 * gets the ids of the users in each room
+	 *
+	 * @return user ids, by room id
+	 */
+	public int[][] getRoomMembers() {
+		return roomMembers;
+	}
+
+	/**
+	 * gets the places in each room set aside for each priority class
+	 *
+	 * @return places, by room id then class ordinal
+	 */
+	public int[][] getRoomReservedCapacity() {
+		return roomReservedCapacity;
+	}
+
+}
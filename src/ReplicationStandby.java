@@ -0,0 +1,530 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class follows a replication primary, it extends runnable. It builds its own chat server
+ * from the first snapshot it is sent, then applies each event of the log to it in order, with a
+ * placeholder user of the same class standing in for each remote user. Joins and room entries are
+ * applied as the primary decided them rather than admitted again, as the standby's own checks
+ * could decide differently, and bans are copied with when they end. A missing event makes it ask
+ * for a new snapshot. When the primary closes the connection or stays silent past the heartbeat
+ * timeout the standby stops following and takes over, its server then holds the state of the last
+ * event it applied, including the classes, places set aside for them and bans its admissions use.
+ */
+public class ReplicationStandby implements ReplicationHandler, Runnable {
+
+	/**
+	 * host of the primary
+	 */
+	private final String host;
+	/**
+	 * port of the primary
+	 */
+	private final int port;
+	/**
+	 * how long the primary may stay silent before the standby takes over in milliseconds
+	 */
+	private long heartbeatTimeoutMillis = 250;
+	/**
+	 * server the log is applied to, null until the first snapshot
+	 */
+	private ChatServer server;
+	/**
+	 * placeholder users standing in for the primary's users, by user id
+	 */
+	private final Map<Integer, User> placeholders;
+	/**
+	 * bytes read from the primary not yet decoded
+	 */
+	private ByteBuffer incoming;
+	/**
+	 * frames waiting to be written to the primary
+	 */
+	private final ByteBuffer outgoing;
+	/**
+	 * sequence number of the last event applied
+	 */
+	private volatile long appliedSequence;
+	/**
+	 * sequence number of the last event the primary had published, as of its last heartbeat
+	 */
+	private volatile long primarySequence;
+	/**
+	 * whether events are ignored until the next snapshot
+	 */
+	private boolean isAwaitingSnapshot = true;
+	/**
+	 * whether a snapshot should be asked for
+	 */
+	private boolean needsResync;
+	/**
+	 * when the primary was last heard from, from System.nanoTime
+	 */
+	private volatile long lastHeard;
+	/**
+	 * number of events applied
+	 */
+	private volatile long eventCount;
+	/**
+	 * number of events the server refused, which only happens while catching up after a snapshot
+	 */
+	private volatile long refusedCount;
+	/**
+	 * number of snapshots applied
+	 */
+	private volatile long snapshotCount;
+	/**
+	 * whether the standby has taken over
+	 */
+	private volatile boolean isPromoted;
+	/**
+	 * time from the primary last being heard to the standby taking over in nanoseconds
+	 */
+	private volatile long failoverNanos;
+
+	/**
+	 * creates a standby for a primary
+	 *
+	 * @param host host of the primary
+	 * @param port port of the primary
+	 */
+	public ReplicationStandby(String host, int port) {
+		this.host = host;
+		this.port = port;
+		this.placeholders = new HashMap<>();
+		this.incoming = ByteBuffer.allocate(64 * 1024);
+		this.outgoing = ByteBuffer.allocate(64);
+	}
+
+	/**
+	 * runs a standby in its own process until it takes over, then reports on it
+	 *
+	 * @param args CLI arguments, the host and port of the primary and optionally the heartbeat timeout
+	 */
+	public static void main(String[] args) {
+		ChatLog.setEnabled(false);
+		ReplicationStandby standby = new ReplicationStandby(args[0], Integer.parseInt(args[1]));
+		if (args.length > 2) {
+			standby.setHeartbeatTimeoutMillis(Long.parseLong(args[2]));
+		}
+		standby.run();
+
+		ChatServer server = standby.getServer();
+		if (server == null) {
+			System.out.println("never received a snapshot, nothing to take over");
+			System.exit(1);
+		}
+		System.out.printf("applied %d events and %d snapshots, %d refused%n", standby.getEventCount(),
+				standby.getSnapshotCount(), standby.getRefusedCount());
+		System.out.printf("took over %.1f ms after last hearing from the primary%n",
+				standby.getFailoverNanos() / 1e6);
+		System.out.println("state: " + ReplicationSnapshot.take(server).describe());
+
+		//the server now takes users of its own
+		User newcomer = new User(Integer.MAX_VALUE, server);
+		System.out.println("new user admitted after taking over: " + server.join(newcomer));
+	}
+
+	/**
+	 * follows the primary until it goes, then takes over
+	 */
+	@Override
+	public void run() {
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout((int) heartbeatTimeoutMillis);
+			lastHeard = System.nanoTime();
+			follow(socket.getInputStream(), socket.getOutputStream());
+		} catch (SocketTimeoutException e) {
+			ChatLog.println("Primary silent for " + heartbeatTimeoutMillis + "ms.");
+		} catch (IOException | IllegalArgumentException e) {
+			ChatLog.println("Lost the primary: " + e.getMessage());
+		}
+		takeOver();
+	}
+
+	/**
+	 * reads and applies frames until the primary closes the connection
+	 *
+	 * @param in stream from the primary
+	 * @param out stream to the primary
+	 * @throws IOException if reading or writing fails, or the primary is silent for too long
+	 */
+	private void follow(InputStream in, OutputStream out) throws IOException {
+		while (true) {
+			int read = in.read(incoming.array(), incoming.position(), incoming.remaining());
+			if (read < 0) {
+				ChatLog.println("Primary closed the connection.");
+				return;
+			}
+			lastHeard = System.nanoTime();
+			incoming.position(incoming.position() + read);
+			incoming.flip();
+
+			long applied = appliedSequence;
+			ReplicationLog.decode(incoming, this);
+			incoming.compact();
+			if (!incoming.hasRemaining()) {
+				//a frame bigger than the buffer, such as a large snapshot
+				ByteBuffer larger = ByteBuffer.allocate(incoming.capacity() * 2);
+				incoming.flip();
+				larger.put(incoming);
+				incoming = larger;
+			}
+
+			if (needsResync) {
+				needsResync = false;
+				ReplicationLog.encodeResync(outgoing);
+			}
+			if (appliedSequence != applied) {
+				ReplicationLog.encodeAck(outgoing, appliedSequence);
+			}
+			if (outgoing.position() > 0) {
+				out.write(outgoing.array(), 0, outgoing.position());
+				outgoing.clear();
+			}
+		}
+	}
+
+	/**
+	 * stops following the primary, the server keeps the state of the last event applied and
+	 * events the primary published after it are lost
+	 */
+	private void takeOver() {
+		isPromoted = true;
+		failoverNanos = System.nanoTime() - lastHeard;
+		ChatLog.println("Standby took over at event " + appliedSequence + ", the primary was last at "
+				+ primarySequence + ".");
+	}
+
+	/**
+	 * applies an event, events before the next snapshot or already covered by one are skipped
+	 *
+	 * @param sequence sequence number of the event on the primary
+	 * @param type what happened
+	 * @param userID id of the user the event is about, or none
+	 * @param roomID id of the room the event is about, or none
+	 * @param detail the class of a user who joined, or when a ban ends
+	 */
+	@Override
+	public void onEvent(long sequence, ChatEvent.Type type, int userID, int roomID, long detail) {
+		if (isAwaitingSnapshot || sequence <= appliedSequence) {
+			return;
+		}
+		if (sequence != appliedSequence + 1) {
+			ChatLog.println("Standby missed events " + (appliedSequence + 1) + " to " + (sequence - 1) + ", resyncing.");
+			isAwaitingSnapshot = true;
+			needsResync = true;
+			return;
+		}
+
+		boolean applied = true;
+		switch (type) {
+			case SERVER_OPENED:
+				server.open();
+				break;
+			case SERVER_CLOSED:
+				server.close();
+				break;
+			case ROOM_OPENED:
+				addRoomsUpTo(roomID);
+				server.openChatRoom(roomID);
+				break;
+			case ROOM_CLOSED:
+				server.closeChatRoom(roomID);
+				break;
+			case USER_JOINED: {
+				User user = placeholder(userID);
+				user.setPriority(priority(detail));
+				applied = server.restore(user);
+				break;
+			}
+			case USER_LEFT:
+				server.leave(placeholder(userID));
+				break;
+			case USER_ENTERED_ROOM:
+				addRoomsUpTo(roomID);
+				applied = server.getChatRooms().get(roomID).restore(placeholder(userID));
+				break;
+			case USER_LEFT_ROOM:
+				server.leaveRoom(placeholder(userID), roomID);
+				break;
+			case USER_BANNED:
+				//the user leaving is replicated on its own
+				server.getBans().addUntil(userID, detail);
+				break;
+			case USER_UNBANNED:
+				server.getBans().remove(userID);
+				break;
+			default:
+				//draining only stops new users, the leaves that follow are replicated one by one
+				break;
+		}
+		if (!applied) {
+			refusedCount++;
+		}
+		appliedSequence = sequence;
+		eventCount++;
+	}
+
+	/**
+	 * makes the server match a snapshot, creating the server from the first one
+	 *
+	 * @param snapshot state of the primary
+	 */
+	@Override
+	public void onSnapshot(ReplicationSnapshot snapshot) {
+		if (server == null) {
+			server = new ChatServer(snapshot.getCapacity(), snapshot.getRoomOpen().length,
+					snapshot.getMainRoomShards(), new Admin("Standby"));
+		}
+		if (snapshot.isOpen()) {
+			server.open();
+		}
+		addRoomsUpTo(snapshot.getRoomOpen().length - 1);
+
+		Priority[] priorities = Priority.values();
+		for (Priority priority : priorities) {
+			server.setReservedCapacity(priority, snapshot.getReservedCapacity()[priority.ordinal()]);
+		}
+		server.getBans().clear();
+		for (int i = 0; i < snapshot.getBanned().length; i++) {
+			server.getBans().addUntil(snapshot.getBanned()[i], snapshot.getBanEnds()[i]);
+		}
+
+		//users who are gone leave first so there is room for the users who are not there yet
+		Set<Integer> users = toSet(snapshot.getUsers());
+		List<User> current;
+		synchronized (server) {
+			current = new ArrayList<>(server.getUsers());
+		}
+		for (User user : current) {
+			if (!users.contains(user.getUserID())) {
+				server.leaveChatRoom(user);
+			}
+		}
+
+		List<ChatRoom> rooms = server.getChatRooms();
+		for (int i = 0; i < snapshot.getRoomOpen().length; i++) {
+			ChatRoom room = rooms.get(i);
+			Set<Integer> members = toSet(snapshot.getRoomMembers()[i]);
+			List<User> present;
+			synchronized (room) {
+				present = new ArrayList<>(room.getUsers());
+			}
+			for (User user : present) {
+				if (!members.contains(user.getUserID())) {
+					room.leaveRoom(user);
+				}
+			}
+		}
+
+		for (int i = 0; i < snapshot.getUsers().length; i++) {
+			User user = placeholder(snapshot.getUsers()[i]);
+			user.setPriority(priorities[snapshot.getClasses()[i]]);
+			server.restore(user);
+		}
+		for (int i = 0; i < snapshot.getRoomOpen().length; i++) {
+			ChatRoom room = rooms.get(i);
+			for (Priority priority : priorities) {
+				room.setReservedCapacity(priority, snapshot.getRoomReservedCapacity()[i][priority.ordinal()]);
+			}
+			if (snapshot.getRoomOpen()[i]) {
+				room.open();
+				for (int userID : snapshot.getRoomMembers()[i]) {
+					if (!room.hasMember(userID)) {
+						room.restore(placeholder(userID));
+					}
+				}
+			} else if (room.isOpen()) {
+				room.close();
+			}
+		}
+		if (!snapshot.isOpen()) {
+			server.close();
+		}
+
+		appliedSequence = snapshot.getSequence();
+		isAwaitingSnapshot = false;
+		snapshotCount++;
+	}
+
+	/**
+	 * the primary is still alive
+	 *
+	 * @param lastSequence sequence number of the last event the primary published
+	 */
+	@Override
+	public void onHeartbeat(long lastSequence) {
+		primarySequence = lastSequence;
+	}
+
+	@Override
+	public void onAck(long sequence) {
+		throw new IllegalArgumentException("A primary does not send acks.");
+	}
+
+	@Override
+	public void onResync() {
+		throw new IllegalArgumentException("A primary does not ask for snapshots.");
+	}
+
+	/**
+	 * gets the placeholder of a user of the primary, creating it the first time
+	 *
+	 * @param userID id of the user
+	 * @return the placeholder
+	 */
+	private User placeholder(int userID) {
+		User user = placeholders.get(userID);
+		if (user == null) {
+			user = new User(userID, server);
+			placeholders.put(userID, user);
+		}
+		return user;
+	}
+
+	/**
+	 * gets the priority class a join was made in
+	 *
+	 * @param ordinal ordinal of the class
+	 * @return the class
+	 * @throws IllegalArgumentException if there is no such class
+	 */
+	private static Priority priority(long ordinal) {
+		Priority[] priorities = Priority.values();
+		if (ordinal < 0 || ordinal >= priorities.length) {
+			throw new IllegalArgumentException("Unknown priority class " + ordinal + ".");
+		}
+		return priorities[(int) ordinal];
+	}
+
+	/**
+	 * adds rooms to the server until it has a room with the id, as the primary adds rooms
+	 * when its autoscaler needs them
+	 *
+	 * @param roomID id of the room
+	 */
+	private void addRoomsUpTo(int roomID) {
+		while (server.getChatRooms().size() <= roomID) {
+			server.addChatRoom();
+		}
+	}
+
+	/**
+	 * puts ids in a set
+	 *
+	 * @param ids ids
+	 * @return the set
+	 */
+	private static Set<Integer> toSet(int[] ids) {
+		Set<Integer> set = new HashSet<>();
+		for (int id : ids) {
+			set.add(id);
+		}
+		return set;
+	}
+
+	/**
+	 * gets the server the log is applied to
+	 *
+	 * @return the server, null until the first snapshot
+	 */
+	public ChatServer getServer() {
+		return server;
+	}
+
+	/**
+	 * gets the sequence number of the last event applied
+	 *
+	 * @return sequence number
+	 */
+	public long getAppliedSequence() {
+		return appliedSequence;
+	}
+
+	/**
+	 * gets the number of events the primary had published that were not applied, as of its
+	 * last heartbeat
+	 *
+	 * @return events behind
+	 */
+	public long getSequenceLag() {
+		return Math.max(0, primarySequence - appliedSequence);
+	}
+
+	/**
+	 * gets the number of events applied
+	 *
+	 * @return events applied
+	 */
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * gets the number of events the server refused
+	 *
+	 * @return events refused
+	 */
+	public long getRefusedCount() {
+		return refusedCount;
+	}
+
+	/**
+	 * gets the number of snapshots applied
+	 *
+	 * @return snapshots applied
+	 */
+	public long getSnapshotCount() {
+		return snapshotCount;
+	}
+
+	/**
+	 * gets whether the standby has taken over
+	 *
+	 * @return whether the standby has taken over
+	 */
+	public boolean isPromoted() {
+		return isPromoted;
+	}
+
+	/**
+	 * gets the time from the primary last being heard to the standby taking over
+	 *
+	 * @return failover time in nanoseconds
+	 */
+	public long getFailoverNanos() {
+		return failoverNanos;
+	}
+
+	/**
+	 * sets how long the primary may stay silent before the standby takes over, applies
+	 * when the standby connects
+	 *
+	 * @param heartbeatTimeoutMillis timeout in milliseconds
+	 */
+	public void setHeartbeatTimeoutMillis(long heartbeatTimeoutMillis) {
+		this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+	}
+
+	/**
+	 * gets how long the primary may stay silent before the standby takes over
+	 *
+	 * @return timeout in milliseconds
+	 */
+	public long getHeartbeatTimeoutMillis() {
+		return heartbeatTimeoutMillis;
+	}
+
+}
@@ -0,0 +1,129 @@
+import java.util.Arrays;
+
+/**
+ * This class holds short-lived capacity reservations for a server or room. A reservation keeps
+ * a place free for one user until it is committed, released or runs out, so a user can be sure of
+ * a place in several rooms before taking any of them. It is not thread safe, the owner only uses
+ * it while holding its own monitor, and nothing is allocated unless the table has to grow.
+ */
+public class ReservationTable {
+
+	/**
+	 * id of the user holding each reservation
+	 */
+	private int[] userIDs;
+	/**
+	 * when each reservation runs out, from System.nanoTime
+	 */
+	private long[] deadlines;
+	/**
+	 * number of reservations held
+	 */
+	private int count;
+
+	/**
+	 * creates an empty table
+	 */
+	public ReservationTable() {
+		this.userIDs = new int[8];
+		this.deadlines = new long[8];
+	}
+
+	/**
+	 * reserves a place for a user, replacing any reservation they already hold
+	 *
+	 * @param userID id of the user
+	 * @param deadline when the reservation runs out, from System.nanoTime
+	 */
+	public void reserve(int userID, long deadline) {
+		int index = indexOf(userID);
+		if (index < 0) {
+			if (count == userIDs.length) {
+				userIDs = Arrays.copyOf(userIDs, count * 2);
+				deadlines = Arrays.copyOf(deadlines, count * 2);
+			}
+			index = count++;
+			userIDs[index] = userID;
+		}
+		deadlines[index] = deadline;
+	}
+
+	/**
+	 * removes the reservation of a user
+	 *
+	 * @param userID id of the user
+	 * @param now the current System.nanoTime
+	 * @return whether the user held a reservation that had not run out
+	 */
+	public boolean remove(int userID, long now) {
+		int index = indexOf(userID);
+		if (index < 0) {
+			return false;
+		}
+
+		boolean valid = deadlines[index] - now > 0;
+		removeAt(index);
+		return valid;
+	}
+
+	/**
+	 * checks whether a user holds a reservation that has not run out
+	 *
+	 * @param userID id of the user
+	 * @param now the current System.nanoTime
+	 * @return whether the user holds a reservation
+	 */
+	public boolean holds(int userID, long now) {
+		int index = indexOf(userID);
+		return index >= 0 && deadlines[index] - now > 0;
+	}
+
+	/**
+	 * drops reservations that have run out and counts the rest
+	 *
+	 * @param now the current System.nanoTime
+	 * @return number of reservations still held
+	 */
+	public int active(long now) {
+		for (int i = count - 1; i >= 0; i--) {
+			if (deadlines[i] - now <= 0) {
+				removeAt(i);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * drops every reservation
+	 */
+	public void clear() {
+		count = 0;
+	}
+
+	/**
+	 * finds the reservation of a user
+	 *
+	 * @param userID id of the user
+	 * @return index of the reservation, -1 if there is none
+	 */
+	private int indexOf(int userID) {
+		for (int i = 0; i < count; i++) {
+			if (userIDs[i] == userID) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * removes a reservation by moving the last one into its place
+	 *
+	 * @param index index of the reservation
+	 */
+	private void removeAt(int index) {
+		count--;
+		userIDs[index] = userIDs[count];
+		deadlines[index] = deadlines[count];
+	}
+
+}
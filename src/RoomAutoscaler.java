@@ -0,0 +1,480 @@
+import java.util.List;
+
+/**
+ * This class opens and closes the chat rooms of a server as load changes, it extends runnable.
+ * It samples the occupancy and rejections of the rooms other than the main room, opening (or
+ * adding) a room when the open rooms are busy and closing the emptiest room, moving its users
+ * to the other rooms, when they are quiet. A change is only made once the load has stayed past
+ * a target for several samples in a row and the cooldown since the last change has passed.
+ */
+public class RoomAutoscaler implements Runnable {
+
+	/**
+	 * server whose rooms are scaled
+	 */
+	private ChatServer server;
+	/**
+	 * time between samples in milliseconds
+	 */
+	private long sampleMillis = 500;
+	/**
+	 * share of the open rooms' capacity in use above which a room is opened
+	 */
+	private double highOccupancy = 0.75;
+	/**
+	 * share of the open rooms' capacity in use below which a room is closed
+	 */
+	private double lowOccupancy = 0.25;
+	/**
+	 * rejections per sample above which a room is opened regardless of occupancy
+	 */
+	private long rejectionThreshold = 5;
+	/**
+	 * samples in a row the load must stay past a target before acting
+	 */
+	private int stableSamples = 3;
+	/**
+	 * least time between two changes in milliseconds
+	 */
+	private long cooldownMillis = 2000;
+	/**
+	 * fewest open rooms kept besides the main room
+	 */
+	private int minOpenRooms = 1;
+	/**
+	 * most rooms the server may have, including the main room
+	 */
+	private int maxRooms = 16;
+	/**
+	 * whether the autoscaler keeps sampling
+	 */
+	private volatile boolean isRunning;
+	/**
+	 * rejections counted over the rooms other than the main room at the last sample
+	 */
+	private long lastRejections;
+	/**
+	 * samples in a row the rooms have been busy
+	 */
+	private int busySamples;
+	/**
+	 * samples in a row the rooms have been quiet
+	 */
+	private int quietSamples;
+	/**
+	 * when the last change was made, from System.nanoTime
+	 */
+	private long lastChange;
+	/**
+	 * number of rooms opened or added
+	 */
+	private int scaledUp;
+	/**
+	 * number of rooms closed
+	 */
+	private int scaledDown;
+
+	/**
+	 * creates an autoscaler for the server
+	 *
+	 * @param server server whose rooms are scaled
+	 */
+	public RoomAutoscaler(ChatServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * samples the rooms until stopped or the server closes
+	 */
+	@Override
+	public void run() {
+		isRunning = true;
+		lastRejections = countRejections(server.getChatRooms());
+		lastChange = System.nanoTime();
+
+		try {
+			while (isRunning && server.isOpen() && !server.isDraining()) {
+				sample();
+				Thread.sleep(sampleMillis);
+			}
+		} catch (InterruptedException e) {
+			ChatLog.println("Interrupted Autoscaler Thread");
+		}
+		isRunning = false;
+	}
+
+	/**
+	 * takes one sample of the rooms and opens or closes a room if the load
+	 * has been past a target for long enough
+	 */
+	public void sample() {
+		List<ChatRoom> rooms = server.getChatRooms();
+
+		int openRooms = 0;
+		long occupied = 0;
+		long capacity = 0;
+		for (int i = 1; i < rooms.size(); i++) {
+			ChatRoom room = rooms.get(i);
+			if (room.isOpen()) {
+				openRooms++;
+				occupied += room.getOccupancy();
+				capacity += Math.max(room.getCapacity() - 1, 1);
+			}
+		}
+
+		long rejections = countRejections(rooms);
+		long newRejections = rejections - lastRejections;
+		lastRejections = rejections;
+
+		double occupancy = capacity == 0 ? 1 : (double) occupied / capacity;
+		boolean busy = occupancy >= highOccupancy || newRejections > rejectionThreshold;
+		boolean quiet = occupancy <= lowOccupancy && newRejections == 0 && openRooms > minOpenRooms;
+
+		busySamples = busy ? busySamples + 1 : 0;
+		quietSamples = quiet ? quietSamples + 1 : 0;
+
+		long now = System.nanoTime();
+		if ((now - lastChange) / 1_000_000L < cooldownMillis) {
+			return;
+		}
+
+		if (busySamples >= stableSamples && scaleUp(rooms)) {
+			busySamples = 0;
+			lastChange = now;
+		} else if (quietSamples >= stableSamples && scaleDown(rooms)) {
+			quietSamples = 0;
+			lastChange = now;
+		}
+	}
+
+	/**
+	 * opens a closed room, or adds a new room if all are open
+	 *
+	 * @param rooms rooms of the server
+	 * @return whether a room was opened
+	 */
+	private boolean scaleUp(List<ChatRoom> rooms) {
+		for (int i = 1; i < rooms.size(); i++) {
+			ChatRoom room = rooms.get(i);
+			if (!room.isOpen()) {
+				room.open();
+				scaledUp++;
+				ChatLog.println("Autoscaler opened Chat Room " + room.getRoomID() + ".");
+				return true;
+			}
+		}
+
+		if (rooms.size() < maxRooms) {
+			ChatRoom room = server.addChatRoom();
+			room.open();
+			scaledUp++;
+			ChatLog.println("Autoscaler opened Chat Room " + room.getRoomID() + ".");
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * closes the emptiest open room once its users are moved to the other open rooms. each user is
+	 * given a place in another room before leaving, and the room is only closed if all of them
+	 * were moved, otherwise it stays open with whoever could not be moved.
+	 *
+	 * @param rooms rooms of the server
+	 * @return whether a room was closed
+	 */
+	private boolean scaleDown(List<ChatRoom> rooms) {
+		ChatRoom emptiest = null;
+		for (int i = 1; i < rooms.size(); i++) {
+			ChatRoom room = rooms.get(i);
+			if (room.isOpen() && (emptiest == null || room.getOccupancy() < emptiest.getOccupancy())) {
+				emptiest = room;
+			}
+		}
+		if (emptiest == null) {
+			return false;
+		}
+
+		User[] members;
+		synchronized (emptiest) {
+			members = emptiest.getUsers().toArray(new User[0]);
+		}
+		for (User user : members) {
+			move(user, emptiest, leastOccupied(rooms, emptiest));
+		}
+
+		//closed under the room monitor so nobody can enter between checking it is empty and closing
+		synchronized (emptiest) {
+			if (!emptiest.getUsers().isEmpty()) {
+				ChatLog.println("Autoscaler kept Chat Room " + emptiest.getRoomID()
+						+ " open as its users could not be moved.");
+				return false;
+			}
+			emptiest.close();
+		}
+		scaledDown++;
+		ChatLog.println("Autoscaler closed Chat Room " + emptiest.getRoomID() + ".");
+
+		return true;
+	}
+
+	/**
+	 * moves a user from one room to another, a place is reserved in the target first so the user
+	 * only leaves once they have somewhere to go. a user of a lower class is never moved out of the
+	 * target to make room.
+	 *
+	 * @param user user being moved
+	 * @param source room the user is in
+	 * @param target room the user is moved to, may be null
+	 * @return whether the user was moved
+	 */
+	private boolean move(User user, ChatRoom source, ChatRoom target) {
+		if (target == null || !target.reserve(user, false)) {
+			return false;
+		}
+		if (!source.leaveRoom(user)) {
+			//the user left by themselves in the meantime
+			target.releaseReservation(user);
+			return false;
+		}
+		if (!target.commitReservation(user)) {
+			//the target closed after the place was reserved, put the user back where they were
+			if (!source.enterRoom(user, false)) {
+				user.setJoinedRandomRoom(false);
+			}
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * finds the open room other than the main room with the fewest users
+	 *
+	 * @param rooms rooms of the server
+	 * @param excluded room that cannot be picked
+	 * @return the least occupied room, null if there is none
+	 */
+	private ChatRoom leastOccupied(List<ChatRoom> rooms, ChatRoom excluded) {
+		ChatRoom least = null;
+		for (int i = 1; i < rooms.size(); i++) {
+			ChatRoom room = rooms.get(i);
+			if (room != excluded && room.isOpen()
+					&& (least == null || room.getOccupancy() < least.getOccupancy())) {
+				least = room;
+			}
+		}
+		return least;
+	}
+
+	/**
+	 * adds up the rejections of every room other than the main room
+	 *
+	 * @param rooms rooms of the server
+	 * @return total rejections
+	 */
+	private long countRejections(List<ChatRoom> rooms) {
+		long rejections = 0;
+		for (int i = 1; i < rooms.size(); i++) {
+			rejections += rooms.get(i).getRejectedCount();
+		}
+		return rejections;
+	}
+
+	/**
+	 * stops the autoscaler after its current sample
+	 */
+	public void stop() {
+		isRunning = false;
+	}
+
+	/**
+	 * gets whether the autoscaler is running
+	 *
+	 * @return whether the autoscaler is running
+	 */
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	/**
+	 * gets the number of rooms opened or added
+	 *
+	 * @return number of rooms opened
+	 */
+	public int getScaledUp() {
+		return scaledUp;
+	}
+
+	/**
+	 * gets the number of rooms closed
+	 *
+	 * @return number of rooms closed
+	 */
+	public int getScaledDown() {
+		return scaledDown;
+	}
+
+	/**
+	 * sets the server whose rooms are scaled
+	 *
+	 * @param server server whose rooms are scaled
+	 */
+	public void setServer(ChatServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * gets the server whose rooms are scaled
+	 *
+	 * @return server whose rooms are scaled
+	 */
+	public ChatServer getServer() {
+		return server;
+	}
+
+	/**
+	 * sets the time between samples
+	 *
+	 * @param sampleMillis time between samples in milliseconds
+	 */
+	public void setSampleMillis(long sampleMillis) {
+		this.sampleMillis = sampleMillis;
+	}
+
+	/**
+	 * gets the time between samples
+	 *
+	 * @return time between samples in milliseconds
+	 */
+	public long getSampleMillis() {
+		return sampleMillis;
+	}
+
+	/**
+	 * sets the occupancy above which a room is opened
+	 *
+	 * @param highOccupancy share of capacity in use, between 0 and 1
+	 */
+	public void setHighOccupancy(double highOccupancy) {
+		this.highOccupancy = highOccupancy;
+	}
+
+	/**
+	 * gets the occupancy above which a room is opened
+	 *
+	 * @return share of capacity in use, between 0 and 1
+	 */
+	public double getHighOccupancy() {
+		return highOccupancy;
+	}
+
+	/**
+	 * sets the occupancy below which a room is closed
+	 *
+	 * @param lowOccupancy share of capacity in use, between 0 and 1
+	 */
+	public void setLowOccupancy(double lowOccupancy) {
+		this.lowOccupancy = lowOccupancy;
+	}
+
+	/**
+	 * gets the occupancy below which a room is closed
+	 *
+	 * @return share of capacity in use, between 0 and 1
+	 */
+	public double getLowOccupancy() {
+		return lowOccupancy;
+	}
+
+	/**
+	 * sets the rejections per sample above which a room is opened
+	 *
+	 * @param rejectionThreshold rejections per sample
+	 */
+	public void setRejectionThreshold(long rejectionThreshold) {
+		this.rejectionThreshold = rejectionThreshold;
+	}
+
+	/**
+	 * gets the rejections per sample above which a room is opened
+	 *
+	 * @return rejections per sample
+	 */
+	public long getRejectionThreshold() {
+		return rejectionThreshold;
+	}
+
+	/**
+	 * sets the samples in a row the load must stay past a target before acting
+	 *
+	 * @param stableSamples number of samples
+	 */
+	public void setStableSamples(int stableSamples) {
+		this.stableSamples = stableSamples;
+	}
+
+	/**
+	 * gets the samples in a row the load must stay past a target before acting
+	 *
+	 * @return number of samples
+	 */
+	public int getStableSamples() {
+		return stableSamples;
+	}
+
+	/**
+	 * sets the least time between two changes
+	 *
+	 * @param cooldownMillis cooldown in milliseconds
+	 */
+	public void setCooldownMillis(long cooldownMillis) {
+		this.cooldownMillis = cooldownMillis;
+	}
+
+	/**
+	 * gets the least time between two changes
+	 *
+	 * @return cooldown in milliseconds
+	 */
+	public long getCooldownMillis() {
+		return cooldownMillis;
+	}
+
+	/**
+	 * sets the fewest open rooms kept besides the main room
+	 *
+	 * @param minOpenRooms fewest open rooms
+	 */
+	public void setMinOpenRooms(int minOpenRooms) {
+		this.minOpenRooms = minOpenRooms;
+	}
+
+	/**
+	 * gets the fewest open rooms kept besides the main room
+	 *
+	 * @return fewest open rooms
+	 */
+	public int getMinOpenRooms() {
+		return minOpenRooms;
+	}
+
+	/**
+	 * sets the most rooms the server may have
+	 *
+	 * @param maxRooms most rooms, including the main room
+	 */
+	public void setMaxRooms(int maxRooms) {
+		this.maxRooms = maxRooms;
+	}
+
+	/**
+	 * gets the most rooms the server may have
+	 *
+	 * @return most rooms, including the main room
+	 */
+	public int getMaxRooms() {
+		return maxRooms;
+	}
+
+}
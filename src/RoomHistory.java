@@ -0,0 +1,689 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the messages posted to a room and indexes the words in them as they arrive.
+ * The newest messages are indexed in an open segment of posting lists, when it holds enough
+ * messages it is sealed into a compressed search segment. Sealed segments are merged in the
+ * background into larger ones so a search only looks at a few of them, newest first, and stops
+ * as soon as it has enough results. Only the newest messages up to the retention are kept,
+ * segments holding nothing newer are dropped, so memory stays bounded however long the room runs.
+ */
+public class RoomHistory {
+
+	/**
+	 * thread merging the segments of every room
+	 */
+	private static final ExecutorService MERGER = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "history-merge");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/**
+	 * longest word indexed, longer words are left out
+	 */
+	private static final int MAX_TERM_LENGTH = 32;
+
+	/**
+	 * id of the room the history belongs to
+	 */
+	private final int roomID;
+	/**
+	 * most messages kept
+	 */
+	private int retention = 1_000_000;
+	/**
+	 * messages indexed in the open segment before it is sealed
+	 */
+	private int segmentSize = 1 << 16;
+	/**
+	 * number of segments next to each other merged at once
+	 */
+	private int mergeFactor = 4;
+	/**
+	 * most messages a merged segment may cover
+	 */
+	private int maxSegmentMessages = 1 << 20;
+	/**
+	 * messages kept, the message with a sequence number is at the sequence modulo the length
+	 */
+	private ChatMessage[] messages;
+	/**
+	 * sequence number of the next message posted
+	 */
+	private long nextSequence;
+	/**
+	 * sequence number of the oldest message kept, raising the retention does not bring
+	 * back messages already dropped
+	 */
+	private long oldestSequence;
+	/**
+	 * timestamp of the last message posted
+	 */
+	private long lastTimestamp;
+	/**
+	 * posting lists of the open segment
+	 */
+	private Map<String, PostingList> open;
+	/**
+	 * first sequence number in the open segment
+	 */
+	private long openFirstSequence;
+	/**
+	 * sealed segments, oldest first, replaced rather than changed so searches read them without locking
+	 */
+	private volatile List<SearchSegment> segments;
+	/**
+	 * whether a merge is waiting to run or running
+	 */
+	private boolean isMergeScheduled;
+	/**
+	 * number of merges done
+	 */
+	private final AtomicLong merges;
+
+	/**
+	 * creates an empty history
+	 *
+	 * @param roomID id of the room the history belongs to
+	 */
+	public RoomHistory(int roomID) {
+		this.roomID = roomID;
+		this.messages = new ChatMessage[0];
+		this.open = new HashMap<>();
+		this.segments = Collections.emptyList();
+		this.merges = new AtomicLong();
+	}
+
+	/**
+	 * adds a message posted now to the history and indexes it
+	 *
+	 * @param userID id of the user who posted the message
+	 * @param text text of the message
+	 * @return the message
+	 */
+	public ChatMessage append(int userID, String text) {
+		return append(userID, text, System.currentTimeMillis());
+	}
+
+	/**
+	 * adds a message to the history and indexes it
+	 *
+	 * @param userID id of the user who posted the message
+	 * @param text text of the message
+	 * @param timestamp when the message was posted, an earlier time than the last message is
+	 *                  moved up to it
+	 * @return the message
+	 */
+	public synchronized ChatMessage append(int userID, String text, long timestamp) {
+		//timestamps never go backwards, so a time range is a range of sequence numbers
+		lastTimestamp = Math.max(timestamp, lastTimestamp);
+		long sequence = nextSequence;
+		ChatMessage message = new ChatMessage(sequence, roomID, userID, text, lastTimestamp);
+
+		if (sequence - oldestSequence >= retention) {
+			oldestSequence = sequence + 1 - retention;
+		}
+		//the ring may hold fewer messages than the retention, which can have been raised since
+		while (sequence - oldestSequence >= messages.length) {
+			grow();
+		}
+		messages[(int) (sequence & (messages.length - 1))] = message;
+		nextSequence++;
+
+		for (String term : tokenize(text)) {
+			PostingList postings = open.get(term);
+			if (postings == null) {
+				postings = new PostingList();
+				open.put(term, postings);
+			}
+			postings.add(sequence);
+		}
+
+		if (nextSequence - openFirstSequence >= segmentSize) {
+			seal();
+		}
+		return message;
+	}
+
+	/**
+	 * doubles the space for messages, keeping every message at its sequence modulo the new length.
+	 * the caller must hold the history monitor
+	 */
+	private void grow() {
+		int length = Math.max(1024, messages.length * 2);
+		ChatMessage[] grown = new ChatMessage[length];
+		for (long sequence = getOldestSequenceLocked(); sequence < nextSequence; sequence++) {
+			grown[(int) (sequence & (length - 1))] = messages[(int) (sequence & (messages.length - 1))];
+		}
+		messages = grown;
+	}
+
+	/**
+	 * seals the open segment into a search segment and drops segments holding only messages no
+	 * longer kept. the caller must hold the history monitor
+	 */
+	private void seal() {
+		Map<String, long[]> sequences = new HashMap<>(open.size() * 2);
+		for (Map.Entry<String, PostingList> entry : open.entrySet()) {
+			sequences.put(entry.getKey(), entry.getValue().toArray());
+		}
+		SearchSegment sealed = new SearchSegment(sequences, openFirstSequence, nextSequence - 1);
+
+		long oldest = getOldestSequenceLocked();
+		List<SearchSegment> updated = new ArrayList<>(segments.size() + 1);
+		for (SearchSegment segment : segments) {
+			if (segment.getLastSequence() >= oldest) {
+				updated.add(segment);
+			}
+		}
+		updated.add(sealed);
+		segments = updated;
+
+		open = new HashMap<>();
+		openFirstSequence = nextSequence;
+		scheduleMerge();
+	}
+
+	/**
+	 * schedules a merge if there are segments worth merging and none is scheduled.
+	 * the caller must hold the history monitor
+	 */
+	private void scheduleMerge() {
+		if (!isMergeScheduled && findMergeRun(segments) >= 0) {
+			isMergeScheduled = true;
+			MERGER.execute(this::merge);
+		}
+	}
+
+	/**
+	 * finds the segments next to each other, merge factor of them, covering the fewest messages
+	 * while still fitting in one merged segment. merging the smallest run first keeps segments
+	 * of a similar size together, so each message is only merged a few times
+	 *
+	 * @param current segments, oldest first
+	 * @return index of the first segment of the run, -1 if there is none
+	 */
+	private int findMergeRun(List<SearchSegment> current) {
+		int best = -1;
+		long bestMessages = Long.MAX_VALUE;
+		for (int start = 0; start + mergeFactor <= current.size(); start++) {
+			long covered = 0;
+			for (int i = start; i < start + mergeFactor; i++) {
+				covered += current.get(i).getMessageCount();
+			}
+			if (covered <= maxSegmentMessages && covered < bestMessages) {
+				best = start;
+				bestMessages = covered;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * merges one run of segments, run on the merge thread. the merge itself is done without
+	 * holding the history monitor, so posting and searching carry on meanwhile
+	 */
+	private void merge() {
+		List<SearchSegment> run;
+		long oldest;
+		synchronized (this) {
+			int start = findMergeRun(segments);
+			if (start < 0) {
+				isMergeScheduled = false;
+				return;
+			}
+			run = new ArrayList<>(segments.subList(start, start + mergeFactor));
+			oldest = getOldestSequenceLocked();
+		}
+
+		SearchSegment merged = null;
+		try {
+			merged = SearchSegment.merge(run, oldest);
+		} finally {
+			synchronized (this) {
+				//the run may have been dropped by the retention while it was being merged
+				List<SearchSegment> current = segments;
+				int start = current.indexOf(run.get(0));
+				if (merged != null && start >= 0 && start + run.size() <= current.size()
+						&& current.subList(start, start + run.size()).equals(run)) {
+					List<SearchSegment> updated = new ArrayList<>(current.subList(0, start));
+					updated.add(merged);
+					updated.addAll(current.subList(start + run.size(), current.size()));
+					segments = updated;
+					merges.incrementAndGet();
+				}
+
+				isMergeScheduled = false;
+				scheduleMerge();
+			}
+		}
+	}
+
+	/**
+	 * finds the messages posted within a time containing every word of a query, newest first
+	 *
+	 * @param query words searched for, case and punctuation are ignored
+	 * @param fromMillis earliest time a message may have been posted
+	 * @param toMillis latest time a message may have been posted
+	 * @param limit most messages returned
+	 * @return the messages found, newest first
+	 */
+	public List<ChatMessage> search(String query, long fromMillis, long toMillis, int limit) {
+		List<String> terms = tokenize(query);
+		List<ChatMessage> results = new ArrayList<>();
+		if (terms.isEmpty() || limit <= 0) {
+			return results;
+		}
+
+		long[] found = new long[limit];
+		int count;
+		long from;
+		long to;
+		List<SearchSegment> sealed;
+		synchronized (this) {
+			from = firstSequenceAt(fromMillis);
+			to = lastSequenceAt(toMillis);
+			if (from > to) {
+				return results;
+			}
+			count = searchOpen(terms, from, to, found);
+			sealed = segments;
+		}
+
+		//the rest is read from sealed segments without holding the monitor
+		for (int i = sealed.size() - 1; i >= 0 && count < limit; i--) {
+			SearchSegment segment = sealed.get(i);
+			if (segment.getLastSequence() < from || segment.getFirstSequence() > to) {
+				continue;
+			}
+			long[] matches = searchSegment(segment, terms, from, to);
+			for (int j = matches.length - 1; j >= 0 && count < limit; j--) {
+				found[count++] = matches[j];
+			}
+		}
+
+		synchronized (this) {
+			for (int i = 0; i < count; i++) {
+				ChatMessage message = getLocked(found[i]);
+				if (message != null) {
+					results.add(message);
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * finds the messages of the open segment containing every term, newest first.
+	 * the caller must hold the history monitor
+	 *
+	 * @param terms terms searched for
+	 * @param from lowest sequence number wanted
+	 * @param to highest sequence number wanted
+	 * @param found array the sequence numbers found are written to
+	 * @return number of messages found
+	 */
+	private int searchOpen(List<String> terms, long from, long to, long[] found) {
+		PostingList smallest = null;
+		PostingList[] lists = new PostingList[terms.size()];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = open.get(terms.get(i));
+			if (lists[i] == null) {
+				return 0;
+			}
+			if (smallest == null || lists[i].size < smallest.size) {
+				smallest = lists[i];
+			}
+		}
+
+		int count = 0;
+		for (int i = smallest.size - 1; i >= 0 && count < found.length; i--) {
+			long sequence = smallest.values[i];
+			if (sequence > to) {
+				continue;
+			}
+			if (sequence < from) {
+				break;
+			}
+
+			boolean inAll = true;
+			for (PostingList list : lists) {
+				inAll &= list == smallest || list.contains(sequence);
+			}
+			if (inAll) {
+				found[count++] = sequence;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * finds the messages of a sealed segment containing every term, rarest term first
+	 *
+	 * @param segment segment searched
+	 * @param terms terms searched for
+	 * @param from lowest sequence number wanted
+	 * @param to highest sequence number wanted
+	 * @return sorted sequence numbers found
+	 */
+	private static long[] searchSegment(SearchSegment segment, List<String> terms, long from, long to) {
+		List<String> ordered = new ArrayList<>(terms);
+		for (String term : ordered) {
+			if (segment.getCount(term) == 0) {
+				return new long[0];
+			}
+		}
+		ordered.sort((a, b) -> Integer.compare(segment.getCount(a), segment.getCount(b)));
+
+		long[] matches = segment.find(ordered.get(0), from, to);
+		for (int i = 1; i < ordered.size() && matches.length > 0; i++) {
+			matches = intersect(matches, segment.find(ordered.get(i), matches[0], matches[matches.length - 1]));
+		}
+		return matches;
+	}
+
+	/**
+	 * keeps the values found in both sorted arrays
+	 *
+	 * @param first sorted values
+	 * @param second sorted values
+	 * @return sorted values in both
+	 */
+	private static long[] intersect(long[] first, long[] second) {
+		long[] common = new long[Math.min(first.length, second.length)];
+		int count = 0;
+		for (int i = 0, j = 0; i < first.length && j < second.length; ) {
+			if (first[i] < second[j]) {
+				i++;
+			} else if (first[i] > second[j]) {
+				j++;
+			} else {
+				common[count++] = first[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(common, count);
+	}
+
+	/**
+	 * finds the first message kept posted at or after a time. the caller must hold the history monitor
+	 *
+	 * @param millis time in milliseconds since the epoch
+	 * @return sequence number of the message, the next sequence number if there is none
+	 */
+	private long firstSequenceAt(long millis) {
+		long low = getOldestSequenceLocked();
+		long high = nextSequence;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (getLocked(middle).getTimestamp() < millis) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * finds the last message kept posted at or before a time. the caller must hold the history monitor
+	 *
+	 * @param millis time in milliseconds since the epoch
+	 * @return sequence number of the message, one before the oldest kept if there is none
+	 */
+	private long lastSequenceAt(long millis) {
+		long low = getOldestSequenceLocked();
+		long high = nextSequence;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (getLocked(middle).getTimestamp() <= millis) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low - 1;
+	}
+
+	/**
+	 * splits text into the words indexed, in lower case and each only once
+	 *
+	 * @param text text being split
+	 * @return the words, in the order they first appear
+	 */
+	public static List<String> tokenize(String text) {
+		List<String> terms = new ArrayList<>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean isWordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (isWordChar && start < 0) {
+				start = i;
+			} else if (!isWordChar && start >= 0) {
+				if (i - start <= MAX_TERM_LENGTH) {
+					String term = text.substring(start, i).toLowerCase(Locale.ROOT);
+					if (!terms.contains(term)) {
+						terms.add(term);
+					}
+				}
+				start = -1;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * gets a message kept in the history
+	 *
+	 * @param sequence sequence number of the message
+	 * @return the message, null if it is no longer kept or not posted yet
+	 */
+	public synchronized ChatMessage get(long sequence) {
+		return getLocked(sequence);
+	}
+
+	/**
+	 * gets a message kept in the history, the caller must hold the history monitor
+	 *
+	 * @param sequence sequence number of the message
+	 * @return the message, null if it is no longer kept or not posted yet
+	 */
+	private ChatMessage getLocked(long sequence) {
+		if (sequence < getOldestSequenceLocked() || sequence >= nextSequence) {
+			return null;
+		}
+		return messages[(int) (sequence & (messages.length - 1))];
+	}
+
+	/**
+	 * gets the sequence number of the oldest message kept, the caller must hold the history monitor
+	 *
+	 * @return sequence number of the oldest message
+	 */
+	private long getOldestSequenceLocked() {
+		return oldestSequence;
+	}
+
+	/**
+	 * gets the sequence number of the oldest message kept
+	 *
+	 * @return sequence number of the oldest message
+	 */
+	public synchronized long getOldestSequence() {
+		return getOldestSequenceLocked();
+	}
+
+	/**
+	 * gets the number of messages ever posted
+	 *
+	 * @return number of messages
+	 */
+	public synchronized long getMessageCount() {
+		return nextSequence;
+	}
+
+	/**
+	 * gets the sealed segments, oldest first
+	 *
+	 * @return search segments
+	 */
+	public List<SearchSegment> getSegments() {
+		return Collections.unmodifiableList(segments);
+	}
+
+	/**
+	 * gets the bytes taken by the postings of the sealed segments
+	 *
+	 * @return size in bytes
+	 */
+	public long getIndexBytes() {
+		long bytes = 0;
+		for (SearchSegment segment : segments) {
+			bytes += segment.getByteSize();
+		}
+		return bytes;
+	}
+
+	/**
+	 * gets the number of merges done
+	 *
+	 * @return number of merges
+	 */
+	public long getMergeCount() {
+		return merges.get();
+	}
+
+	/**
+	 * sets the most messages kept, lowering it drops the oldest messages at once and raising it
+	 * keeps more of the messages posted from now on
+	 *
+	 * @param retention most messages kept
+	 */
+	public synchronized void setRetention(int retention) {
+		this.retention = Math.max(1, retention);
+		for (; oldestSequence < nextSequence - this.retention; oldestSequence++) {
+			messages[(int) (oldestSequence & (messages.length - 1))] = null;
+		}
+	}
+
+	/**
+	 * gets the most messages kept
+	 *
+	 * @return most messages kept
+	 */
+	public synchronized int getRetention() {
+		return retention;
+	}
+
+	/**
+	 * sets the messages indexed in the open segment before it is sealed
+	 *
+	 * @param segmentSize messages per segment
+	 */
+	public synchronized void setSegmentSize(int segmentSize) {
+		this.segmentSize = Math.max(1, segmentSize);
+	}
+
+	/**
+	 * gets the messages indexed in the open segment before it is sealed
+	 *
+	 * @return messages per segment
+	 */
+	public synchronized int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * sets the number of segments merged at once
+	 *
+	 * @param mergeFactor segments per merge, at least 2
+	 */
+	public synchronized void setMergeFactor(int mergeFactor) {
+		this.mergeFactor = Math.max(2, mergeFactor);
+	}
+
+	/**
+	 * gets the number of segments merged at once
+	 *
+	 * @return segments per merge
+	 */
+	public synchronized int getMergeFactor() {
+		return mergeFactor;
+	}
+
+	/**
+	 * sets the most messages a merged segment may cover
+	 *
+	 * @param maxSegmentMessages most messages per merged segment
+	 */
+	public synchronized void setMaxSegmentMessages(int maxSegmentMessages) {
+		this.maxSegmentMessages = maxSegmentMessages;
+	}
+
+	/**
+	 * gets the most messages a merged segment may cover
+	 *
+	 * @return most messages per merged segment
+	 */
+	public synchronized int getMaxSegmentMessages() {
+		return maxSegmentMessages;
+	}
+
+	/**
+	 * This class is a growing sorted list of the sequence numbers of the messages
+	 * containing a term in the open segment.
+	 */
+	private static class PostingList {
+
+		/**
+		 * sequence numbers, sorted
+		 */
+		private long[] values = new long[4];
+		/**
+		 * number of sequence numbers
+		 */
+		private int size;
+
+		/**
+		 * adds a sequence number larger than any added before
+		 *
+		 * @param sequence sequence number of the message
+		 */
+		void add(long sequence) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = sequence;
+		}
+
+		/**
+		 * checks whether a sequence number was added
+		 *
+		 * @param sequence sequence number of the message
+		 * @return whether it was added
+		 */
+		boolean contains(long sequence) {
+			return Arrays.binarySearch(values, 0, size, sequence) >= 0;
+		}
+
+		/**
+		 * copies the sequence numbers
+		 *
+		 * @return sorted sequence numbers
+		 */
+		long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+
+	}
+
+}
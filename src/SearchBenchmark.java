@@ -0,0 +1,337 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * This class checks room search and measures it over millions of messages. Random messages with
+ * a skewed choice of words are posted, then random queries must return exactly what scanning every
+ * kept message finds, newest first, including across merges and once old messages are dropped.
+ * Then a large history is built and the time to post, the index size and query latency printed.
+ */
+public class SearchBenchmark {
+
+	/**
+	 * how far apart the benchmark's messages are posted in milliseconds
+	 */
+	private static final long GAP_MILLIS = 40;
+	/**
+	 * one hour in milliseconds
+	 */
+	private static final long HOUR = 60 * 60 * 1000L;
+
+	/**
+	 * runs the checks then the benchmark
+	 *
+	 * @param args CLI arguments, optionally the number of messages in the benchmark
+	 * @throws InterruptedException if interrupted while waiting for merges
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		Random random = new Random(42);
+
+		checkAgainstScan(random);
+		checkRetentionChange();
+		checkRoom();
+		System.out.println("Search matches a full scan and follows retention changes, mutes are enforced.");
+
+		benchmark(random, messages);
+	}
+
+	/**
+	 * posts random messages to a small history with a short retention, then checks random
+	 * queries against a scan of every kept message
+	 *
+	 * @param random source of randomness
+	 * @throws InterruptedException if interrupted while waiting for merges
+	 */
+	private static void checkAgainstScan(Random random) throws InterruptedException {
+		RoomHistory history = new RoomHistory(1);
+		history.setRetention(30_000);
+		history.setSegmentSize(1000);
+		String[] words = words(500);
+
+		long start = 1_000_000L;
+		for (int i = 0; i < 100_000; i++) {
+			history.append(i % 50, sentence(random, words), start + i * GAP_MILLIS);
+		}
+		awaitMerges(history);
+		if (history.getMergeCount() == 0 || history.getSegments().size() > 40) {
+			fail("segments were not merged, " + history.getSegments().size() + " left");
+		}
+
+		long end = start + 100_000 * GAP_MILLIS;
+		for (int q = 0; q < 1000; q++) {
+			String query = words[skewed(random, words.length)]
+					+ (random.nextBoolean() ? " " + words[skewed(random, words.length)].toUpperCase() : "");
+			long from = start + (long) (random.nextDouble() * (end - start));
+			long to = from + (long) (random.nextDouble() * (end - from));
+			int limit = 1 + random.nextInt(40);
+
+			List<ChatMessage> found = history.search(query, from, to, limit);
+			List<ChatMessage> expected = scan(history, query, from, to, limit);
+			if (!sequences(found).equals(sequences(expected))) {
+				fail("query '" + query + "' found " + sequences(found) + " but a scan found " + sequences(expected));
+			}
+		}
+		if (!history.search("!!", start, end, 10).isEmpty()) {
+			fail("a query without words found messages");
+		}
+	}
+
+	/**
+	 * checks changing the retention once the kept messages have wrapped around, raising it keeps more
+	 * of the new messages without bringing back dropped ones and lowering it drops the oldest at once
+	 */
+	private static void checkRetentionChange() {
+		RoomHistory history = new RoomHistory(1);
+		history.setRetention(1000);
+		for (int i = 0; i < 3000; i++) {
+			history.append(1, "m" + i, i);
+		}
+		history.setRetention(5000);
+		for (int i = 3000; i < 3100; i++) {
+			history.append(1, "m" + i, i);
+		}
+		expectKept(history, 2000, 3100);
+		if (!history.search("m100", 0, Long.MAX_VALUE, 10).isEmpty()) {
+			fail("a dropped message was found after raising the retention");
+		}
+
+		for (int i = 3100; i < 8000; i++) {
+			history.append(1, "m" + i, i);
+		}
+		expectKept(history, 3000, 8000);
+		history.setRetention(500);
+		expectKept(history, 7500, 8000);
+		history.append(1, "m8000", 8000);
+		expectKept(history, 7501, 8001);
+		if (history.search("m7400", 0, Long.MAX_VALUE, 10).size() != 0
+				|| history.search("m7600", 0, Long.MAX_VALUE, 10).size() != 1) {
+			fail("search did not follow a lowered retention");
+		}
+	}
+
+	/**
+	 * checks exactly the messages in a range of sequence numbers are kept, each where it belongs
+	 *
+	 * @param history history checked
+	 * @param oldest sequence number of the oldest message that should be kept
+	 * @param next sequence number of the next message
+	 */
+	private static void expectKept(RoomHistory history, long oldest, long next) {
+		if (history.getOldestSequence() != oldest || history.getMessageCount() != next
+				|| history.get(oldest - 1) != null) {
+			fail("expected messages " + oldest + " to " + (next - 1) + " but the oldest kept is "
+					+ history.getOldestSequence());
+		}
+		for (long s = oldest; s < next; s++) {
+			ChatMessage message = history.get(s);
+			if (message == null || message.getSequence() != s || !message.getText().equals("m" + s)) {
+				fail("message " + s + " was " + message);
+			}
+		}
+	}
+
+	/**
+	 * checks posting through a room, only members who are not muted may post
+	 */
+	private static void checkRoom() {
+		ChatLog.setEnabled(false);
+		ChatServer server = new ChatServer(10, 2, 2, new Admin("Search"));
+		for (ChatRoom room : server.getChatRooms()) {
+			room.open();
+		}
+		User user = new User(1, server);
+		User outsider = new User(2, server);
+		server.join(user);
+		server.joinMainChatRoom(user);
+
+		if (!server.postMessage(user, 0, "Anyone up for chess?") || server.postMessage(outsider, 0, "chess")) {
+			fail("only members may post");
+		}
+		server.getMainRoom().mute(1, 0);
+		if (server.postMessage(user, 0, "chess now!")) {
+			fail("a muted user posted");
+		}
+		List<ChatMessage> found = server.searchRoom(0, "CHESS", HOUR, 10);
+		if (found.size() != 1 || found.get(0).getUserID() != 1) {
+			fail("the posted message was not found");
+		}
+		ChatLog.setEnabled(true);
+	}
+
+	/**
+	 * builds a large history then times queries over it
+	 *
+	 * @param random source of randomness
+	 * @param messages number of messages posted
+	 * @throws InterruptedException if interrupted while waiting for merges
+	 */
+	private static void benchmark(Random random, int messages) throws InterruptedException {
+		RoomHistory history = new RoomHistory(1);
+		history.setRetention(messages);
+		String[] words = words(20_000);
+		long start = System.currentTimeMillis() - messages * GAP_MILLIS;
+
+		long posting = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			history.append(i % 1000, sentence(random, words), start + i * GAP_MILLIS);
+		}
+		double postSeconds = (System.nanoTime() - posting) / 1e9;
+		awaitMerges(history);
+
+		System.out.printf("%d messages posted at %.0f per second, %d segments after %d merges%n", messages,
+				messages / postSeconds, history.getSegments().size(), history.getMergeCount());
+		System.out.printf("index postings take %.2f bytes per message%n",
+				(double) history.getIndexBytes() / messages);
+
+		long end = start + messages * GAP_MILLIS;
+		System.out.printf("%-34s %10s %10s %10s %8s%n", "query", "p50 us", "p99 us", "max us", "found");
+		time(history, "common word, last hour", () -> words[0], end - HOUR, end, 50, random);
+		time(history, "rare word, last hour", () -> words[1000 + random.nextInt(19_000)], end - HOUR, end, 50,
+				random);
+		time(history, "rare word, everything", () -> words[1000 + random.nextInt(19_000)], start, end, 50,
+				random);
+		time(history, "two common words, everything", () -> words[random.nextInt(20)] + " "
+				+ words[random.nextInt(20)], start, end, 50, random);
+		time(history, "common and rare word, everything", () -> words[random.nextInt(20)] + " "
+				+ words[1000 + random.nextInt(19_000)], start, end, 50, random);
+	}
+
+	/**
+	 * runs a kind of query many times and prints its latency
+	 *
+	 * @param history history searched
+	 * @param name name of the kind of query
+	 * @param query makes each query
+	 * @param from earliest time searched
+	 * @param to latest time searched
+	 * @param limit most messages returned
+	 * @param random source of randomness
+	 */
+	private static void time(RoomHistory history, String name, Supplier<String> query,
+			long from, long to, int limit, Random random) {
+		//warm up before measuring
+		for (int i = 0; i < 200; i++) {
+			history.search(query.get(), from, to, limit);
+		}
+
+		long[] nanos = new long[1000];
+		long found = 0;
+		for (int i = 0; i < nanos.length; i++) {
+			String text = query.get();
+			long started = System.nanoTime();
+			found += history.search(text, from, to, limit).size();
+			nanos[i] = System.nanoTime() - started;
+		}
+		Arrays.sort(nanos);
+		System.out.printf("%-34s %10.1f %10.1f %10.1f %8.1f%n", name, nanos[nanos.length / 2] / 1e3,
+				nanos[nanos.length * 99 / 100] / 1e3, nanos[nanos.length - 1] / 1e3, (double) found / nanos.length);
+	}
+
+	/**
+	 * finds the messages a query should return by looking at every kept message
+	 *
+	 * @param history history searched
+	 * @param query words searched for
+	 * @param from earliest time searched
+	 * @param to latest time searched
+	 * @param limit most messages returned
+	 * @return the messages, newest first
+	 */
+	private static List<ChatMessage> scan(RoomHistory history, String query, long from, long to, int limit) {
+		List<String> terms = RoomHistory.tokenize(query);
+		List<ChatMessage> found = new ArrayList<>();
+		for (long s = history.getMessageCount() - 1; s >= history.getOldestSequence() && found.size() < limit; s--) {
+			ChatMessage message = history.get(s);
+			if (message.getTimestamp() >= from && message.getTimestamp() <= to
+					&& RoomHistory.tokenize(message.getText()).containsAll(terms)) {
+				found.add(message);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * waits until the history has stopped merging
+	 *
+	 * @param history history being merged
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void awaitMerges(RoomHistory history) throws InterruptedException {
+		long merges;
+		do {
+			merges = history.getMergeCount();
+			Thread.sleep(300);
+		} while (history.getMergeCount() != merges);
+	}
+
+	/**
+	 * makes a vocabulary of distinct words
+	 *
+	 * @param count number of words
+	 * @return the words
+	 */
+	private static String[] words(int count) {
+		String[] words = new String[count];
+		for (int i = 0; i < count; i++) {
+			words[i] = "w" + Integer.toString(i, 36);
+		}
+		return words;
+	}
+
+	/**
+	 * makes a message of a few words, the first words of the vocabulary are far more common
+	 *
+	 * @param random source of randomness
+	 * @param words vocabulary
+	 * @return text of the message
+	 */
+	private static String sentence(Random random, String[] words) {
+		StringBuilder text = new StringBuilder();
+		int length = 4 + random.nextInt(9);
+		for (int i = 0; i < length; i++) {
+			text.append(words[skewed(random, words.length)]).append(i == length - 1 ? "." : ", ");
+		}
+		return text.toString();
+	}
+
+	/**
+	 * picks an index, low indexes much more often than high ones
+	 *
+	 * @param random source of randomness
+	 * @param count number of indexes
+	 * @return the index
+	 */
+	private static int skewed(Random random, int count) {
+		double r = random.nextDouble();
+		return (int) (count * r * r * r);
+	}
+
+	/**
+	 * gets the sequence numbers of messages
+	 *
+	 * @param messages messages
+	 * @return their sequence numbers, in the same order
+	 */
+	private static List<Long> sequences(List<ChatMessage> messages) {
+		List<Long> sequences = new ArrayList<>();
+		for (ChatMessage message : messages) {
+			sequences.add(message.getSequence());
+		}
+		return sequences;
+	}
+
+	/**
+	 * stops the checks with a failure
+	 *
+	 * @param message what went wrong
+	 */
+	private static void fail(String message) {
+		System.out.println("FAILED: " + message);
+		System.exit(1);
+	}
+
+}
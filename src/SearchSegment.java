@@ -0,0 +1,199 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a sealed part of a room's search index covering a run of message sequence
+ * numbers. For every term it holds the sequence numbers of the messages containing it, sorted
+ * and stored as the varint gaps between them, which for common terms is about a byte each.
+ * A segment never changes once built, so searches read it without locking, and several
+ * segments next to each other can be merged into one.
+ */
+public class SearchSegment {
+
+	/**
+	 * sequence numbers of the messages containing each term: a varint count then the varint gaps
+	 * between them, the first gap is from the first sequence of the segment
+	 */
+	private final Map<String, byte[]> postings;
+	/**
+	 * first sequence number covered
+	 */
+	private final long firstSequence;
+	/**
+	 * last sequence number covered
+	 */
+	private final long lastSequence;
+	/**
+	 * bytes taken by the postings
+	 */
+	private final long byteSize;
+
+	/**
+	 * builds a segment from the sequence numbers of each term
+	 *
+	 * @param sequences sorted sequence numbers of the messages containing each term
+	 * @param firstSequence first sequence number covered
+	 * @param lastSequence last sequence number covered
+	 */
+	public SearchSegment(Map<String, long[]> sequences, long firstSequence, long lastSequence) {
+		this.postings = new HashMap<>(sequences.size() * 2);
+		this.firstSequence = firstSequence;
+		this.lastSequence = lastSequence;
+
+		long bytes = 0;
+		for (Map.Entry<String, long[]> entry : sequences.entrySet()) {
+			long[] values = entry.getValue();
+			if (values.length == 0) {
+				continue;
+			}
+			byte[] encoded = encode(values, firstSequence);
+			postings.put(entry.getKey(), encoded);
+			bytes += encoded.length;
+		}
+		this.byteSize = bytes;
+	}
+
+	/**
+	 * merges segments next to each other into one, dropping messages before a sequence number
+	 *
+	 * @param segments segments being merged, oldest first
+	 * @param oldestSequence sequence numbers before this are left out
+	 * @return the merged segment
+	 */
+	public static SearchSegment merge(List<SearchSegment> segments, long oldestSequence) {
+		Map<String, long[]> merged = new HashMap<>();
+		for (SearchSegment segment : segments) {
+			for (String term : segment.postings.keySet()) {
+				long[] values = segment.find(term, oldestSequence, Long.MAX_VALUE);
+				long[] existing = merged.get(term);
+				if (existing == null) {
+					merged.put(term, values);
+				} else {
+					//segments cover ranges in order, so appending keeps the sequences sorted
+					long[] joined = Arrays.copyOf(existing, existing.length + values.length);
+					System.arraycopy(values, 0, joined, existing.length, values.length);
+					merged.put(term, joined);
+				}
+			}
+		}
+
+		long first = Math.max(segments.get(0).firstSequence, oldestSequence);
+		long last = segments.get(segments.size() - 1).lastSequence;
+		return new SearchSegment(merged, first, Math.max(first, last));
+	}
+
+	/**
+	 * encodes sorted sequence numbers as their count then the varint gaps between them
+	 *
+	 * @param values sorted sequence numbers
+	 * @param base value the first gap is taken from
+	 * @return the encoded bytes
+	 */
+	private static byte[] encode(long[] values, long base) {
+		int size = WireCodec.varintSize(values.length);
+		long previous = base;
+		for (long value : values) {
+			size += WireCodec.varintSize(value - previous);
+			previous = value;
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(size);
+		WireCodec.writeVarint(out, values.length);
+		previous = base;
+		for (long value : values) {
+			WireCodec.writeVarint(out, value - previous);
+			previous = value;
+		}
+		return out.array();
+	}
+
+	/**
+	 * finds the sequence numbers of the messages containing a term within a range
+	 *
+	 * @param term term searched for
+	 * @param from lowest sequence number wanted
+	 * @param to highest sequence number wanted
+	 * @return sorted sequence numbers, empty if there are none
+	 */
+	public long[] find(String term, long from, long to) {
+		byte[] encoded = postings.get(term);
+		if (encoded == null || to < firstSequence || from > lastSequence) {
+			return new long[0];
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(encoded);
+		long[] values = new long[WireCodec.readVarint(in, encoded.length)];
+		int found = 0;
+		long value = firstSequence;
+		while (in.hasRemaining()) {
+			value += WireCodec.readVarintLong(in, encoded.length);
+			if (value > to) {
+				break;
+			}
+			if (value >= from) {
+				values[found++] = value;
+			}
+		}
+		return found == values.length ? values : Arrays.copyOf(values, found);
+	}
+
+	/**
+	 * gets the number of messages in the segment containing a term
+	 *
+	 * @param term term searched for
+	 * @return number of messages, 0 if none contain it
+	 */
+	public int getCount(String term) {
+		byte[] encoded = postings.get(term);
+		return encoded == null ? 0 : WireCodec.readVarint(ByteBuffer.wrap(encoded), encoded.length);
+	}
+
+	/**
+	 * gets the first sequence number covered
+	 *
+	 * @return first sequence number
+	 */
+	public long getFirstSequence() {
+		return firstSequence;
+	}
+
+	/**
+	 * gets the last sequence number covered
+	 *
+	 * @return last sequence number
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * gets the number of sequence numbers covered
+	 *
+	 * @return number of messages covered
+	 */
+	public long getMessageCount() {
+		return lastSequence - firstSequence + 1;
+	}
+
+	/**
+	 * gets the number of distinct terms
+	 *
+	 * @return number of terms
+	 */
+	public int getTermCount() {
+		return postings.size();
+	}
+
+	/**
+	 * gets the bytes taken by the postings, not counting the terms themselves
+	 *
+	 * @return size in bytes
+	 */
+	public long getByteSize() {
+		return byteSize;
+	}
+
+}
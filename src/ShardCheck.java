@@ -0,0 +1,172 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class checks a sharded room holds each user id at most once. A user placed outside their
+ * own full shard must still be the only one with their id, entering or reserving twice must be
+ * refused, and users with the same id entering at the same time must not both get in.
+ */
+public class ShardCheck {
+
+	/**
+	 * runs every check
+	 *
+	 * @param args CLI arguments, not used
+	 * @throws InterruptedException if interrupted while waiting for the entering threads
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		ChatLog.setEnabled(false);
+		checkEnterTwice();
+		checkDisplaced();
+		checkConcurrentEntries();
+		checkReserve();
+		System.out.println("Sharded rooms hold each user id once.");
+	}
+
+	/**
+	 * checks the same user, or another user with their id, cannot enter a room they are in
+	 */
+	private static void checkEnterTwice() {
+		ShardedChatRoom room = openRoom();
+		User user = new User(1, null);
+		expect(room.enterRoom(user) && !room.enterRoom(user) && !room.enterRoom(new User(1, null)),
+				"a user in the room is refused a second time");
+		expect(room.getOccupancy() == 1, "a refused user is not counted, occupancy " + room.getOccupancy());
+		expect(room.leaveRoom(user) && !room.hasMember(1) && room.getOccupancy() == 0,
+				"a user is gone after leaving once");
+	}
+
+	/**
+	 * checks a user placed outside their full shard is the only one with their id and can leave
+	 */
+	private static void checkDisplaced() {
+		ShardedChatRoom room = openRoom();
+		int[] ids = sameShard(3);
+		User first = new User(ids[0], null);
+		User displaced = new User(ids[2], null);
+		expect(room.enterRoom(first) && room.enterRoom(new User(ids[1], null)) && room.enterRoom(displaced),
+				"a user whose shard is full enters another shard");
+
+		expect(!room.enterRoom(displaced) && !room.enterRoom(new User(ids[2], null)),
+				"a user placed in another shard is refused a second time");
+		expect(!room.enterRoom(new User(ids[0], null)), "a user in a full shard is refused a second time");
+		expect(room.getOccupancy() == 3, "refused users are not counted, occupancy " + room.getOccupancy());
+
+		expect(room.leaveRoom(displaced) && !room.hasMember(ids[2]) && room.getOccupancy() == 2,
+				"a user placed in another shard is gone after leaving once");
+		expect(room.enterRoom(displaced), "a user who left enters again");
+	}
+
+	/**
+	 * checks users with the same id entering a room whose shard for them is full at the same time
+	 * are let in once
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the entering threads
+	 */
+	private static void checkConcurrentEntries() throws InterruptedException {
+		int[] ids = sameShard(3);
+		for (int round = 0; round < 200; round++) {
+			ShardedChatRoom room = openRoom();
+			room.enterRoom(new User(ids[0], null));
+			room.enterRoom(new User(ids[1], null));
+
+			CountDownLatch start = new CountDownLatch(1);
+			AtomicInteger entered = new AtomicInteger();
+			List<Thread> threads = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				//every other thread has the id of a user already in the room
+				User user = new User(ids[i % 2 == 0 ? 2 : 0], null);
+				Thread thread = new Thread(() -> {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (room.enterRoom(user)) {
+						entered.incrementAndGet();
+					}
+				});
+				thread.start();
+				threads.add(thread);
+			}
+			start.countDown();
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			expect(entered.get() == 1 && room.getOccupancy() == 3,
+					entered.get() + " of the users with the same id entered at once in round " + round);
+		}
+	}
+
+	/**
+	 * checks a member or a user holding a place cannot reserve another, and a place reserved
+	 * outside a user's full shard is the one their entry is committed to
+	 */
+	private static void checkReserve() {
+		ShardedChatRoom room = openRoom();
+		int[] ids = sameShard(3);
+		User first = new User(ids[0], null);
+		expect(room.enterRoom(first) && !room.reserve(first) && !room.reserve(new User(ids[0], null)),
+				"a user in the room cannot reserve a place");
+
+		User displaced = new User(ids[2], null);
+		expect(room.enterRoom(new User(ids[1], null)) && room.reserve(displaced),
+				"a user whose shard is full reserves a place in another shard");
+		expect(!room.reserve(displaced) && !room.reserve(new User(ids[2], null))
+				&& !room.enterRoom(new User(ids[2], null)), "a user holding a place cannot take another");
+		expect(room.commitReservation(displaced) && !room.commitReservation(displaced)
+				&& room.getOccupancy() == 3, "a reservation is committed once, occupancy " + room.getOccupancy());
+		expect(!room.reserve(displaced) && room.leaveRoom(displaced) && !room.hasMember(ids[2]),
+				"a user who entered through a reservation cannot reserve again and leaves once");
+
+		expect(room.reserve(displaced), "a user who left reserves again");
+		room.releaseReservation(displaced);
+		expect(room.enterRoom(displaced) && room.getOccupancy() == 3, "a released place is free again");
+	}
+
+	/**
+	 * makes an open room of two shards with two places each
+	 *
+	 * @return the room
+	 */
+	private static ShardedChatRoom openRoom() {
+		ShardedChatRoom room = new ShardedChatRoom(0, 5, 2);
+		room.open();
+		return room;
+	}
+
+	/**
+	 * finds user ids an empty room places in the same shard
+	 *
+	 * @param count number of ids
+	 * @return the ids
+	 */
+	private static int[] sameShard(int count) {
+		int[] ids = new int[count];
+		int found = 0;
+		for (int id = 1; found < count; id++) {
+			ShardedChatRoom room = openRoom();
+			room.enterRoom(new User(id, null));
+			if (room.getShards()[0].hasMember(id)) {
+				ids[found++] = id;
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * stops the checks with a failure if a condition does not hold
+	 *
+	 * @param condition condition checked
+	 * @param message what was expected
+	 */
+	private static void expect(boolean condition, String message) {
+		if (!condition) {
+			System.out.println("FAILED: " + message);
+			System.exit(1);
+		}
+	}
+
+}
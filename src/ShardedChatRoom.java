@@ -0,0 +1,577 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is a chat room split into several shards, each shard is a chat room with its
+ * own lock. Users are placed in a shard by their id so users entering and leaving at the same
+ * time rarely wait on each other, while the room still behaves as one room for its id,
+ * capacity, membership and opening/closing.
+ */
+public class ShardedChatRoom extends ChatRoom {
+
+	/**
+	 * shards of this room
+	 */
+	private final Shard[] shards;
+	/**
+	 * number of users in, or holding a place in, a shard other than the one their id maps to
+	 */
+	private final AtomicInteger displaced;
+
+	/**
+	 * Used to initialise a sharded chat room, the capacity is split between the shards.
+	 * there are never more shards than users the room can hold.
+	 *
+	 * @param chatRoomID unique id used to identify chat room
+	 * @param capacity capacity of this chat room
+	 * @param shardCount number of shards wanted
+	 */
+	public ShardedChatRoom(int chatRoomID, int capacity, int shardCount) {
+		super(chatRoomID, capacity);
+
+		int shardTotal = Math.max(1, Math.min(shardCount, capacity - 1));
+		this.shards = new Shard[shardTotal];
+		this.displaced = new AtomicInteger();
+
+		for (int i = 0; i < shardTotal; i++) {
+			shards[i] = new Shard(chatRoomID);
+		}
+		splitCapacity(capacity);
+	}
+
+	/**
+	 * This class is one shard of the room. A shard keeps the ids of its users placed in another
+	 * shard and turns them away while they are, so the room never holds the same id twice. The ids
+	 * are only used under the shard's monitor and nothing is allocated unless they have to grow.
+	 */
+	private final class Shard extends ChatRoom {
+
+		/**
+		 * ids of the users of this shard placed in another shard
+		 */
+		private int[] placedElsewhere;
+		/**
+		 * number of users of this shard placed in another shard
+		 */
+		private int placedCount;
+
+		/**
+		 * creates an empty shard, its capacity is set by the room
+		 *
+		 * @param chatRoomID id of the room the shard belongs to
+		 */
+		Shard(int chatRoomID) {
+			super(chatRoomID, 0);
+			this.placedElsewhere = new int[8];
+		}
+
+		/**
+		 * checks whether a user of this shard is placed in another shard, the caller must hold
+		 * the shard monitor
+		 *
+		 * @param userID id of the user
+		 * @return whether the user is placed elsewhere
+		 */
+		@Override
+		protected boolean isPlacedElsewhere(int userID) {
+			return indexOf(userID) >= 0;
+		}
+
+		/**
+		 * checks whether a user of this shard is placed in another shard
+		 *
+		 * @param userID id of the user
+		 * @return whether the user is placed elsewhere
+		 */
+		synchronized boolean isClaimed(int userID) {
+			return indexOf(userID) >= 0;
+		}
+
+		/**
+		 * claims a user of this shard for another shard, only when this shard would turn them
+		 * away for being full
+		 *
+		 * @param user user being placed elsewhere
+		 * @return whether the user was claimed
+		 */
+		synchronized boolean claim(User user) {
+			if (!isFullFor(user)) {
+				return false;
+			}
+
+			if (placedCount == placedElsewhere.length) {
+				placedElsewhere = Arrays.copyOf(placedElsewhere, placedCount * 2);
+			}
+			placedElsewhere[placedCount++] = user.getUserID();
+			displaced.incrementAndGet();
+			return true;
+		}
+
+		/**
+		 * gives up the claim on a user of this shard placed in another shard
+		 *
+		 * @param userID id of the user
+		 */
+		synchronized void unclaim(int userID) {
+			int index = indexOf(userID);
+			if (index >= 0) {
+				placedElsewhere[index] = placedElsewhere[--placedCount];
+				displaced.decrementAndGet();
+			}
+		}
+
+		/**
+		 * gives up every claim of this shard
+		 */
+		synchronized void clearClaims() {
+			displaced.addAndGet(-placedCount);
+			placedCount = 0;
+		}
+
+		/**
+		 * finds a user of this shard placed in another shard
+		 *
+		 * @param userID id of the user
+		 * @return index of the id, -1 if the user is not placed elsewhere
+		 */
+		private int indexOf(int userID) {
+			for (int i = 0; i < placedCount; i++) {
+				if (placedElsewhere[i] == userID) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * splits the users this room can hold as evenly as possible between the shards
+	 *
+	 * @param capacity capacity of this chat room
+	 */
+	private void splitCapacity(int capacity) {
+		//a room holds one fewer user than its capacity, so each shard gets its share plus one
+		int slots = Math.max(0, capacity - 1);
+		for (int i = 0; i < shards.length; i++) {
+			int share = slots / shards.length + (i < slots % shards.length ? 1 : 0);
+			shards[i].setCapacity(share + 1);
+		}
+	}
+
+	/**
+	 * gets the shard a user belongs in
+	 *
+	 * @param userID id of the user
+	 * @return index of the shard
+	 */
+	private int shardFor(int userID) {
+		int hash = userID * 0x9E3779B9;
+		return ((hash ^ (hash >>> 16)) & 0x7fffffff) % shards.length;
+	}
+
+	/**
+	 * checks whether a user is placed in a shard other than the one their id maps to
+	 *
+	 * @param userID id of the user
+	 * @return whether the user is placed elsewhere
+	 */
+	private boolean isDisplaced(int userID) {
+		//checked for none first so the common case never locks the user's own shard
+		return displaced.get() > 0 && shards[shardFor(userID)].isClaimed(userID);
+	}
+
+	/**
+	 * opens the room and all its shards
+	 */
+	@Override
+	public synchronized void open() {
+		for (ChatRoom shard : shards) {
+			shard.setOpen(true);
+		}
+		super.open();
+	}
+
+	/**
+	 * leaves all users from every shard and closes the room
+	 */
+	@Override
+	public synchronized void close() {
+		for (Shard shard : shards) {
+			shard.evictAll();
+			shard.setOpen(false);
+			shard.clearClaims();
+		}
+		super.close();
+	}
+
+	/**
+	 * leaves all users from every shard without closing the room
+	 */
+	@Override
+	protected synchronized void evictAll() {
+		for (Shard shard : shards) {
+			shard.evictAll();
+			shard.clearClaims();
+		}
+	}
+
+	/**
+	 * attempts to enter user into the shard their id maps to, if that shard is full the other
+	 * shards are tried so the room only turns users away when it is full as a whole. only when
+	 * every shard is full is a user of a lower class moved out of the user's own shard.
+	 *
+	 * @param user user attempting to join room
+	 * @param mayPreempt whether a user of a lower class may be moved out to make room
+	 * @return whether user joined the room or not
+	 */
+	@Override
+	protected boolean enterRoom(User user, boolean mayPreempt) {
+		long started = System.nanoTime();
+		int home = shardFor(user.getUserID());
+
+		if (shards[home].enterRoom(user, false) || placeElsewhere(user, false)
+				|| (mayPreempt && shards[home].enterRoom(user, true))) {
+			recordAdmission(user, true, started);
+			return true;
+		}
+
+		recordRejection();
+		recordAdmission(user, false, started);
+		return false;
+	}
+
+	/**
+	 * enters a user, or reserves a place for them, in a shard other than the one their id maps to.
+	 * this is only tried when no shard holds the user's id and their own shard turns them away for
+	 * being full, any other reason to turn them away holds for the whole room. placements outside a
+	 * user's own shard are made one at a time under the room monitor, and the id is claimed under
+	 * the monitor of the user's own shard so an entry there at the same time cannot also pass.
+	 *
+	 * @param user user attempting to join room
+	 * @param reserve whether a place is reserved instead of entering
+	 * @return whether the user entered or a place was reserved
+	 */
+	private synchronized boolean placeElsewhere(User user, boolean reserve) {
+		int userID = user.getUserID();
+		int home = shardFor(userID);
+		if (shards.length == 1) {
+			return false;
+		}
+		if (isDisplaced(userID)) {
+			dropIfStale(userID);
+		}
+		if (hasMember(userID)) {
+			return false;
+		}
+
+		if (!shards[home].claim(user)) {
+			return false;
+		}
+
+		for (int i = 1; i < shards.length; i++) {
+			ChatRoom shard = shards[(home + i) % shards.length];
+			if (shard.getOccupancy() + 1 < shard.getCapacity()
+					&& (reserve ? shard.reserve(user, false) : shard.enterRoom(user, false))) {
+				return true;
+			}
+		}
+		shards[home].unclaim(userID);
+		return false;
+	}
+
+	/**
+	 * forgets a user is placed outside their own shard once no other shard holds them or a place
+	 * for them, as when they were moved out for a higher class or their reservation ran out.
+	 * the caller must hold the room monitor.
+	 *
+	 * @param userID id of the user
+	 */
+	private void dropIfStale(int userID) {
+		int home = shardFor(userID);
+		for (int i = 0; i < shards.length; i++) {
+			if (i != home && (shards[i].hasMember(userID) || shards[i].holdsReservation(userID))) {
+				return;
+			}
+		}
+		shards[home].unclaim(userID);
+	}
+
+	/**
+	 * puts a user in the shard their id maps to as another server already decided, see restore
+	 *
+	 * @param user user being put in the room
+	 * @return whether the user was put in the room
+	 */
+	@Override
+	public boolean restore(User user) {
+		if (hasMember(user.getUserID())) {
+			return false;
+		}
+		return shards[shardFor(user.getUserID())].restore(user);
+	}
+
+	/**
+	 * reserves a place for a user in the shard their id maps to, or in another shard
+	 * if that one is full, only moving a user of a lower class out when every shard is full
+	 *
+	 * @param user user the place is reserved for
+	 * @param mayPreempt whether a user of a lower class may be moved out to make room
+	 * @return whether a place was reserved
+	 */
+	@Override
+	protected boolean reserve(User user, boolean mayPreempt) {
+		long started = System.nanoTime();
+		int home = shardFor(user.getUserID());
+
+		if (shards[home].reserve(user, false) || placeElsewhere(user, true)
+				|| (mayPreempt && shards[home].reserve(user, true))) {
+			return true;
+		}
+
+		recordRejection();
+		recordAdmission(user, false, started);
+		return false;
+	}
+
+	/**
+	 * enters a user into the shard holding their reservation
+	 *
+	 * @param user user whose reservation is committed
+	 * @return whether the user entered
+	 */
+	@Override
+	public boolean commitReservation(User user) {
+		long started = System.nanoTime();
+		if (shards[shardFor(user.getUserID())].commitReservation(user) || commitElsewhere(user)) {
+			recordAdmission(user, true, started);
+			return true;
+		}
+		recordAdmission(user, false, started);
+		return false;
+	}
+
+	/**
+	 * enters a user into a shard other than their own that holds their reservation
+	 *
+	 * @param user user whose reservation is committed
+	 * @return whether the user entered
+	 */
+	private boolean commitElsewhere(User user) {
+		int userID = user.getUserID();
+		if (!isDisplaced(userID)) {
+			return false;
+		}
+
+		synchronized (this) {
+			int home = shardFor(userID);
+			for (int i = 0; i < shards.length; i++) {
+				if (i != home && shards[i].commitReservation(user)) {
+					return true;
+				}
+			}
+			dropIfStale(userID);
+			return false;
+		}
+	}
+
+	/**
+	 * gives up the place reserved for a user in whichever shard holds it
+	 *
+	 * @param user user whose reservation is released
+	 */
+	@Override
+	public void releaseReservation(User user) {
+		int userID = user.getUserID();
+		int home = shardFor(userID);
+		shards[home].releaseReservation(user);
+		if (!isDisplaced(userID)) {
+			return;
+		}
+
+		synchronized (this) {
+			for (int i = 0; i < shards.length; i++) {
+				if (i != home) {
+					shards[i].releaseReservation(user);
+				}
+			}
+			dropIfStale(userID);
+		}
+	}
+
+	/**
+	 * sets aside places only a priority class, or a higher one, can take,
+	 * the places are split between the shards
+	 *
+	 * @param priority class the places are set aside for
+	 * @param places number of places
+	 */
+	@Override
+	public synchronized void setReservedCapacity(Priority priority, int places) {
+		super.setReservedCapacity(priority, places);
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].setReservedCapacity(priority, places / shards.length + (i < places % shards.length ? 1 : 0));
+		}
+	}
+
+	/**
+	 * sets how long a reservation keeps a place free in every shard
+	 *
+	 * @param reservationTimeoutMillis reservation timeout in milliseconds
+	 */
+	@Override
+	public void setReservationTimeoutMillis(long reservationTimeoutMillis) {
+		super.setReservationTimeoutMillis(reservationTimeoutMillis);
+		for (ChatRoom shard : shards) {
+			shard.setReservationTimeoutMillis(reservationTimeoutMillis);
+		}
+	}
+
+	/**
+	 * removes user from whichever shard they are in
+	 *
+	 * @param user user leaving the room
+	 * @return whether the user was in the room
+	 */
+	@Override
+	public boolean leaveRoom(User user) {
+		int userID = user.getUserID();
+		int home = shardFor(userID);
+		if (shards[home].leaveRoom(user)) {
+			return true;
+		}
+		if (!isDisplaced(userID)) {
+			return false;
+		}
+
+		synchronized (this) {
+			for (int i = 0; i < shards.length; i++) {
+				if (i != home && shards[i].leaveRoom(user)) {
+					shards[home].unclaim(userID);
+					return true;
+				}
+			}
+			dropIfStale(userID);
+			return false;
+		}
+	}
+
+	/**
+	 * checks whether a user with the id is in any shard of this room
+	 *
+	 * @param userID id of the user
+	 * @return whether the user is in this room
+	 */
+	@Override
+	public boolean hasMember(int userID) {
+		for (ChatRoom shard : shards) {
+			if (shard.hasMember(userID)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * gets the number of users in every shard without locking them
+	 *
+	 * @return number of users in this room
+	 */
+	@Override
+	public int getOccupancy() {
+		int occupancy = 0;
+		for (ChatRoom shard : shards) {
+			occupancy += shard.getOccupancy();
+		}
+		return occupancy;
+	}
+
+	/**
+	 * gets a copy of the users in every shard of this room
+	 *
+	 * @return the users in this room
+	 */
+	@Override
+	public List<User> getUsers() {
+		List<User> users = new ArrayList<>();
+		for (ChatRoom shard : shards) {
+			synchronized (shard) {
+				users.addAll(shard.getUsers());
+			}
+		}
+		return users;
+	}
+
+	/**
+	 * replaces the users of this room, each user is placed in their shard
+	 *
+	 * @param users users in this room
+	 */
+	@Override
+	public synchronized void setUsers(List<User> users) {
+		for (Shard shard : shards) {
+			shard.setUsers(new ArrayList<>());
+			shard.clearClaims();
+		}
+		for (User user : users) {
+			enterRoom(user);
+		}
+	}
+
+	/**
+	 * sets the capacity of this room, the new capacity is split between the shards
+	 *
+	 * @param capacity the new capacity of this room
+	 */
+	@Override
+	public synchronized void setCapacity(int capacity) {
+		super.setCapacity(capacity);
+		splitCapacity(capacity);
+	}
+
+	/**
+	 * sets the room and every shard to open or closed
+	 *
+	 * @param open whether room is open or closed
+	 */
+	@Override
+	public void setOpen(boolean open) {
+		super.setOpen(open);
+		for (ChatRoom shard : shards) {
+			shard.setOpen(open);
+		}
+	}
+
+	/**
+	 * sets the event bus this room and every shard publishes to
+	 *
+	 * @param eventBus event bus of the server this room belongs to
+	 */
+	@Override
+	public void setEventBus(EventBus eventBus) {
+		super.setEventBus(eventBus);
+		for (ChatRoom shard : shards) {
+			shard.setEventBus(eventBus);
+		}
+	}
+
+	/**
+	 * gets the shards of this room
+	 *
+	 * @return shards of this room
+	 */
+	public ChatRoom[] getShards() {
+		return shards;
+	}
+
+	/**
+	 * gets the number of shards of this room
+	 *
+	 * @return number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+}
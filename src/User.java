@@ -1,4 +1,6 @@
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * This class is responsible for handling everything to do with the user,
@@ -10,6 +12,10 @@ public class User implements Runnable {
 	 * Default sleep time between actions
 	 */
 	private static int sleepScale = 1000;
+	/**
+	 * a user in a room greets another user one time in this many, never if 0 as by default
+	 */
+	private static int greetingOdds = 0;
 	/**
 	 * id of the current user
 	 */
@@ -21,19 +27,27 @@ public class User implements Runnable {
 	/**
 	 * whether the user has joined a server
 	 */
-	private boolean joinedServer;
+	private volatile boolean joinedServer;
 	/**
 	 * whether the user has joined the main room
 	 */
-	private boolean joinedMainRoom;
+	private volatile boolean joinedMainRoom;
 	/**
 	 * whether the user has joined a random room
 	 */
-	private boolean joinedRandomRoom;
+	private volatile boolean joinedRandomRoom;
 	/**
 	 * value used to identify how much the user wants to chat
 	 */
 	private int wantToChat;
+	/**
+	 * priority class the user is admitted by
+	 */
+	private Priority priority;
+	/**
+	 * direct messages taken from the mailbox and not yet read, reused between reads
+	 */
+	private final List<DirectMessage> inbox;
 
 	/**
 	 * Creates a user object and assigns them a server
@@ -42,19 +56,33 @@ public class User implements Runnable {
 	 * @param chatServer server assigned to user
 	 */
 	public User(int userID, ChatServer chatServer) {
+		this(userID, chatServer, Priority.BEST_EFFORT);
+	}
+
+	/**
+	 * Creates a user object with a priority class and assigns them a server
+	 *
+	 * @param userID id of current user
+	 * @param chatServer server assigned to user
+	 * @param priority priority class the user is admitted by
+	 */
+	public User(int userID, ChatServer chatServer, Priority priority) {
 		this.userID = userID;
 		this.server = chatServer;
-		this.wantToChat = new Random().nextInt(6) + 10;
+		this.priority = priority;
+		this.inbox = new ArrayList<>();
+		this.wantToChat = ThreadLocalRandom.current().nextInt(6) + 10;
 	}
 
 	/**
-	 * attempts to join the user to the chat server
+	 * attempts to join the user to the chat server and the main chat room at once,
+	 * the user either gets both or neither
 	 *
-	 * @return whether the user joined the server
+	 * @return whether the user joined the server and the main chat room
 	 */
-	private boolean attemptJoinChatServer() throws InterruptedException {
-		wantToChat -= 0.5;
-		return server.join(this);
+	private boolean attemptJoinChatServerAndMainRoom() throws InterruptedException {
+		wantToChat -= 2;
+		return server.joinWithMainRoom(this);
 	}
 
 	/**
@@ -77,51 +105,84 @@ public class User implements Runnable {
 		return server.joinRandomChatRoom(this);
 	}
 
+	/**
+	 * sends a direct message to another user
+	 *
+	 * @param recipientID id of the user the message is for
+	 * @param text text of the message
+	 * @return whether the message was put in the recipient's mailbox
+	 */
+	public boolean sendDirectMessage(int recipientID, String text) {
+		return server.sendDirectMessage(this, recipientID, text);
+	}
+
+	/**
+	 * reads the direct messages waiting in the user's mailbox
+	 */
+	private void readDirectMessages() {
+		server.receiveDirectMessages(this, inbox, Integer.MAX_VALUE);
+		for (int i = 0; ChatLog.isEnabled() && i < inbox.size(); i++) {
+			DirectMessage message = inbox.get(i);
+			ChatLog.println("User " + userID + " got a message from User " + message.getSenderID() + ": "
+					+ message.getText());
+		}
+		inbox.clear();
+	}
+
 	/**
 	 * this method checks whether the user is in a server, main chat room or main room,
 	 * if the user is not in any attempts to join one until successful when successful
 	 * the user stays in the room until it decides to leave, this is repeated until wants to chat now
-	 * equals 0
+	 * equals 0 or the server starts draining
 	 */
 	@Override
 	public void run() {
-		while (wantToChat > 0) {
+		while (wantToChat > 0 && !server.isDraining()) {
 			try {
 				//waits BETWEEN actions and NOT after every action (per specification)
 				//if action fails, sleep as then it's between actions
 				if (!joinedServer) {
-					joinedServer = attemptJoinChatServer();
+					//join the server and the main room together so a full main room
+					//never leaves the user stuck in the server
+					joinedServer = attemptJoinChatServerAndMainRoom();
+					joinedMainRoom = joinedServer;
 
 					if (!joinedServer) {
-						Thread.sleep(new Random().nextInt(sleepScale + 1) + sleepScale);
+						Thread.sleep(ThreadLocalRandom.current().nextInt(sleepScale + 1) + sleepScale);
 					}
 				} else if (!joinedMainRoom) {
 					joinedMainRoom = attemptJoinMainChatRoom();
 
 					if (!joinedMainRoom) {
-						Thread.sleep(new Random().nextInt(sleepScale + 1) + sleepScale);
+						Thread.sleep(ThreadLocalRandom.current().nextInt(sleepScale + 1) + sleepScale);
 					}
 				} else {
 					joinedRandomRoom = attemptJoinRandomChatRoom();
 
 					if (!joinedRandomRoom) {
-						Thread.sleep(new Random().nextInt(sleepScale + 1) + sleepScale);
+						Thread.sleep(ThreadLocalRandom.current().nextInt(sleepScale + 1) + sleepScale);
 					}
 				}
 
 				//if in a room wait for random time between 2 and 5, then leaves
 				if (joinedMainRoom || joinedRandomRoom) {
-					int stayTime = new Random().nextInt(4) + 2;
+					//says hello to another user now and then, they may not be online
+					if (greetingOdds > 0 && ThreadLocalRandom.current().nextInt(greetingOdds) == 0) {
+						sendDirectMessage(ThreadLocalRandom.current().nextInt(100) + 1, "Hello");
+					}
+
+					int stayTime = ThreadLocalRandom.current().nextInt(4) + 2;
 					Thread.sleep((long) stayTime * sleepScale);
+					readDirectMessages();
 
 					wantToChat -= stayTime;
 					server.leaveChatRoom(this);
 				}
 			} catch (InterruptedException e) {
-				System.out.println("Interrupted User Thread (" + userID + ")");
+				ChatLog.println("Interrupted User Thread (", userID, ")");
 			}
 		}
-		System.out.println("User Thread (" + userID + ") has ended!");
+		ChatLog.println("User Thread (", userID, ") has ended!");
 
 		server.leave(this);  // Leave the chat server
 	}
@@ -162,6 +223,24 @@ public class User implements Runnable {
 		return wantToChat;
 	}
 
+	/**
+	 * sets the priority class of the user
+	 *
+	 * @param priority priority class the user is admitted by
+	 */
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * gets the priority class of the user
+	 *
+	 * @return priority class the user is admitted by
+	 */
+	public Priority getPriority() {
+		return priority;
+	}
+
 	/**
 	 * sets default sleep value
 	 *
@@ -180,6 +259,24 @@ public class User implements Runnable {
 		return sleepScale;
 	}
 
+	/**
+	 * sets how often a user in a room greets another user
+	 *
+	 * @param greetingOdds one in this many stays, 0 for never
+	 */
+	public static void setGreetingOdds(int greetingOdds) {
+		User.greetingOdds = greetingOdds;
+	}
+
+	/**
+	 * gets how often a user in a room greets another user
+	 *
+	 * @return one in this many stays, 0 for never
+	 */
+	public static int getGreetingOdds() {
+		return greetingOdds;
+	}
+
 	/**
 	 * sets new server to assign user too
 	 *
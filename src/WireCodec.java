@@ -0,0 +1,368 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class encodes and decodes the binary protocol remote clients use to talk to a chat server.
+ * Every frame is a varint length, then a one byte opcode, then the body. User and room ids and
+ * lengths are unsigned varints so small values take one byte. Frames are written to and read from
+ * byte buffers directly, nothing is allocated per frame.
+ */
+public final class WireCodec {
+
+	/**
+	 * opcode of a join frame, body is the user id
+	 */
+	public static final byte JOIN = 1;
+	/**
+	 * opcode of an enter frame, body is the user id then the room id
+	 */
+	public static final byte ENTER = 2;
+	/**
+	 * opcode of a leave frame, body is the user id then the room id
+	 */
+	public static final byte LEAVE = 3;
+	/**
+	 * opcode of a say frame, body is the user id, the room id, the text length then UTF-8 text
+	 */
+	public static final byte SAY = 4;
+	/**
+	 * opcode of an ack frame, body is the sequence number
+	 */
+	public static final byte ACK = 5;
+	/**
+	 * largest frame body accepted, in bytes
+	 */
+	public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+	/**
+	 * the codec only has static methods
+	 */
+	private WireCodec() {
+	}
+
+	/**
+	 * writes a join frame
+	 *
+	 * @param out buffer being written to
+	 * @param userID id of the user
+	 */
+	public static void encodeJoin(ByteBuffer out, int userID) {
+		writeHeader(out, JOIN, varintSize(userID));
+		writeVarint(out, userID);
+	}
+
+	/**
+	 * writes an enter frame
+	 *
+	 * @param out buffer being written to
+	 * @param userID id of the user
+	 * @param roomID id of the room
+	 */
+	public static void encodeEnter(ByteBuffer out, int userID, int roomID) {
+		writeHeader(out, ENTER, varintSize(userID) + varintSize(roomID));
+		writeVarint(out, userID);
+		writeVarint(out, roomID);
+	}
+
+	/**
+	 * writes a leave frame
+	 *
+	 * @param out buffer being written to
+	 * @param userID id of the user
+	 * @param roomID id of the room
+	 */
+	public static void encodeLeave(ByteBuffer out, int userID, int roomID) {
+		writeHeader(out, LEAVE, varintSize(userID) + varintSize(roomID));
+		writeVarint(out, userID);
+		writeVarint(out, roomID);
+	}
+
+	/**
+	 * writes a say frame, the text is encoded as UTF-8 straight into the buffer
+	 *
+	 * @param out buffer being written to
+	 * @param userID id of the user
+	 * @param roomID id of the room
+	 * @param text what the user said
+	 */
+	public static void encodeSay(ByteBuffer out, int userID, int roomID, CharSequence text) {
+		int textLength = utf8Length(text);
+		writeHeader(out, SAY, varintSize(userID) + varintSize(roomID) + varintSize(textLength) + textLength);
+		writeVarint(out, userID);
+		writeVarint(out, roomID);
+		writeVarint(out, textLength);
+		writeUtf8(out, text);
+	}
+
+	/**
+	 * writes an ack frame
+	 *
+	 * @param out buffer being written to
+	 * @param sequence sequence number acknowledged
+	 */
+	public static void encodeAck(ByteBuffer out, long sequence) {
+		writeHeader(out, ACK, varintSize(sequence));
+		writeVarint(out, sequence);
+	}
+
+	/**
+	 * writes the length and opcode of a frame, checking the whole frame fits first
+	 *
+	 * @param out buffer being written to
+	 * @param opcode opcode of the frame
+	 * @param bodyLength length of the body after the opcode
+	 */
+	private static void writeHeader(ByteBuffer out, byte opcode, int bodyLength) {
+		int length = bodyLength + 1;
+		if (length > MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("Frame of " + length + " bytes is too long.");
+		}
+		if (out.remaining() < varintSize(length) + length) {
+			throw new BufferOverflowException();
+		}
+
+		writeVarint(out, length);
+		out.put(opcode);
+	}
+
+	/**
+	 * decodes every complete frame in the buffer, passing each to the handler. a partial frame at
+	 * the end is left in the buffer, with the position at its start, for when more bytes arrive.
+	 *
+	 * @param in buffer being read, between its position and limit
+	 * @param handler handler frames are passed to
+	 * @return number of frames decoded
+	 * @throws IllegalArgumentException if a frame is malformed
+	 */
+	public static int decode(ByteBuffer in, WireHandler handler) {
+		int frames = 0;
+
+		while (in.hasRemaining()) {
+			int start = in.position();
+			int length = readLength(in);
+			if (length < 0 || in.remaining() < length) {
+				in.position(start);
+				break;
+			}
+
+			int end = in.position() + length;
+			decodeFrame(in, end, handler);
+			if (in.position() != end) {
+				throw new IllegalArgumentException("Frame at " + start + " has " + (end - in.position())
+						+ " bytes left over.");
+			}
+			frames++;
+		}
+
+		return frames;
+	}
+
+	/**
+	 * decodes the body of one frame
+	 *
+	 * @param in buffer being read, positioned at the opcode
+	 * @param end index just past the end of the frame
+	 * @param handler handler the frame is passed to
+	 */
+	private static void decodeFrame(ByteBuffer in, int end, WireHandler handler) {
+		byte opcode = in.get();
+		switch (opcode) {
+			case JOIN:
+				handler.onJoin(readVarint(in, end));
+				break;
+			case ENTER: {
+				int userID = readVarint(in, end);
+				handler.onEnter(userID, readVarint(in, end));
+				break;
+			}
+			case LEAVE: {
+				int userID = readVarint(in, end);
+				handler.onLeave(userID, readVarint(in, end));
+				break;
+			}
+			case SAY: {
+				int userID = readVarint(in, end);
+				int roomID = readVarint(in, end);
+				int textLength = readVarint(in, end);
+				int offset = in.position();
+				if (textLength < 0 || textLength > end - offset) {
+					throw new IllegalArgumentException("Say frame text of " + textLength + " bytes overruns frame.");
+				}
+				handler.onSay(userID, roomID, in, offset, textLength);
+				in.position(offset + textLength);
+				break;
+			}
+			case ACK:
+				handler.onAck(readVarintLong(in, end));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown opcode " + opcode + ".");
+		}
+	}
+
+	/**
+	 * reads the length of the next frame
+	 *
+	 * @param in buffer being read
+	 * @return length of the frame, -1 if the length itself is not all there yet
+	 */
+	private static int readLength(ByteBuffer in) {
+		int length = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!in.hasRemaining()) {
+				return -1;
+			}
+			byte b = in.get();
+			length |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				if (length < 1 || length > MAX_FRAME_LENGTH) {
+					throw new IllegalArgumentException("Frame length " + length + " is out of range.");
+				}
+				return length;
+			}
+		}
+		throw new IllegalArgumentException("Frame length is longer than 5 bytes.");
+	}
+
+	/**
+	 * reads an unsigned varint that must end before the end of the frame
+	 *
+	 * @param in buffer being read
+	 * @param end index just past the end of the frame
+	 * @return the value read
+	 */
+	public static int readVarint(ByteBuffer in, int end) {
+		long value = readVarintLong(in, end);
+		if (value >>> 32 != 0) {
+			throw new IllegalArgumentException("Varint " + value + " does not fit in an int.");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * reads an unsigned varint of up to 64 bits that must end before the end of the frame
+	 *
+	 * @param in buffer being read
+	 * @param end index just past the end of the frame
+	 * @return the value read
+	 */
+	public static long readVarintLong(ByteBuffer in, int end) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (in.position() >= end) {
+				throw new IllegalArgumentException("Varint overruns frame.");
+			}
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint is longer than 10 bytes.");
+	}
+
+	/**
+	 * writes an int as an unsigned varint
+	 *
+	 * @param out buffer being written to
+	 * @param value value being written
+	 */
+	public static void writeVarint(ByteBuffer out, int value) {
+		writeVarint(out, value & 0xffffffffL);
+	}
+
+	/**
+	 * writes a long as an unsigned varint
+	 *
+	 * @param out buffer being written to
+	 * @param value value being written
+	 */
+	public static void writeVarint(ByteBuffer out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * gets the number of bytes an int takes as an unsigned varint
+	 *
+	 * @param value value being measured
+	 * @return size in bytes
+	 */
+	public static int varintSize(int value) {
+		return varintSize(value & 0xffffffffL);
+	}
+
+	/**
+	 * gets the number of bytes a long takes as an unsigned varint
+	 *
+	 * @param value value being measured
+	 * @return size in bytes
+	 */
+	public static int varintSize(long value) {
+		int bits = 64 - Long.numberOfLeadingZeros(value | 1);
+		return (bits + 6) / 7;
+	}
+
+	/**
+	 * gets the number of bytes text takes as UTF-8
+	 *
+	 * @param text text being measured
+	 * @return size in bytes
+	 */
+	public static int utf8Length(CharSequence text) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * writes text as UTF-8, unpaired surrogates are written as the replacement character
+	 *
+	 * @param out buffer being written to
+	 * @param text text being written
+	 */
+	public static void writeUtf8(ByteBuffer out, CharSequence text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xc0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				out.put((byte) (0xf0 | (codePoint >> 18)));
+				out.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+				out.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+				out.put((byte) (0x80 | (codePoint & 0x3f)));
+			} else if (Character.isSurrogate(c)) {
+				//keep the length worked out by utf8Length, which counts 3 bytes for these
+				out.put((byte) 0xef);
+				out.put((byte) 0xbf);
+				out.put((byte) 0xbd);
+			} else {
+				out.put((byte) (0xe0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+}
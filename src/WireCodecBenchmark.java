@@ -0,0 +1,377 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * This class checks the wire codec and measures it against a plain text protocol. Random frames
+ * are encoded, fed back in random sized chunks and decoded, and must come back unchanged. Random
+ * and corrupted bytes must either decode or be rejected as malformed, never fail any other way.
+ * Finally both protocols encode and decode the same frames and their speed is printed.
+ */
+public class WireCodecBenchmark implements WireHandler {
+
+	/**
+	 * words say frames are built from, some outside ASCII
+	 */
+	private static final String[] WORDS = {"hello", "room", "anyone", "here?", "h\u00e9llo",
+			"\u65e5\u672c\u8a9e", "\ud83d\udc4b", "ok"};
+
+	/**
+	 * opcodes of the frames decoded
+	 */
+	private final byte[] opcodes;
+	/**
+	 * first value of each frame decoded
+	 */
+	private final long[] first;
+	/**
+	 * second value of each frame decoded
+	 */
+	private final int[] second;
+	/**
+	 * text of each say frame decoded
+	 */
+	private final String[] texts;
+	/**
+	 * number of frames decoded
+	 */
+	private int count;
+	/**
+	 * whether text is turned into strings, off when timing
+	 */
+	private boolean keepText = true;
+
+	/**
+	 * creates a handler able to record the given number of frames
+	 *
+	 * @param frames most frames recorded
+	 */
+	private WireCodecBenchmark(int frames) {
+		this.opcodes = new byte[frames];
+		this.first = new long[frames];
+		this.second = new int[frames];
+		this.texts = new String[frames];
+	}
+
+	/**
+	 * runs the checks then the benchmark
+	 *
+	 * @param args CLI arguments, optionally the number of frames to time
+	 */
+	public static void main(String[] args) {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		Random random = new Random(42);
+
+		roundTrip(random, 10_000);
+		fuzz(random, 100_000);
+		System.out.println("Round trip and fuzz checks passed.");
+
+		benchmark(random, frames);
+	}
+
+	/**
+	 * encodes random frames, decodes them in random sized chunks and checks they are unchanged
+	 *
+	 * @param random source of randomness
+	 * @param frames number of frames
+	 */
+	private static void roundTrip(Random random, int frames) {
+		WireCodecBenchmark expected = new WireCodecBenchmark(frames);
+		ByteBuffer encoded = ByteBuffer.allocate(frames * 64);
+		for (int i = 0; i < frames; i++) {
+			randomFrame(random, expected);
+			encodeRecorded(encoded, expected, i);
+		}
+		encoded.flip();
+
+		WireCodecBenchmark decoded = new WireCodecBenchmark(frames);
+		ByteBuffer window = ByteBuffer.allocate(256);
+		while (encoded.hasRemaining()) {
+			int chunk = Math.min(encoded.remaining(), random.nextInt(window.remaining() + 1));
+			ByteBuffer slice = encoded.duplicate();
+			slice.limit(encoded.position() + chunk);
+			window.put(slice);
+			encoded.position(encoded.position() + chunk);
+
+			window.flip();
+			WireCodec.decode(window, decoded);
+			window.compact();
+		}
+		if (window.position() > 0) {
+			fail(window.position() + " bytes left over after the last frame.");
+		}
+
+		if (decoded.count != frames) {
+			fail("Decoded " + decoded.count + " of " + frames + " frames.");
+		}
+		for (int i = 0; i < frames; i++) {
+			if (expected.opcodes[i] != decoded.opcodes[i] || expected.first[i] != decoded.first[i]
+					|| expected.second[i] != decoded.second[i]
+					|| (expected.texts[i] != null && !expected.texts[i].equals(decoded.texts[i]))) {
+				fail("Frame " + i + " changed in the round trip.");
+			}
+		}
+	}
+
+	/**
+	 * decodes random and corrupted bytes, anything but a malformed frame error is a failure
+	 *
+	 * @param random source of randomness
+	 * @param runs number of inputs tried
+	 */
+	private static void fuzz(Random random, int runs) {
+		WireCodecBenchmark handler = new WireCodecBenchmark(64);
+		WireCodecBenchmark frames = new WireCodecBenchmark(8);
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+		for (int run = 0; run < runs; run++) {
+			buffer.clear();
+			if (run % 2 == 0) {
+				byte[] noise = new byte[random.nextInt(64)];
+				random.nextBytes(noise);
+				buffer.put(noise);
+			} else {
+				frames.count = 0;
+				for (int i = 0; i < 4; i++) {
+					randomFrame(random, frames);
+					encodeRecorded(buffer, frames, i);
+				}
+				int corruptions = random.nextInt(4) + 1;
+				for (int i = 0; i < corruptions; i++) {
+					buffer.put(random.nextInt(buffer.position()), (byte) random.nextInt(256));
+				}
+			}
+			buffer.flip();
+
+			handler.count = 0;
+			try {
+				WireCodec.decode(buffer, handler);
+			} catch (IllegalArgumentException e) {
+				//malformed input is expected to be rejected
+			} catch (RuntimeException e) {
+				fail("Fuzz run " + run + " failed with " + e + ".");
+			}
+		}
+	}
+
+	/**
+	 * times encoding and decoding with the binary and the text protocol
+	 *
+	 * @param random source of randomness
+	 * @param frames number of frames
+	 */
+	private static void benchmark(Random random, int frames) {
+		WireCodecBenchmark source = new WireCodecBenchmark(frames);
+		for (int i = 0; i < frames; i++) {
+			randomFrame(random, source);
+		}
+		BufferPool pool = new BufferPool(frames * 64, 1);
+		WireCodecBenchmark sink = new WireCodecBenchmark(frames);
+		sink.keepText = false;
+
+		for (int round = 0; round < 5; round++) {
+			ByteBuffer buffer = pool.acquire();
+			long start = System.nanoTime();
+			for (int i = 0; i < frames; i++) {
+				encodeRecorded(buffer, source, i);
+			}
+			long encoded = System.nanoTime();
+			int bytes = buffer.position();
+			buffer.flip();
+			sink.count = 0;
+			WireCodec.decode(buffer, sink);
+			long decoded = System.nanoTime();
+			pool.release(buffer);
+
+			StringBuilder text = new StringBuilder();
+			long textStart = System.nanoTime();
+			for (int i = 0; i < frames; i++) {
+				encodeText(text, source, i);
+			}
+			byte[] textBytes = text.toString().getBytes(StandardCharsets.UTF_8);
+			long textEncoded = System.nanoTime();
+			sink.count = 0;
+			decodeText(new String(textBytes, StandardCharsets.UTF_8), sink);
+			long textDecoded = System.nanoTime();
+
+			System.out.printf("round %d: binary %d bytes, encode %.1f ns/frame, decode %.1f ns/frame | "
+							+ "text %d bytes, encode %.1f ns/frame, decode %.1f ns/frame%n", round, bytes,
+					(double) (encoded - start) / frames, (double) (decoded - encoded) / frames,
+					textBytes.length, (double) (textEncoded - textStart) / frames,
+					(double) (textDecoded - textEncoded) / frames);
+		}
+	}
+
+	/**
+	 * adds a random frame to the recorded frames
+	 *
+	 * @param random source of randomness
+	 * @param frames recorded frames being added to
+	 */
+	private static void randomFrame(Random random, WireCodecBenchmark frames) {
+		int i = frames.count++;
+		frames.opcodes[i] = (byte) (random.nextInt(5) + 1);
+		frames.first[i] = random.nextInt(4) == 0 ? random.nextInt() & 0x7fffffff : random.nextInt(1000);
+		frames.second[i] = random.nextInt(64);
+		frames.texts[i] = null;
+
+		if (frames.opcodes[i] == WireCodec.ACK) {
+			frames.first[i] = random.nextLong() >>> random.nextInt(64);
+			frames.second[i] = 0;
+		} else if (frames.opcodes[i] == WireCodec.JOIN) {
+			frames.second[i] = 0;
+		} else if (frames.opcodes[i] == WireCodec.SAY) {
+			StringBuilder text = new StringBuilder();
+			int words = random.nextInt(6);
+			for (int w = 0; w < words; w++) {
+				text.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+			}
+			frames.texts[i] = text.toString();
+		}
+	}
+
+	/**
+	 * encodes a recorded frame with the wire codec
+	 *
+	 * @param out buffer being written to
+	 * @param frames recorded frames
+	 * @param i index of the frame
+	 */
+	private static void encodeRecorded(ByteBuffer out, WireCodecBenchmark frames, int i) {
+		switch (frames.opcodes[i]) {
+			case WireCodec.JOIN:
+				WireCodec.encodeJoin(out, (int) frames.first[i]);
+				break;
+			case WireCodec.ENTER:
+				WireCodec.encodeEnter(out, (int) frames.first[i], frames.second[i]);
+				break;
+			case WireCodec.LEAVE:
+				WireCodec.encodeLeave(out, (int) frames.first[i], frames.second[i]);
+				break;
+			case WireCodec.SAY:
+				WireCodec.encodeSay(out, (int) frames.first[i], frames.second[i], frames.texts[i]);
+				break;
+			default:
+				WireCodec.encodeAck(out, frames.first[i]);
+		}
+	}
+
+	/**
+	 * encodes a recorded frame as a line of text, the way a text protocol would
+	 *
+	 * @param out text being written to
+	 * @param frames recorded frames
+	 * @param i index of the frame
+	 */
+	private static void encodeText(StringBuilder out, WireCodecBenchmark frames, int i) {
+		switch (frames.opcodes[i]) {
+			case WireCodec.JOIN:
+				out.append("JOIN ").append(frames.first[i]);
+				break;
+			case WireCodec.ENTER:
+				out.append("ENTER ").append(frames.first[i]).append(' ').append(frames.second[i]);
+				break;
+			case WireCodec.LEAVE:
+				out.append("LEAVE ").append(frames.first[i]).append(' ').append(frames.second[i]);
+				break;
+			case WireCodec.SAY:
+				out.append("SAY ").append(frames.first[i]).append(' ').append(frames.second[i])
+						.append(' ').append(frames.texts[i]);
+				break;
+			default:
+				out.append("ACK ").append(Long.toUnsignedString(frames.first[i]));
+		}
+		out.append('\n');
+	}
+
+	/**
+	 * decodes lines of text, the way a text protocol would
+	 *
+	 * @param text lines being decoded
+	 * @param handler handler the frames are passed to
+	 */
+	private static void decodeText(String text, WireCodecBenchmark handler) {
+		for (String line : text.split("\n")) {
+			String[] parts = line.split(" ", 4);
+			switch (parts[0]) {
+				case "JOIN":
+					handler.onJoin(Integer.parseInt(parts[1]));
+					break;
+				case "ENTER":
+					handler.onEnter(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+					break;
+				case "LEAVE":
+					handler.onLeave(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+					break;
+				case "SAY":
+					handler.record(WireCodec.SAY, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+							parts.length > 3 ? parts[3] : "");
+					break;
+				default:
+					handler.onAck(Long.parseUnsignedLong(parts[1]));
+			}
+		}
+	}
+
+	/**
+	 * stops the checks with a failure
+	 *
+	 * @param message what went wrong
+	 */
+	private static void fail(String message) {
+		System.out.println("FAILED: " + message);
+		System.exit(1);
+	}
+
+	/**
+	 * records a decoded frame, later frames are dropped once the handler is full
+	 *
+	 * @param opcode opcode of the frame
+	 * @param firstValue first value of the frame
+	 * @param secondValue second value of the frame
+	 * @param text text of the frame, null if it has none
+	 */
+	private void record(byte opcode, long firstValue, int secondValue, String text) {
+		if (count < opcodes.length) {
+			opcodes[count] = opcode;
+			first[count] = firstValue;
+			second[count] = secondValue;
+			texts[count] = text;
+			count++;
+		}
+	}
+
+	@Override
+	public void onJoin(int userID) {
+		record(WireCodec.JOIN, userID, 0, null);
+	}
+
+	@Override
+	public void onEnter(int userID, int roomID) {
+		record(WireCodec.ENTER, userID, roomID, null);
+	}
+
+	@Override
+	public void onLeave(int userID, int roomID) {
+		record(WireCodec.LEAVE, userID, roomID, null);
+	}
+
+	@Override
+	public void onSay(int userID, int roomID, ByteBuffer buffer, int offset, int length) {
+		String text = null;
+		if (keepText) {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = buffer.get(offset + i);
+			}
+			text = new String(bytes, StandardCharsets.UTF_8);
+		}
+		record(WireCodec.SAY, userID, roomID, text);
+	}
+
+	@Override
+	public void onAck(long sequence) {
+		record(WireCodec.ACK, sequence, 0, null);
+	}
+
+}
@@ -0,0 +1,50 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This interface is implemented by anything receiving frames decoded by the wire codec.
+ * Nothing is allocated per frame, values are passed straight from the buffer being decoded.
+ */
+public interface WireHandler {
+
+	/**
+	 * a user asked to join the server
+	 *
+	 * @param userID id of the user
+	 */
+	void onJoin(int userID);
+
+	/**
+	 * a user asked to enter a room
+	 *
+	 * @param userID id of the user
+	 * @param roomID id of the room
+	 */
+	void onEnter(int userID, int roomID);
+
+	/**
+	 * a user asked to leave a room
+	 *
+	 * @param userID id of the user
+	 * @param roomID id of the room
+	 */
+	void onLeave(int userID, int roomID);
+
+	/**
+	 * a user said something in a room, the text is only valid for the duration of the call
+	 *
+	 * @param userID id of the user
+	 * @param roomID id of the room
+	 * @param buffer buffer holding the UTF-8 text
+	 * @param offset index of the first byte of the text in the buffer
+	 * @param length number of bytes of text
+	 */
+	void onSay(int userID, int roomID, ByteBuffer buffer, int offset, int length);
+
+	/**
+	 * the other side acknowledged everything up to a sequence number
+	 *
+	 * @param sequence sequence number acknowledged
+	 */
+	void onAck(long sequence);
+
+}